@@ -3,7 +3,12 @@ package bricks;
 import icon.*;
 import java.awt.Dimension;
 import java.awt.image.*;
+import java.util.List;
+
 import colors.*;
+import mosaic.rendering.Branches;
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
 import transforms.*;
 
 /**
@@ -51,18 +56,33 @@ public enum ToBricksType {
 		}		
 
 		@Override
-		public BufferedImage transform(BufferedImage in, ToBricksTransform tbt) {
+		public BufferedImage transform(final BufferedImage in, ToBricksTransform tbt, CancellationToken cancel) {
 			//long start = System.currentTimeMillis();
-			BufferedImage normal = tbt.getPlateFromSideTransform(1).transform(in);
-			BufferedImage sideways = tbt.getVerticalPlateFromSideTransform().transform(in);
-
-			LEGOColorTransform mainTransform = tbt.getMainTransform();
+			// The normal and sideways colors are independent, so they are found at the same time:
+			final Transform normal = tbt.getPlateFromSideTransform(1);
+			final Transform sideways = tbt.getVerticalPlateFromSideTransform();
+			final BufferedLEGOColorTransform mainTransform = tbt.getMainTransform();
+			// Both branches dither with the main transform, so they share its threads:
+			final int threads = Math.max(1, tbt.getDitheringThreads()/2);
 			
-			LEGOColorGrid normalColors = mainTransform.lcTransform(normal);
-			LEGOColorGrid sidewaysColors = mainTransform.lcTransform(sideways);			
+			Branches<LEGOColorGrid> branches = new Branches<LEGOColorGrid>();
+			branches.add(new Branches.Branch<LEGOColorGrid>() {
+				@Override
+				public LEGOColorGrid run(ProgressCallback progressCallback, CancellationToken cancel) {
+					return mainTransform.lcTransform(normal.transform(in, cancel), threads, progressCallback, cancel);
+				}
+			});
+			branches.add(new Branches.Branch<LEGOColorGrid>() {
+				@Override
+				public LEGOColorGrid run(ProgressCallback progressCallback, CancellationToken cancel) {
+					return mainTransform.lcTransform(sideways.transform(in, cancel), threads, progressCallback, cancel);
+				}
+			});
+			List<LEGOColorGrid> colors = branches.join(tbt.getProgressCallback(), cancel);
+			mainTransform.setLastInstructions(colors.get(1)); // The sideways colors, as when matched one after the other.
 
-			in = tbt.getSnotOutputTransform().transform(in);
-			BufferedImage res = tbt.bestMatch(normalColors, sidewaysColors, in);
+			BufferedImage original = tbt.getSnotOutputTransform().transform(in, cancel);
+			BufferedImage res = tbt.bestMatch(colors.get(0), colors.get(1), original, cancel);
 			return res;
 		}
 	}, 
@@ -237,10 +257,10 @@ public enum ToBricksType {
 	}
 	
 	public abstract Transform getPreparationTransform(ToBricksTransform tbt);
-	public BufferedImage transform(BufferedImage in, ToBricksTransform tbt) {
-		in = getPreparationTransform(tbt).transform(in);
-		in = tbt.getMainTransform().transform(in);
-		in = tbt.getRTransform().transform(in);
+	public BufferedImage transform(BufferedImage in, ToBricksTransform tbt, CancellationToken cancel) {
+		in = getPreparationTransform(tbt).transform(in, cancel);
+		in = tbt.getMainTransform().transform(in, cancel);
+		in = tbt.getRTransform().transform(in, cancel);
 		return in;
 	}
 	public BufferedImage transformNoResize(BufferedImage in, ToBricksTransform tbt) {
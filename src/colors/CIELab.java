@@ -9,6 +9,65 @@ import java.awt.color.ColorSpace;
  * @license http://creativecommons.org/licenses/by-sa/2.5/
  */
 public class CIELab extends ColorSpace {
+	/**
+	 * sRGB component to linear light. Same values as computed with Math.pow in rgb2lab originally.
+	 */
+	private static final float[] LINEAR = new float[256];
+	/**
+	 * Linear light in steps of 1/65535 to the sRGB component with the nearest value in LINEAR.
+	 */
+	private static final byte[] FROM_LINEAR = new byte[65536];
+	static {
+		for(int i = 0; i < 256; ++i) {
+			float c = i/255f;
+			if (c <= 0.04045)
+				LINEAR[i] = c/12;
+			else
+				LINEAR[i] = (float) Math.pow((c+0.055)/1.055,2.4);
+		}
+		int c = 0;
+		for(int i = 0; i < FROM_LINEAR.length; ++i) {
+			float linear = i/65535f;
+			while(c < 255 && linear > (LINEAR[c] + LINEAR[c+1])/2)
+				++c;
+			FROM_LINEAR[i] = (byte)c;
+		}
+	}
+
+	/**
+	 * @param component sRGB component in [0;255].
+	 * @return The component in linear light in [0;1].
+	 */
+	public static float toLinear(int component) {
+		return LINEAR[component];
+	}
+
+	/**
+	 * Inverse of toLinear. Components converted to linear light and back are unchanged.
+	 * @param linear Linear light. Values outside [0;1] are clamped.
+	 * @return sRGB component in [0;255].
+	 */
+	public static int fromLinear(float linear) {
+		int i = (int)(linear*65535 + 0.5f);
+		return FROM_LINEAR[i < 0 ? 0 : (i > 65535 ? 65535 : i)] & 0xFF;
+	}
+
+	/**
+	 * Cube root for the range used by rgb2lab (x > 216/24389).
+	 * Starts from an estimate by halving the exponent bits and refines it with three Halley iterations,
+	 * giving the same float as (float)Math.pow(x, 1/3.) for all values reachable from RGB input.
+	 */
+	private static float cbrt(float x) {
+		double y = Float.intBitsToFloat(Float.floatToRawIntBits(x)/3 + 709921077);
+		double y3 = y*y*y;
+		y = y * (y3 + 2*x) / (2*y3 + x);
+		y3 = y*y*y;
+		y = y * (y3 + 2*x) / (2*y3 + x);
+		y3 = y*y*y;
+		y = y * (y3 + 2*x) / (2*y3 + x);
+		return (float)y;
+	}
+
 	public static void rgb2lab(int R, int G, int B, int[] lab) {
 	    //http://www.brucelindbloom.com
 
@@ -21,26 +80,10 @@ public class CIELab extends ColorSpace {
 	    float Yr = 1.0f;
 	    float Zr = 0.825211f;
 
-	    // RGB to XYZ
-	    r = R/255f; //R 0..1
-	    g = G/255f; //G 0..1
-	    b = B/255f; //B 0..1
-
-	    // assuming sRGB (D65)
-	    if (r <= 0.04045)
-	        r = r/12;
-	    else
-	        r = (float) Math.pow((r+0.055)/1.055,2.4);
-
-	    if (g <= 0.04045)
-	        g = g/12;
-	    else
-	        g = (float) Math.pow((g+0.055)/1.055,2.4);
-
-	    if (b <= 0.04045)
-	        b = b/12;
-	    else
-	        b = (float) Math.pow((b+0.055)/1.055,2.4);
+	    // RGB to XYZ assuming sRGB (D65)
+	    r = LINEAR[R];
+	    g = LINEAR[G];
+	    b = LINEAR[B];
 
 	    X =  0.436052025f*r     + 0.385081593f*g + 0.143087414f *b;
 	    Y =  0.222491598f*r     + 0.71688606f *g + 0.060621486f *b;
@@ -52,17 +95,17 @@ public class CIELab extends ColorSpace {
 	    zr = Z/Zr;
 
 	    if ( xr > eps )
-	        fx =  (float) Math.pow(xr, 1/3.);
+	        fx =  cbrt(xr);
 	    else
 	        fx = (float) ((k * xr + 16.) / 116.);
 
 	    if ( yr > eps )
-	        fy =  (float) Math.pow(yr, 1/3.);
+	        fy =  cbrt(yr);
 	    else
 	    fy = (float) ((k * yr + 16.) / 116.);
 
 	    if ( zr > eps )
-	        fz =  (float) Math.pow(zr, 1/3.);
+	        fz =  cbrt(zr);
 	    else
 	        fz = (float) ((k * zr + 16.) / 116);
 
@@ -74,6 +117,66 @@ public class CIELab extends ColorSpace {
 	    lab[1] = (int) (as + .5); 
 	    lab[2] = (int) (bs + .5);       
 	} 
+
+	private static final float EPS = 216f/24389f, K = 24389f/27f;
+	private static final float XR = 0.964221f, ZR = 0.825211f; // Reference white D50 as in rgb2lab.
+	private static final float[] RGB_TO_XYZ = {
+		0.436052025f, 0.385081593f, 0.143087414f,
+		0.222491598f, 0.71688606f,  0.060621486f,
+		0.013929122f, 0.097097002f, 0.71418547f};
+	private static final float[] XYZ_TO_RGB = new float[9];
+	static {
+		float[] m = RGB_TO_XYZ;
+		float[] c = { // Cofactors
+			m[4]*m[8]-m[5]*m[7], m[5]*m[6]-m[3]*m[8], m[3]*m[7]-m[4]*m[6],
+			m[2]*m[7]-m[1]*m[8], m[0]*m[8]-m[2]*m[6], m[1]*m[6]-m[0]*m[7],
+			m[1]*m[5]-m[2]*m[4], m[2]*m[3]-m[0]*m[5], m[0]*m[4]-m[1]*m[3]};
+		float det = m[0]*c[0] + m[1]*c[1] + m[2]*c[2];
+		for(int row = 0; row < 3; ++row) {
+			for(int col = 0; col < 3; ++col)
+				XYZ_TO_RGB[3*row+col] = c[3*col+row] / det;
+		}
+	}
+
+	private static float labF(float x) {
+		return x > EPS ? cbrt(x) : (K*x + 16) / 116;
+	}
+
+	private static float labFInv(float f) {
+		float x = f*f*f;
+		return x > EPS ? x : (116*f - 16) / K;
+	}
+
+	/**
+	 * As rgb2lab above, but without rounding: L in [0;100] rather than [0;255].
+	 * @param lab Receives L, a and b.
+	 */
+	public static void rgb2lab(int R, int G, int B, float[] lab) {
+		float r = LINEAR[R], g = LINEAR[G], b = LINEAR[B];
+		float[] m = RGB_TO_XYZ;
+		float fx = labF((m[0]*r + m[1]*g + m[2]*b) / XR);
+		float fy = labF( m[3]*r + m[4]*g + m[5]*b);
+		float fz = labF((m[6]*r + m[7]*g + m[8]*b) / ZR);
+		lab[0] = 116*fy - 16;
+		lab[1] = 500*(fx-fy);
+		lab[2] = 200*(fy-fz);
+	}
+
+	/**
+	 * Inverse of the float rgb2lab. Colors outside sRGB are clamped component wise.
+	 * @return The color as 0xRRGGBB.
+	 */
+	public static int lab2rgb(float L, float a, float b) {
+		float fy = (L + 16) / 116;
+		float X = XR * labFInv(fy + a/500);
+		float Y = labFInv(fy);
+		float Z = ZR * labFInv(fy - b/200);
+		float[] m = XYZ_TO_RGB;
+		int R = fromLinear(m[0]*X + m[1]*Y + m[2]*Z);
+		int G = fromLinear(m[3]*X + m[4]*Y + m[5]*Z);
+		int B = fromLinear(m[6]*X + m[7]*Y + m[8]*Z);
+		return (R << 16) | (G << 8) | B;
+	}
 	
 	public static final long serialVersionUID = 5027741380892134289L;
     public static final ColorSpace CIEXYZ = ColorSpace.getInstance(ColorSpace.CS_CIEXYZ);
@@ -30,12 +30,19 @@ public class ColorDifference {
 	public static final double K2 = .015;
 	
 	public static double diffCIE94(int[] labA, int[] labB) {
-		final int deltaL = labA[0] - labB[0];
-		final int deltaA = labA[1] - labB[1];
-		final int deltaB = labA[2] - labB[2];
+		return diffCIE94(labA, labB[0], labB[1], labB[2]);
+	}
+	
+	/**
+	 * Same as diffCIE94(labA, {lB, aB, bB}) for when the Lab values of b are not stored in an array of their own.
+	 */
+	public static double diffCIE94(int[] labA, int lB, int aB, int bB) {
+		final int deltaL = labA[0] - lB;
+		final int deltaA = labA[1] - aB;
+		final int deltaB = labA[2] - bB;
 	
 		final double c1 = Math.sqrt(labA[1]*labA[1] + labA[2]*labA[2]);
-		final double c2 = Math.sqrt(labB[1]*labB[1] + labB[2]*labB[2]);
+		final double c2 = Math.sqrt(aB*aB + bB*bB);
 		final double deltaC = c1 - c2;
 	
 		double deltaH = deltaA*deltaA + deltaB*deltaB - deltaC*deltaC;
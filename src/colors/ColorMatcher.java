@@ -0,0 +1,334 @@
+package colors;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mosaic.rendering.ProgressCallback;
+
+/**
+ * Finds the closest LEGO color of a set of colors. Each matcher owns its colors and lookup map,
+ * so matchers with different colors can be used from different threads at the same time.
+ *
+ * Mapping for quick lookup discards the lower 2 bits from each color component.
+ * Effectively reducing the size of the color space from 16.777.216 to 262.144
+ *
+ * Each entry of the map is the color closest to the center of the 4x4x4 cube of colors it covers,
+ * so the map is the same whether it is filled lazily or eagerly.
+ * Lookups fill missing entries without locking. Writing the same entry from two threads is
+ * harmless as both write the same value.
+ * Entries are bytes for up to MAX_COLORS_BYTE_MAP colors and chars for up to MAX_COLORS colors.
+ * With eager prefill enabled, setColors starts filling the whole map in the background on all cores.
+ * With a disk cache, maps are read from the cache when available. Otherwise they are filled eagerly
+ * and stored in the cache once complete.
+ */
+public class ColorMatcher {
+	public static final int COMPONENT_SIZE = 64;
+	public static final int MAP_SIZE = COMPONENT_SIZE*COMPONENT_SIZE*COMPONENT_SIZE;
+	public static final int ALGORITHM_VERSION = 1; // Increase when the matching changes. Invalidates maps in the disk cache.
+	public static final String METRIC = "CIE94/intensity, cube centers";
+	public static final int MAX_COLORS_BYTE_MAP = 255; // 0xFF marks missing entries.
+	public static final int MAX_COLORS = 65535; // 0xFFFF marks missing entries.
+
+	private volatile Table table;
+	private volatile boolean eagerPrefill;
+	private volatile ProgressCallback prefillProgressCallback = ProgressCallback.NOP;
+	private volatile LookUpTableCache diskCache;
+
+	public ColorMatcher(LEGOColor[] colors) {
+		setColors(colors);
+	}
+
+	private ColorMatcher(Table table) {
+		this.table = table;
+	}
+
+	/**
+	 * @return A matcher of the current colors which keeps them when the colors of this matcher are changed.
+	 * It shares the map with this matcher, but neither prefills it nor uses the disk cache.
+	 */
+	public ColorMatcher snapshot() {
+		return new ColorMatcher(table);
+	}
+
+	public int size() {
+		return table.colors.length;
+	}
+
+	public LEGOColor[] getColors() {
+		return table.colors;
+	}
+
+	/**
+	 * @return Fingerprint of the colors, their intensities and the matching algorithm.
+	 */
+	public String getFingerprint() {
+		return table.fingerprint;
+	}
+
+	/**
+	 * Set the colors.
+	 * @param colors The colors to set
+	 * @return true if colors were set.
+	 */
+	public boolean setColors(LEGOColor[] colors) {
+		if(colors == null || colors.length < 2)
+			throw new IllegalArgumentException("Not enough colors!");
+		if(colors.length > MAX_COLORS)
+			throw new IllegalArgumentException("too many colors: " + colors.length + " > " + MAX_COLORS);
+		if(table != null && table.colors == colors)
+			return false; // no update.
+
+		Table t = colors.length <= MAX_COLORS_BYTE_MAP ? new ByteTable(colors) : new CharTable(colors);
+		if(loadFromDiskCache(t)) {
+			table = t;
+			return true;
+		}
+		table = t;
+		if(eagerPrefill || diskCache != null)
+			startPrefill(t);
+		else
+			prefillProgressCallback.reportProgress(1000); // Stop showing the progress for the old colors.
+		return true;
+	}
+
+	/**
+	 * @param eager If true, the whole map is filled on all cores as soon as the colors are set.
+	 */
+	public void setEagerPrefill(boolean eager) {
+		if(eagerPrefill == eager)
+			return;
+		eagerPrefill = eager;
+		if(eager)
+			startPrefill(table);
+	}
+
+	public boolean getEagerPrefill() {
+		return eagerPrefill;
+	}
+
+	/**
+	 * @param cache Where completely filled maps are read from and stored. null to disable.
+	 */
+	public void setDiskCache(LookUpTableCache cache) {
+		if(diskCache == cache)
+			return;
+		diskCache = cache;
+		Table t = table;
+		if(cache == null || t.prefilledSlices != null)
+			return;
+		// Entries already filled have the same values as those loaded, so loading into the map in use is safe:
+		if(!loadFromDiskCache(t))
+			startPrefill(t);
+	}
+
+	/**
+	 * @param p Receives the progress of filling the map eagerly. It is reported from the threads filling the map, 
+	 * also while no mosaic is being rendered, so it should not be the progress callback of a stage.
+	 */
+	public void setPrefillProgressCallback(ProgressCallback p) {
+		prefillProgressCallback = p;
+	}
+
+	/**
+	 * @return Progress in promilles of filling the map for the current colors. 1000 if the map is not being filled eagerly.
+	 */
+	public int getPrefillProgress() {
+		Table t = table;
+		if(t.prefilledSlices == null)
+			return 1000;
+		return 1000 * t.prefilledSlices.get() / COMPONENT_SIZE;
+	}
+
+	private boolean loadFromDiskCache(Table t) {
+		LookUpTableCache cache = diskCache;
+		if(cache == null)
+			return false;
+		ByteBuffer buffer = cache.load(t.fingerprint, ALGORITHM_VERSION, t.byteSize());
+		if(buffer == null)
+			return false;
+		t.load(buffer);
+		t.prefilledSlices = new AtomicInteger(COMPONENT_SIZE);
+		prefillProgressCallback.reportProgress(1000);
+		return true;
+	}
+
+	private synchronized void startPrefill(Table t) {
+		if(t.prefilledSlices != null)
+			return; // Already being filled.
+		t.prefilledSlices = new AtomicInteger();
+		prefillProgressCallback.reportProgress(0);
+		ForkJoinPool.commonPool().execute(new PrefillTask(t, 0, COMPONENT_SIZE));
+	}
+
+	public LEGOColor lookUp(int rgb) {
+		int r = LEGOColorLookUp.getRed(rgb);
+		int g = LEGOColorLookUp.getGreen(rgb);
+		int b = LEGOColorLookUp.getBlue(rgb);
+		return lookUp(r, g, b);
+	}
+
+	public LEGOColor lookUp(float[] rgb) {
+		return lookUp((int)rgb[0], (int)rgb[1], (int)rgb[2]);
+	}
+
+	public LEGOColor lookUp(int r, int g, int b) {
+		int indexInMap = (r>>2)*64*64 + (g>>2)*64 + (b>>2);
+		Table t = table; // Read once in case the colors are changed meanwhile.
+		int idx = t.get(indexInMap);
+		if(idx == -1)
+			idx = t.fill(indexInMap);
+		return t.colors[idx];
+	}
+
+	/**
+	 * The colors along with their map. Replaced as a whole when the colors are changed,
+	 * so a background prefill of old colors cannot write into the map of new colors.
+	 */
+	private static abstract class Table {
+		final LEGOColor[] colors;
+		final String fingerprint;
+		final LabKDTree index;
+		volatile AtomicInteger prefilledSlices; // Set when the map is being filled eagerly.
+
+		Table(LEGOColor[] colors) {
+			this.colors = colors;
+			fingerprint = LookUpTableCache.fingerprint(colors, ALGORITHM_VERSION, METRIC);
+			index = new LabKDTree(colors);
+		}
+
+		int fill(int indexInMap) {
+			int[] labInput = new int[3];
+			// Center of the cube covered by the entry:
+			int r = ((indexInMap >> 12) << 2) + 2;
+			int g = (((indexInMap >> 6) & 63) << 2) + 2;
+			int b = ((indexInMap & 63) << 2) + 2;
+			CIELab.rgb2lab(r, g, b, labInput);
+			int idx = index.nearest(labInput);
+			set(indexInMap, idx);
+			return idx;
+		}
+
+		/**
+		 * @return index of the color in colors, or -1 if the entry is missing.
+		 */
+		abstract int get(int indexInMap);
+		abstract void set(int indexInMap, int idx);
+		abstract int byteSize();
+		abstract void load(ByteBuffer buffer);
+		abstract ByteBuffer toByteBuffer();
+	}
+
+	private static class ByteTable extends Table {
+		final byte[] map; // from color to unsigned byte indexing color in colors
+
+		ByteTable(LEGOColor[] colors) {
+			super(colors);
+			map = new byte[MAP_SIZE];
+			Arrays.fill(map, (byte)0xFF);
+		}
+
+		@Override
+		int get(int indexInMap) {
+			int idx = map[indexInMap] & 0xFF;
+			return idx == 0xFF ? -1 : idx;
+		}
+
+		@Override
+		void set(int indexInMap, int idx) {
+			map[indexInMap] = (byte)idx;
+		}
+
+		@Override
+		int byteSize() {
+			return MAP_SIZE;
+		}
+
+		@Override
+		void load(ByteBuffer buffer) {
+			buffer.get(map);
+		}
+
+		@Override
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(map);
+		}
+	}
+
+	private static class CharTable extends Table {
+		final char[] map; // from color to char indexing color in colors
+
+		CharTable(LEGOColor[] colors) {
+			super(colors);
+			map = new char[MAP_SIZE];
+			Arrays.fill(map, (char)0xFFFF);
+		}
+
+		@Override
+		int get(int indexInMap) {
+			int idx = map[indexInMap];
+			return idx == 0xFFFF ? -1 : idx;
+		}
+
+		@Override
+		void set(int indexInMap, int idx) {
+			map[indexInMap] = (char)idx;
+		}
+
+		@Override
+		int byteSize() {
+			return 2*MAP_SIZE;
+		}
+
+		@Override
+		void load(ByteBuffer buffer) {
+			buffer.asCharBuffer().get(map);
+		}
+
+		@Override
+		ByteBuffer toByteBuffer() {
+			ByteBuffer buffer = ByteBuffer.allocate(byteSize());
+			buffer.asCharBuffer().put(map);
+			return buffer;
+		}
+	}
+
+	/**
+	 * Fills the map for a range of red components.
+	 */
+	private class PrefillTask extends RecursiveAction {
+		private static final long serialVersionUID = -3018834561374211460L;
+		private final Table t;
+		private final int fromRed, toRed;
+
+		PrefillTask(Table t, int fromRed, int toRed) {
+			this.t = t;
+			this.fromRed = fromRed;
+			this.toRed = toRed;
+		}
+
+		@Override
+		protected void compute() {
+			if(table != t)
+				return; // Colors changed. Stop filling.
+			if(toRed - fromRed > 1) {
+				int mid = (fromRed + toRed) >>> 1;
+				invokeAll(new PrefillTask(t, fromRed, mid), new PrefillTask(t, mid, toRed));
+				return;
+			}
+			for(int i = fromRed*COMPONENT_SIZE*COMPONENT_SIZE; i < toRed*COMPONENT_SIZE*COMPONENT_SIZE; ++i) {
+				if(t.get(i) == -1)
+					t.fill(i);
+			}
+			int done = t.prefilledSlices.incrementAndGet();
+			if(table != t)
+				return;
+			prefillProgressCallback.reportProgress(1000 * done / COMPONENT_SIZE);
+			LookUpTableCache cache = diskCache;
+			if(done == COMPONENT_SIZE && cache != null)
+				cache.store(t.fingerprint, ALGORITHM_VERSION, t.toByteBuffer());
+		}
+	}
+}
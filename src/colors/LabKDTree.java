@@ -0,0 +1,153 @@
+package colors;
+
+import java.util.Arrays;
+
+/**
+ * k-d tree over the Lab values of a palette for finding the color with the smallest
+ * CIE94 difference divided by intensity - the same winner as a linear scan, including
+ * ties going to the lowest palette index.
+ *
+ * CIE94 weights chroma and hue by the chroma of the input color, so for a fixed input
+ * the difference to any palette color is at least |dL|, |da|/sc and |db|/sc where
+ * sc = 1+K1*c1 >= 1. A subtree is skipped when this bound, divided by the largest
+ * intensity in the subtree, exceeds the best difference found so far.
+ *
+ * The tree is implicit: The node of the range [lo;hi) is the palette color at (lo+hi)/2.
+ */
+public class LabKDTree {
+	private static final double EPSILON = 1e-9; // Guards the pruning bound against rounding.
+
+	private final LEGOColor[] colors;
+	private final int[] order; // Palette indices in tree order.
+	private final int[][] labs; // Lab values in tree order.
+	private final double[] intensities; // In tree order.
+	private final byte[] axes; // Split axis of each node.
+	private final double[] maxIntensities; // Largest intensity in the subtree of each node.
+
+	public LabKDTree(LEGOColor[] colors) {
+		this.colors = colors;
+		int size = colors.length;
+		order = new int[size];
+		for(int i = 0; i < size; ++i)
+			order[i] = i;
+		labs = new int[size][];
+		intensities = new double[size];
+		axes = new byte[size];
+		maxIntensities = new double[size];
+		build(0, size);
+		for(int i = 0; i < size; ++i) {
+			labs[i] = colors[order[i]].getLAB();
+			intensities[i] = colors[order[i]].getIntensity();
+		}
+		computeMaxIntensities(0, size);
+	}
+
+	public int size() {
+		return colors.length;
+	}
+
+	private void build(int lo, int hi) {
+		if(hi - lo <= 1)
+			return;
+		// Split on the axis with the largest spread:
+		byte axis = 0;
+		int maxSpread = -1;
+		for(byte a = 0; a < 3; ++a) {
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for(int i = lo; i < hi; ++i) {
+				int v = colors[order[i]].getLAB()[a];
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if(max - min > maxSpread) {
+				maxSpread = max - min;
+				axis = a;
+			}
+		}
+		sort(lo, hi, axis);
+		int mid = (lo+hi) >>> 1;
+		axes[mid] = axis;
+		build(lo, mid);
+		build(mid+1, hi);
+	}
+
+	/*
+	 * Sorts order[lo;hi) on the given axis by sorting (value, index) pairs packed into longs.
+	 */
+	private void sort(int lo, int hi, int axis) {
+		long[] keys = new long[hi-lo];
+		for(int i = lo; i < hi; ++i) {
+			keys[i-lo] = ((long)colors[order[i]].getLAB()[axis] << 32) | order[i];
+		}
+		Arrays.sort(keys);
+		for(int i = lo; i < hi; ++i) {
+			order[i] = (int)keys[i-lo];
+		}
+	}
+
+	private double computeMaxIntensities(int lo, int hi) {
+		if(lo >= hi)
+			return 0;
+		int mid = (lo+hi) >>> 1;
+		double max = intensities[mid];
+		max = Math.max(max, computeMaxIntensities(lo, mid));
+		max = Math.max(max, computeMaxIntensities(mid+1, hi));
+		maxIntensities[mid] = max;
+		return max;
+	}
+
+	/**
+	 * @param lab Lab value of the input color.
+	 * @return Index in the palette of the color with the smallest CIE94 difference divided by intensity.
+	 */
+	public int nearest(int[] lab) {
+		Search s = new Search();
+		s.lab = lab;
+		double c1 = Math.sqrt(lab[1]*lab[1] + lab[2]*lab[2]);
+		s.chromaFactor = 1.0 / (1.0 + ColorDifference.K1*c1);
+		search(0, colors.length, s);
+		return s.bestIndex;
+	}
+
+	private void search(int lo, int hi, Search s) {
+		if(lo >= hi)
+			return;
+		int mid = (lo+hi) >>> 1;
+
+		int[] nodeLab = labs[mid];
+		double diff = ColorDifference.diffCIE94(s.lab, nodeLab) / intensities[mid];
+		int idx = order[mid];
+		if(diff < s.best || (diff == s.best && idx < s.bestIndex)) {
+			s.best = diff;
+			s.bestIndex = idx;
+		}
+
+		int axis = axes[mid];
+		int delta = s.lab[axis] - nodeLab[axis];
+		int nearLo = lo, nearHi = mid, farLo = mid+1, farHi = hi;
+		if(delta >= 0) {
+			nearLo = mid+1;
+			nearHi = hi;
+			farLo = lo;
+			farHi = mid;
+		}
+		search(nearLo, nearHi, s);
+
+		if(farLo >= farHi)
+			return;
+		double bound = Math.abs(delta);
+		if(axis != 0)
+			bound *= s.chromaFactor;
+		bound /= maxIntensities[(farLo+farHi) >>> 1];
+		if(bound * (1 - EPSILON) > s.best)
+			return; // Nothing on the far side can win.
+		search(farLo, farHi, s);
+	}
+
+	private static class Search {
+		int[] lab;
+		double chromaFactor;
+		double best = Double.MAX_VALUE;
+		int bestIndex = Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,180 @@
+package colors;
+
+import io.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Folder of completely filled color lookup maps, so switching back to a known set of colors
+ * doesn't require computing the map again.
+ *
+ * A map is stored in a file named by the fingerprint of the colors (RGB values, intensities and
+ * the matching algorithm). The file starts with a header with the version of the matching
+ * algorithm - files of other versions are deleted when found.
+ * The least recently used files are deleted when there are too many or they take up too much space.
+ * load() reads a map into the heap and closes the file, as the matcher fills its own map from it anyway,
+ * so files are never held open and can always be replaced or deleted.
+ */
+public class LookUpTableCache {
+	public static final String DEFAULT_FOLDER = "color_tables";
+	public static final String FILE_SUFFIX = ".lut";
+	public static final int DEFAULT_MAX_FILES = 32;
+	public static final long DEFAULT_MAX_BYTES = 16*1024*1024;
+	private static final int MAGIC = 0x4C44544C; // "LDTL"
+	private static final int HEADER_SIZE = 12; // magic, version, size.
+
+	private final File folder;
+	private final int maxFiles;
+	private final long maxBytes;
+
+	public LookUpTableCache(File folder, int maxFiles, long maxBytes) {
+		this.folder = folder;
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+	}
+
+	public LookUpTableCache() {
+		this(new File(DEFAULT_FOLDER), DEFAULT_MAX_FILES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @return fingerprint of everything the lookup map depends on.
+	 */
+	public static String fingerprint(LEGOColor[] colors, int algorithmVersion, String metric) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			ByteBuffer b = ByteBuffer.allocate(12 * colors.length + 8);
+			b.putInt(algorithmVersion);
+			b.putInt(colors.length);
+			for(LEGOColor c : colors) {
+				b.putInt(c.getRGB().getRGB());
+				b.putDouble(c.getIntensity());
+			}
+			md.update(b.array());
+			md.update(metric.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for(byte d : md.digest())
+				sb.append(String.format("%02x", d));
+			return sb.toString();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private File file(String fingerprint) {
+		return new File(folder, fingerprint + FILE_SUFFIX);
+	}
+
+	private static void delete(File file) {
+		if(file.exists() && !file.delete())
+			Log.log("Could not delete color table " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Reads the map stored for the fingerprint.
+	 * @param size Size of the map in bytes.
+	 * @return Buffer positioned at the start of the map, or null if not found.
+	 */
+	public synchronized ByteBuffer load(String fingerprint, int algorithmVersion, int size) {
+		File file = file(fingerprint);
+		if(!file.isFile())
+			return null;
+		ByteBuffer buffer = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(file.length() == HEADER_SIZE + size && in.readInt() == MAGIC && in.readInt() == algorithmVersion && in.readInt() == size) {
+					byte[] a = new byte[size];
+					in.readFully(a);
+					buffer = ByteBuffer.wrap(a);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch(IOException e) {
+			Log.log(e);
+			return null;
+		}
+		if(buffer == null) {
+			Log.log("Deleting outdated color table " + file.getName());
+			delete(file);
+			return null;
+		}
+		if(!file.setLastModified(System.currentTimeMillis())) // Recently used.
+			Log.log("Could not mark color table as used: " + file.getName());
+		return buffer;
+	}
+
+	/**
+	 * Stores a completely filled map and deletes the least recently used maps if the limits are exceeded.
+	 */
+	public synchronized void store(String fingerprint, int algorithmVersion, ByteBuffer map) {
+		if(!folder.isDirectory() && !folder.mkdirs()) {
+			Log.log("Could not create folder for color tables: " + folder.getAbsolutePath());
+			return;
+		}
+		File file = file(fingerprint);
+		File tmp = new File(folder, fingerprint + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(algorithmVersion);
+				out.writeInt(map.remaining());
+				byte[] a = new byte[map.remaining()];
+				map.get(a);
+				out.write(a);
+			}
+			finally {
+				out.close();
+			}
+			delete(file);
+			if(!tmp.renameTo(file)) {
+				Log.log("Could not store color table " + file.getAbsolutePath());
+				delete(tmp);
+				return;
+			}
+		}
+		catch(IOException e) {
+			Log.log(e);
+			delete(tmp);
+			return;
+		}
+		evict();
+	}
+
+	private void evict() {
+		File[] files = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if(files == null)
+			return;
+		// Most recently used first:
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long bytes = 0;
+		for(int i = 0; i < files.length; ++i) {
+			bytes += files[i].length();
+			if(i >= maxFiles || bytes > maxBytes)
+				delete(files[i]);
+		}
+	}
+}
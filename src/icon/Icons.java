@@ -14,6 +14,7 @@ import java.util.TreeSet;
 import colors.*;
 import mosaic.controllers.ColorController;
 import mosaic.ui.*;
+import transforms.OrderedDitheringTransform;
 
 public class Icons {
 	public static final int SIZE_LARGE = 32;
@@ -886,6 +887,65 @@ public class Icons {
 		};
 	}	
 	
+	/**
+	 * The halves dithered into each other by the threshold map, so maps of different patterns look different.
+	 */
+	public static Icon orderedDithering(final int size, final OrderedDitheringTransform.ThresholdMap map) {
+		return new BrickGraphicsIcon(size) {
+			@Override
+			public void paint(Graphics2D g2) {
+				final int BLOCK_SIZE = 2;
+				Shape clip = g2.getClip();
+				g2.clip(new Ellipse2D.Double(0, 0, size, size));
+				for(int y = 0; y < size; y += BLOCK_SIZE) {
+					for(int x = 0; x < size; x += BLOCK_SIZE) {
+						// Blue to red from left to right, dithered between size/4 and 3*size/4:
+						float red = Math.min(1, Math.max(0, (x + BLOCK_SIZE/2f)/size*2 - 0.5f));
+						g2.setColor(red > map.get(x/BLOCK_SIZE, y/BLOCK_SIZE) + 0.5f ? Color.RED : Color.BLUE);
+						g2.fillRect(x, y, BLOCK_SIZE, BLOCK_SIZE);
+					}
+				}
+				g2.setClip(clip);
+				
+				g2.setColor(Color.BLACK);
+				g2.drawOval(0, 0, size-1, size-1);
+			}
+		};
+	}
+	
+	/**
+	 * The Floyd-Steinberg icon with the kernel on top: The pixel dithered is black, and the pixels 
+	 * the error is spread to are white by their share of the error.
+	 * @param dxs Column of each weight relative to the pixel dithered.
+	 * @param dys Row of each weight relative to the pixel dithered.
+	 */
+	public static Icon errorDiffusion(final int size, final int[] dxs, final int[] dys, final int[] weights) {
+		final Icon background = floydSteinberg(size);
+		return new BrickGraphicsIcon(size) {
+			@Override
+			public void paint(Graphics2D g2) {
+				background.paintIcon(null, g2, 0, 0);
+				
+				int left = 0, right = 0, depth = 0, max = 1;
+				for(int i = 0; i < weights.length; i++) {
+					left = Math.max(left, -dxs[i]);
+					right = Math.max(right, dxs[i]);
+					depth = Math.max(depth, dys[i]);
+					max = Math.max(max, weights[i]);
+				}
+				int cell = Math.max(2, size/10);
+				int x0 = size/2 - (left+right+1)*cell/2 + left*cell;
+				int y0 = size/2 - (depth+1)*cell/2;
+				for(int i = 0; i < weights.length; i++) {
+					g2.setColor(new Color(1f, 1f, 1f, 0.3f + 0.7f*weights[i]/max));
+					g2.fillRect(x0 + dxs[i]*cell, y0 + dys[i]*cell, cell, cell);
+				}
+				g2.setColor(Color.BLACK);
+				g2.fillRect(x0, y0, cell, cell);
+			}
+		};
+	}
+	
 	public static Icon saturation(final int size) {
 		return new BrickGraphicsIcon(size) {
 			@Override
@@ -912,6 +972,24 @@ public class Icons {
 			}
 		};
 	}
+	public static BrickGraphicsIcon levels(final int size) {
+		return new BrickGraphicsIcon(size) {
+			@Override
+			public void paint(Graphics2D g2) {
+				// Bars of a histogram from black to white:
+				int bars = 4;
+				int w = size/bars;
+				for(int i = 0; i < bars; i++) {
+					int h = size*(i % 2 == 0 ? 2 : 3)/4;
+					int gray = 255*i/(bars-1);
+					g2.setColor(new Color(gray, gray, gray));
+					g2.fillRect(i*w, size-h, w, h);
+					g2.setColor(Color.BLACK);
+					g2.drawRect(i*w, size-h, w-1, h-1);
+				}
+			}
+		};
+	}
 	public static BrickGraphicsIcon gamma(final int size) {
 		return new BrickGraphicsIcon(size) {
 			@Override
@@ -8,6 +8,7 @@ import java.awt.event.*;
 import java.awt.*;
 
 import javax.swing.event.*;
+import transforms.MosaicSnapshot;
 import transforms.ToBricksTransform;
 import mosaic.io.BrickGraphicsState;
 import mosaic.rendering.PipelineMosaicListener;
@@ -257,8 +258,8 @@ public class MagnifierController implements ChangeListener, IChangeMonitor, KeyL
 	}
 
 	@Override
-	public void mosaicChanged(Dimension mosaicImageSize) {
-		this.coreImageSizeInCoreUnits = mosaicImageSize;
+	public void mosaicChanged(MosaicSnapshot mosaic) {
+		this.coreImageSizeInCoreUnits = mosaic.getSize();
 		sanify();
 	}
 }
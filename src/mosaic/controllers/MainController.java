@@ -2,11 +2,14 @@ package mosaic.controllers;
 
 import io.*;
 
+import java.awt.Dimension;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
 import java.io.*;
 import javax.swing.filechooser.FileFilter;
 import java.util.*;
-import javax.imageio.*;
+import java.util.concurrent.ExecutionException;
+
 import javax.swing.*;
 import javax.swing.event.*;
 import colors.parsers.*;
@@ -16,6 +19,7 @@ import mosaic.rendering.RenderingProgressBar;
 import mosaic.ui.*;
 import mosaic.ui.dialogs.PrintDialog;
 import mosaic.ui.dialogs.ToBricksTypeFilterDialog;
+import transforms.ScalePlanner;
 
 /**
  * @author LD
@@ -51,6 +55,8 @@ public class MainController implements ModelHandler<BrickGraphicsState> {
 	// Image (for model state):
 	private String imageFileName;
 	private DataFile imageDataFile;
+	private ImageDecoder decodedImage; // null when not decoded from imageDataFile.
+	private SwingWorker<ImageDecoder, Void> redecoder; // Decoding more of the image in the background, or null.
 	private File mosaicFile;
 
 	private MainController() {		
@@ -87,6 +93,16 @@ public class MainController implements ModelHandler<BrickGraphicsState> {
 		legend.setBrickedView(mw.getBrickedView());
 		listeners.add(mw);
 		toBricksController.initiateUI(mw);
+		// Decode more of a subsampled image when the construction or crop needs it:
+		ChangeListener resolutionListener = new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				ensureImageResolution();
+			}
+		};
+		toBricksController.addChangeListener(resolutionListener);
+		mw.getImagePreparingView().getCropper().addChangeListener(resolutionListener);
+		ensureImageResolution();
 		optionsController.initiateOptionsDialog(mw);
 		model.addModelHandler(this); // Make sure the load of image file is late in the process when loading a model.
 		Log.log("LDDMC main window operational after " + (System.currentTimeMillis()-startTime) + "ms.");
@@ -137,6 +153,17 @@ public class MainController implements ModelHandler<BrickGraphicsState> {
 		}
 	}
 	
+	/**
+	 * Loads the image file, decoding only the resolution needed when the image is huge.
+	 */
+	public void setImage(File imageFile) throws IOException {
+		imageDataFile = new DataFile(imageFile);		
+		imageFileName = imageFile.getCanonicalPath();
+		mosaicFile = null;
+		decodeImage();
+		notifyListeners(this);
+	}
+	
 	public void setImage(BufferedImage image, File imageFile) throws IOException {
 		if(imageFile == null) {
 			imageDataFile = new DataFile(image);
@@ -147,10 +174,75 @@ public class MainController implements ModelHandler<BrickGraphicsState> {
 			imageFileName = imageFile.getCanonicalPath();			
 		}
 		mosaicFile = null;
+		decodedImage = null;
 		pipeline.setStartImage(image);
 		notifyListeners(this);
 	}
 	
+	private void decodeImage() throws IOException {
+		useDecodedImage(ImageDecoder.decode(imageDataFile, getNeededImageSize()));
+	}
+	
+	private void useDecodedImage(ImageDecoder decoded) {
+		decodedImage = decoded;
+		if(decodedImage.getSubsampling() > 1) {
+			BufferedImage image = decodedImage.getImage();
+			Log.log("Image of " + decodedImage.getSize().width + "x" + decodedImage.getSize().height + " decoded at every " + 
+					decodedImage.getSubsampling() + " pixels to " + image.getWidth() + "x" + image.getHeight());
+		}
+		pipeline.setStartImage(decodedImage.getImage());
+	}
+	
+	/**
+	 * @return Size of the whole image for the crop to be ScalePlanner.SAFE_FACTOR times the construction in elements.
+	 */
+	private Dimension getNeededImageSize() {
+		if(mw == null)
+			return new Dimension(0, 0); // Decoded again when the construction is known.
+		Dimension min = toBricksController.getMinimalInputImageSize();
+		Rectangle2D.Double crop = mw.getImagePreparingView().getCropper().getRelativeCrop();
+		return new Dimension((int)Math.ceil(ScalePlanner.SAFE_FACTOR * min.width / Math.max(0.01, crop.width)), 
+				(int)Math.ceil(ScalePlanner.SAFE_FACTOR * min.height / Math.max(0.01, crop.height)));
+	}
+	
+	/**
+	 * Decodes the image again in the background if it was subsampled more than the construction and crop now allow.
+	 * The pipeline continues with the image decoded so far until the new one is ready.
+	 * Called on the event dispatch thread.
+	 */
+	private void ensureImageResolution() {
+		if(redecoder != null || decodedImage == null || decodedImage.getSubsampling() == 1)
+			return; // The resolution is checked again when the decoding running is done.
+		final Dimension needed = getNeededImageSize();
+		if(ImageDecoder.subsampling(decodedImage.getSize(), needed) >= decodedImage.getSubsampling())
+			return;
+		final DataFile file = imageDataFile;
+		redecoder = new SwingWorker<ImageDecoder, Void>() {
+			@Override
+			protected ImageDecoder doInBackground() throws IOException {
+				return ImageDecoder.decode(file, needed);
+			}
+			@Override
+			protected void done() {
+				redecoder = null;
+				try {
+					ImageDecoder decoded = get();
+					if(file != imageDataFile || decodedImage == null || decoded.getSubsampling() >= decodedImage.getSubsampling())
+						return; // Another image was loaded meanwhile.
+					useDecodedImage(decoded);
+					ensureImageResolution(); // The construction or crop may have grown meanwhile.
+				}
+				catch(InterruptedException e) {
+					Log.log(e);
+				}
+				catch(ExecutionException e) {
+					Log.log(e);
+				}
+			}
+		};
+		redecoder.execute();
+	}
+	
 	public void loadMosaicFile(File file) throws IOException {
 		FileInputStream fis = new FileInputStream(file);
 		BufferedReader br = new BufferedReader(new InputStreamReader(fis));
@@ -227,8 +319,7 @@ public class MainController implements ModelHandler<BrickGraphicsState> {
 		imageDataFile = (DataFile)model.get(BrickGraphicsState.ImageFile);
 		if(imageDataFile.isValid()) {
 			try {
-				BufferedImage image = MosaicIO.removeAlpha(ImageIO.read(imageDataFile.fakeStream()));
-				pipeline.setStartImage(image);
+				decodeImage();
 			} catch (IOException e) {
 				Log.log(e);
 			}			
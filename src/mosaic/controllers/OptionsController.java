@@ -8,6 +8,7 @@ import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import transforms.ScaleTransform.ScaleQuality;
+import transforms.FloydSteinbergTransform.ErrorClamp;
 import mosaic.io.BrickGraphicsState;
 import mosaic.ui.MainWindow;
 import mosaic.ui.dialogs.OptionsDialog;
@@ -19,12 +20,18 @@ import mosaic.ui.dialogs.OptionsDialog;
  * - PrepareAllowFilterReordering(true),
  * - PrepareScaleQuality(ScaleTransform.ScaleQuality.NearestNeighbor),
  * - PrepareScaleBeforePreparing(true),
+ * - PrepareSaturationLabChroma(false),
+ * - ColorsPrefillLookUpTable(false),
+ * - ColorsStoreLookUpTables(false),
+ * - ColorsParallelDithering(false),
+ * - ColorsDitheringErrorClamp(FloydSteinbergTransform.ErrorClamp.COMPATIBILITY),
  */
 public class OptionsController implements ModelHandler<BrickGraphicsState> {
 	private List<ChangeListener> listeners;
 	
-	private boolean allowFilterReordering, scaleBeforePreparing, optimizeUseOfBricksBeforeExporting;
+	private boolean allowFilterReordering, scaleBeforePreparing, saturationLabChroma, optimizeUseOfBricksBeforeExporting, prefillColorLookUpTable, storeColorLookUpTables, parallelDithering;
 	private ScaleQuality scaleQuality;
+	private ErrorClamp ditheringErrorClamp;
 	
 	private OptionsDialog optionsDialog;
 
@@ -59,6 +66,38 @@ public class OptionsController implements ModelHandler<BrickGraphicsState> {
 		notifyListeners(new ChangeEvent(caller));		
 	}	
 	
+	public boolean getSaturationLabChroma() {
+		return saturationLabChroma;
+	}
+	public void setSaturationLabChroma(boolean b, Object caller) {
+		saturationLabChroma = b;
+		notifyListeners(new ChangeEvent(caller));		
+	}	
+	
+	public boolean getPrefillColorLookUpTable() {
+		return prefillColorLookUpTable;
+	}
+	public void setPrefillColorLookUpTable(boolean b, Object caller) {
+		prefillColorLookUpTable = b;
+		notifyListeners(new ChangeEvent(caller));		
+	}	
+	
+	public boolean getStoreColorLookUpTables() {
+		return storeColorLookUpTables;
+	}
+	public void setStoreColorLookUpTables(boolean b, Object caller) {
+		storeColorLookUpTables = b;
+		notifyListeners(new ChangeEvent(caller));		
+	}	
+	
+	public boolean getParallelDithering() {
+		return parallelDithering;
+	}
+	public void setParallelDithering(boolean b, Object caller) {
+		parallelDithering = b;
+		notifyListeners(new ChangeEvent(caller));		
+	}	
+	
 	public boolean getOptimizeUseOfBricksBeforeExporting() {
 		return optimizeUseOfBricksBeforeExporting;
 	}
@@ -75,6 +114,14 @@ public class OptionsController implements ModelHandler<BrickGraphicsState> {
 		notifyListeners(new ChangeEvent(caller));		
 	}	
 	
+	public ErrorClamp getDitheringErrorClamp() {
+		return ditheringErrorClamp;
+	}
+	public void setDitheringErrorClamp(ErrorClamp c, Object caller) {
+		ditheringErrorClamp = c;
+		notifyListeners(new ChangeEvent(caller));		
+	}	
+	
 	public OptionsDialog getOptionsDialog() {
 		return optionsDialog;
 	}
@@ -94,7 +141,12 @@ public class OptionsController implements ModelHandler<BrickGraphicsState> {
 		model.set(BrickGraphicsState.PrepareAllowFilterReordering, allowFilterReordering);
 		model.set(BrickGraphicsState.PrepareScaleBeforePreparing, scaleBeforePreparing);	
 		model.set(BrickGraphicsState.PrepareScaleQuality, scaleQuality.ordinal());
+		model.set(BrickGraphicsState.PrepareSaturationLabChroma, saturationLabChroma);
 		model.set(BrickGraphicsState.ExportOptimize, optimizeUseOfBricksBeforeExporting);		
+		model.set(BrickGraphicsState.ColorsPrefillLookUpTable, prefillColorLookUpTable);
+		model.set(BrickGraphicsState.ColorsStoreLookUpTables, storeColorLookUpTables);
+		model.set(BrickGraphicsState.ColorsParallelDithering, parallelDithering);
+		model.set(BrickGraphicsState.ColorsDitheringErrorClamp, ditheringErrorClamp.ordinal());
 	}
 
 	@Override
@@ -102,6 +154,11 @@ public class OptionsController implements ModelHandler<BrickGraphicsState> {
 		allowFilterReordering = (Boolean)model.get(BrickGraphicsState.PrepareAllowFilterReordering);
 		scaleBeforePreparing = (Boolean)model.get(BrickGraphicsState.PrepareScaleBeforePreparing);
 		scaleQuality = ScaleQuality.values()[(Integer)model.get(BrickGraphicsState.PrepareScaleQuality)];
+		saturationLabChroma = (Boolean)model.get(BrickGraphicsState.PrepareSaturationLabChroma);
 		optimizeUseOfBricksBeforeExporting = (Boolean)model.get(BrickGraphicsState.ExportOptimize);
+		prefillColorLookUpTable = (Boolean)model.get(BrickGraphicsState.ColorsPrefillLookUpTable);
+		storeColorLookUpTables = (Boolean)model.get(BrickGraphicsState.ColorsStoreLookUpTables);
+		parallelDithering = (Boolean)model.get(BrickGraphicsState.ColorsParallelDithering);
+		ditheringErrorClamp = ErrorClamp.values()[(Integer)model.get(BrickGraphicsState.ColorsDitheringErrorClamp)];
 	}
 }
@@ -21,7 +21,7 @@ import mosaic.rendering.PipelineImageListener;
 import mosaic.rendering.PipelineMosaicListener;
 import mosaic.ui.*;
 import mosaic.ui.dialogs.PrintDialog;
-import transforms.ToBricksTransform;
+import transforms.MosaicSnapshot;
 import ui.ProgressDialog;
 import icon.*;
 
@@ -595,7 +595,7 @@ public class PrintController implements Printable, ModelHandler<BrickGraphicsSta
 
 		// draw magnified:
 		g2.translate(indentX, indentY);
-		ToBricksTransform tbTransform = magnifierController.getTBTransform();
+		MosaicSnapshot mosaic = magnifierController.getTBTransform().getSnapshot(); // The same for all magnifiers of the page.
 
 		Rectangle basicUnitRect = magnifierController.getCoreRect();
 		//int smallPage = 1;
@@ -610,7 +610,7 @@ public class PrintController implements Printable, ModelHandler<BrickGraphicsSta
 				basicUnitRect.y = (/*numPagesHeight-1-*/ (page / numPagesWidth) * magnifiersPerPage.height + y)*basicUnitRect.height; // Add numPagesHeight-1- in first parenthesis to start from bottom.
 
 				g2.translate(xIndent, 0);
-				LEGOColor.CountingLEGOColor[] m = tbTransform.draw(g2, basicUnitRect, smallMagnifierSize, uiController.showColors(), used != null); // TODO set last parameter false for an overview on each magnifier
+				LEGOColor.CountingLEGOColor[] m = mosaic.draw(g2, basicUnitRect, smallMagnifierSize, uiController.showColors(), used != null); // TODO set last parameter false for an overview on each magnifier
 				
 				
 				
@@ -804,7 +804,7 @@ public class PrintController implements Printable, ModelHandler<BrickGraphicsSta
 	}
 
 	@Override
-	public void mosaicChanged(Dimension mosaicImageSize) {
-		lastMosaicSize = mosaicImageSize;
+	public void mosaicChanged(MosaicSnapshot mosaic) {
+		lastMosaicSize = mosaic.getSize();
 	}
 }
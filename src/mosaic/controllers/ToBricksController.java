@@ -15,10 +15,14 @@ import ui.IconizedTextfield;
 import ui.LividTextField;
 import java.util.*;
 import bricks.*;
+import transforms.DitheringEngine;
+import mosaic.rendering.SpeculativeRenderer;
 
 public class ToBricksController implements ChangeListener, ModelHandler<BrickGraphicsState> {
+	public static final int PROPAGATION_PERCENTAGE_STEP = 10; // Of the buttons for less and more.
 	private JButton[] toBricksTypeButtons;
 	private LividTextField propagationPercentageField;
+	private JComboBox<DitheringEngine> ditheringEngineBox;
 	private IconizedTextfield sizeFieldWidth, sizeFieldHeight; 
 	private JButton buttonLessPP, buttonMorePP, buttonToggleLockSizeRatio, buttonToggleDividerLocation;
 	private List<ChangeListener> listeners;
@@ -31,6 +35,7 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 	private boolean[] availableToBricksTypes;
 	private boolean sizeChoiceFromWidth, sizeRatioLocked, showDividerLocationButton;
 	private int propagationPercentage;
+	private DitheringEngine ditheringEngine;
 	private volatile boolean uiReady;
 	
 	public ToBricksController(final MainController controller, final Model<BrickGraphicsState> model) {
@@ -73,6 +78,7 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		toolBar.add(propagationPercentageField);
 		toolBar.add(labelPercent);
 		toolBar.add(buttonMorePP);		
+		toolBar.add(ditheringEngineBox);
 
 		toolBar.add(sizeFieldWidth);
 		toolBar.add(labelX);
@@ -103,7 +109,7 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		buttonLessPP.addActionListener(new ActionListener() {			
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				propagationPercentage -= 10;
+				propagationPercentage -= PROPAGATION_PERCENTAGE_STEP;
 				update();
 			}
 		});		
@@ -133,11 +139,26 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		buttonMorePP.addActionListener(new ActionListener() {			
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				propagationPercentage += 10;
+				propagationPercentage += PROPAGATION_PERCENTAGE_STEP;
 				update();
 			}
 		});
 		buttonMorePP.setToolTipText("Increase dithering by 10%");
+		
+		ditheringEngineBox = new JComboBox<DitheringEngine>(DitheringEngine.values());
+		ditheringEngineBox.setSelectedItem(ditheringEngine);
+		ditheringEngineBox.setMaximumSize(ditheringEngineBox.getPreferredSize());
+		ditheringEngineBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				DitheringEngine selected = (DitheringEngine)ditheringEngineBox.getSelectedItem();
+				if(selected == null || selected == ditheringEngine)
+					return;
+				ditheringEngine = selected;
+				update();
+			}
+		});
+		ditheringEngineBox.setToolTipText("Way of dithering. Ordered and blue noise dithering are the fastest.");
 
 		sizeFieldWidth = new IconizedTextfield(4, toBricksType.getMeasureIcon().get(ToBricksIconType.MeasureWidth, Icons.SIZE_SMALL));
 		sizeFieldWidth.setMargin(new Insets(PAD, PAD, PAD, Icons.SIZE_SMALL));
@@ -223,10 +244,59 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		return new Dimension(w, h);
 	}
 	
+	/**
+	 * @return Size of the construction when changing to type, as the size shown is kept for the new type.
+	 */
+	public Dimension getConstructionSizeInBasicUnits(ToBricksType type) {
+		int w = constructionWidthInBasicUnits;
+		int h = constructionHeightInBasicUnits;
+		if(sizeChoiceFromWidth) {
+			w = type.closestCompatibleWidth(w, type.getUnitWidth());
+			if(sizeRatioLocked)
+				h = type.closestCompatibleHeight(Math.round(w/originalWidthToHeight), type.getUnitHeight());
+			else
+				h = type.closestCompatibleHeight(h, type.getUnitHeight());
+		}
+		else {
+			h = type.closestCompatibleHeight(h, type.getUnitHeight());		
+			if(sizeRatioLocked)
+				w = type.closestCompatibleWidth(Math.round(originalWidthToHeight*h), type.getUnitWidth());
+			else
+				w = type.closestCompatibleWidth(w, type.getUnitWidth());
+		}
+		return new Dimension(w, h);
+	}
+	
+	/**
+	 * @return The settings most likely chosen next, built from the settings of this controller: 
+	 * Propagation percentage one step down and up, followed by the other available types.
+	 * The SpeculativeRenderer skips the types while the prepared image depends on the type.
+	 */
+	public List<SpeculativeRenderer.State> getLikelyNextStates() {
+		List<SpeculativeRenderer.State> states = new ArrayList<SpeculativeRenderer.State>();
+		for(int pp : new int[]{propagationPercentage - PROPAGATION_PERCENTAGE_STEP, propagationPercentage + PROPAGATION_PERCENTAGE_STEP}) {
+			if(pp < 0 || pp > 100)
+				continue;
+			states.add(new SpeculativeRenderer.State(toBricksType, pp, constructionWidthInBasicUnits, constructionHeightInBasicUnits));
+		}
+		ToBricksType[] types = ToBricksType.values();
+		for(int i = 0; i < availableToBricksTypes.length && i < types.length; ++i) {
+			if(!availableToBricksTypes[i] || types[i] == toBricksType)
+				continue;
+			Dimension size = getConstructionSizeInBasicUnits(types[i]);
+			states.add(new SpeculativeRenderer.State(types[i], propagationPercentage, size.width, size.height));
+		}
+		return states;
+	}
+	
 	public int getPropagationPercentage() {
 		return propagationPercentage;
 	}
 	
+	public DitheringEngine getDitheringEngine() {
+		return ditheringEngine;
+	}
+	
 	public boolean[] getAvailableToBricksTypes() {
 		return availableToBricksTypes;
 	}
@@ -282,32 +352,18 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		if(!propagationPercentageField.getText().trim().equals(propagationPercentage+""))
 			propagationPercentageField.setText(propagationPercentage+"");
 		propagationPercentageField.setVisible(!uiController.showMagnifier());
+		if(ditheringEngineBox.getSelectedItem() != ditheringEngine)
+			ditheringEngineBox.setSelectedItem(ditheringEngine);
+		ditheringEngineBox.setVisible(!uiController.showMagnifier());
 		
 		labelX.setVisible(!uiController.showMagnifier());
 		labelPercent.setVisible(!uiController.showMagnifier());
 		buttonMorePP.setVisible(!uiController.showMagnifier());
 		buttonLessPP.setVisible(!uiController.showMagnifier());
 		
-		if(sizeChoiceFromWidth) {
-			constructionWidthInBasicUnits = toBricksType.closestCompatibleWidth(
-					constructionWidthInBasicUnits, toBricksType.getUnitWidth());
-			if(sizeRatioLocked)
-				constructionHeightInBasicUnits = toBricksType.closestCompatibleHeight(
-						Math.round(constructionWidthInBasicUnits/originalWidthToHeight), toBricksType.getUnitHeight());
-			else
-				constructionHeightInBasicUnits = toBricksType.closestCompatibleHeight(
-						constructionHeightInBasicUnits, toBricksType.getUnitHeight());
-		}
-		else {
-			constructionHeightInBasicUnits = toBricksType.closestCompatibleHeight(
-					constructionHeightInBasicUnits, toBricksType.getUnitHeight());		
-			if(sizeRatioLocked)
-				constructionWidthInBasicUnits = toBricksType.closestCompatibleWidth(
-						Math.round(originalWidthToHeight*constructionHeightInBasicUnits), toBricksType.getUnitWidth());
-			else
-				constructionWidthInBasicUnits = toBricksType.closestCompatibleWidth(
-						constructionWidthInBasicUnits, toBricksType.getUnitWidth());
-		}
+		Dimension size = getConstructionSizeInBasicUnits(toBricksType);
+		constructionWidthInBasicUnits = size.width;
+		constructionHeightInBasicUnits = size.height;
 		String w = "" + (constructionWidthInBasicUnits/toBricksType.getUnitWidth());
 		if(!sizeFieldWidth.getText().trim().equals(w))
 			sizeFieldWidth.setText(w);
@@ -330,6 +386,7 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		model.set(BrickGraphicsState.ToBricksHeight, constructionHeightInBasicUnits);
 		model.set(BrickGraphicsState.ToBricksTypeIndex, toBricksType.ordinal());
 		model.set(BrickGraphicsState.ToBricksPropagationPercentage, propagationPercentage);
+		model.set(BrickGraphicsState.ToBricksDitheringEngine, ditheringEngine.ordinal());
 		model.set(BrickGraphicsState.ToBricksFiltered, availableToBricksTypes);
 		model.set(BrickGraphicsState.ToBricksSizeRatioLocked, sizeRatioLocked);
 		model.set(BrickGraphicsState.DividerLocationButtonShow, showDividerLocationButton);
@@ -339,6 +396,7 @@ public class ToBricksController implements ChangeListener, ModelHandler<BrickGra
 		this.constructionWidthInBasicUnits = (Integer)model.get(BrickGraphicsState.ToBricksWidth);
 		this.constructionHeightInBasicUnits = (Integer)model.get(BrickGraphicsState.ToBricksHeight);
 		propagationPercentage = (Integer)model.get(BrickGraphicsState.ToBricksPropagationPercentage);
+		ditheringEngine = DitheringEngine.values()[((Integer)model.get(BrickGraphicsState.ToBricksDitheringEngine))%DitheringEngine.values().length];
 		originalWidthToHeight = constructionWidthInBasicUnits/(float)constructionHeightInBasicUnits;
 		int tbtl = ToBricksType.values().length;
 		toBricksType = ToBricksType.values()[((Integer)model.get(BrickGraphicsState.ToBricksTypeIndex))%tbtl];
@@ -6,6 +6,8 @@ import java.awt.*;
 import java.awt.geom.Rectangle2D;
 
 import transforms.ScaleTransform;
+import transforms.FloydSteinbergTransform;
+import transforms.DitheringEngine;
 
 import bricks.ToBricksType;
 import mosaic.controllers.*;
@@ -61,6 +63,7 @@ public enum BrickGraphicsState implements ModelState {
 	
 	// Prepare:
 	PrepareSharpness(1.0f),
+	PrepareAutoLevels(0.0f),
 	PrepareGamma(new float[]{1.0f, 1.0f, 1.0f}),
 	PrepareBrightness(new float[]{1.0f, 1.0f, 1.0f}),
 	PrepareContrast(new float[]{1.0f, 1.0f, 1.0f}),
@@ -73,12 +76,18 @@ public enum BrickGraphicsState implements ModelState {
 	PrepareAllowFilterReordering(false),
 	PrepareScaleQuality(ScaleTransform.ScaleQuality.NearestNeighbor.ordinal()),
 	PrepareScaleBeforePreparing(false),
+	PrepareSaturationLabChroma(false),
+	ColorsPrefillLookUpTable(false),
+	ColorsStoreLookUpTables(false),
+	ColorsParallelDithering(false),
+	ColorsDitheringErrorClamp(FloydSteinbergTransform.ErrorClamp.COMPATIBILITY.ordinal()),
 	
 	// ToBrick:
 	ToBricksWidth(240),
 	ToBricksHeight(240),
 	ToBricksSizeRatioLocked(true),
 	ToBricksPropagationPercentage(50),
+	ToBricksDitheringEngine(DitheringEngine.FLOYD_STEINBERG.ordinal()),
 	SelectedColors(new int[]{0, /*4,*/ 15, 19, 28, 70, 71, 72, 84, 308, 320, 484}),
 	ToBricksFiltered(ToBricksType.getDefaultTypes()),
 	ToBricksTypeIndex(0),
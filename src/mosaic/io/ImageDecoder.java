@@ -0,0 +1,160 @@
+package mosaic.io;
+
+import io.DataFile;
+
+import java.awt.Dimension;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes images to TYPE_INT_RGB with transparent pixels shown on white, as MosaicIO.removeAlpha().
+ *
+ * The size is read from the header before decoding. Images larger than FULL_DECODE_PIXELS are subsampled
+ * while they are decoded, keeping every n'th pixel of every n'th row for the largest n still giving an image
+ * of at least the size asked for. The full image is then never held in memory.
+ *
+ * 8 bit RGB images are decoded straight into the int raster returned. Transparent pixels are put on white
+ * in that same raster. Other images are decoded by the reader and then drawn on white.
+ */
+public class ImageDecoder {
+	public static final long FULL_DECODE_PIXELS = 24000000; // Images up to this size are never subsampled.
+	public static final int MIN_SIDE = 2048; // Decoded images are at least this size in the longer direction, for showing them.
+
+	private final int width, height, subsampling;
+	private final BufferedImage image;
+
+	private ImageDecoder(int width, int height, int subsampling, BufferedImage image) {
+		this.width = width;
+		this.height = height;
+		this.subsampling = subsampling;
+		this.image = image;
+	}
+
+	/**
+	 * @param minSize Size the decoded image should have at least. Not more than the full image is decoded.
+	 */
+	public static ImageDecoder decode(DataFile file, Dimension minSize) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(file.fakeStream());
+		ImageReader reader = reader(iis);
+		try {
+			int w = reader.getWidth(0);
+			int h = reader.getHeight(0);
+			int subsampling = subsampling(new Dimension(w, h), minSize);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			int type = destinationType(reader.getRawImageType(0));
+			if(type != BufferedImage.TYPE_CUSTOM) {
+				BufferedImage out = new BufferedImage((w + subsampling - 1)/subsampling, (h + subsampling - 1)/subsampling, type);
+				param.setDestination(out);
+				try {
+					reader.read(0, param);
+					return new ImageDecoder(w, h, subsampling, type == BufferedImage.TYPE_INT_ARGB ? onWhite(out) : out);
+				}
+				catch(IIOException e) {
+					// The reader could not decode into the raster. Decode again as below:
+					reader.dispose();
+					iis.close();
+					iis = ImageIO.createImageInputStream(file.fakeStream());
+					reader = reader(iis);
+					param = reader.getDefaultReadParam();
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+			}
+			return new ImageDecoder(w, h, subsampling, MosaicIO.removeAlpha(reader.read(0, param)));
+		}
+		finally {
+			reader.dispose();
+			if(iis != null)
+				iis.close();
+		}
+	}
+
+	private static ImageReader reader(ImageInputStream iis) throws IOException {
+		if(iis == null)
+			throw new IOException("The image could not be read.");
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if(!readers.hasNext()) {
+			iis.close();
+			throw new IOException("The image format is not supported.");
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(iis, true, true);
+		return reader;
+	}
+
+	/**
+	 * @return The subsampling decoding an image of the size to at least minSize and MIN_SIDE. 1 for images of at most FULL_DECODE_PIXELS.
+	 */
+	public static int subsampling(Dimension size, Dimension minSize) {
+		if((long)size.width * size.height <= FULL_DECODE_PIXELS)
+			return 1;
+		int s = Math.max(size.width, size.height) / MIN_SIDE;
+		s = Math.min(s, size.width / Math.max(1, minSize.width));
+		s = Math.min(s, size.height / Math.max(1, minSize.height));
+		return Math.max(1, s);
+	}
+
+	/**
+	 * @return TYPE_INT_RGB or TYPE_INT_ARGB for 8 bit sRGB rasters with the same bands, otherwise TYPE_CUSTOM.
+	 */
+	private static int destinationType(ImageTypeSpecifier raw) {
+		if(raw == null)
+			return BufferedImage.TYPE_CUSTOM;
+		ColorModel cm = raw.getColorModel();
+		if(cm instanceof IndexColorModel || !cm.getColorSpace().isCS_sRGB() || cm.getColorSpace().getType() != ColorSpace.TYPE_RGB ||
+		   cm.isAlphaPremultiplied() || raw.getSampleModel().getNumBands() != cm.getNumComponents())
+			return BufferedImage.TYPE_CUSTOM;
+		for(int i = 0; i < cm.getNumComponents(); ++i) {
+			if(cm.getComponentSize(i) != 8)
+				return BufferedImage.TYPE_CUSTOM;
+		}
+		return cm.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * Puts the pixels of image on white in its own raster.
+	 * @return A TYPE_INT_RGB image of the same raster.
+	 */
+	private static BufferedImage onWhite(BufferedImage image) {
+		int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		for(int i = 0; i < pixels.length; ++i) {
+			int argb = pixels[i];
+			int a = argb >>> 24;
+			if(a == 0xFF) {
+				pixels[i] = argb & 0xFFFFFF;
+				continue;
+			}
+			int white = 0xFF * (0xFF - a);
+			int r = (((argb >> 16) & 0xFF) * a + white + 127) / 0xFF;
+			int g = (((argb >> 8) & 0xFF) * a + white + 127) / 0xFF;
+			int b = ((argb & 0xFF) * a + white + 127) / 0xFF;
+			pixels[i] = (r << 16) | (g << 8) | b;
+		}
+		int[] masks = {0xFF0000, 0xFF00, 0xFF};
+		WritableRaster raster = Raster.createPackedRaster(image.getRaster().getDataBuffer(), image.getWidth(), image.getHeight(), image.getWidth(), masks, null);
+		return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * @return Size of the full image.
+	 */
+	public Dimension getSize() {
+		return new Dimension(width, height);
+	}
+
+	/**
+	 * @return Every how many pixels and rows were decoded. 1 when the full image was decoded.
+	 */
+	public int getSubsampling() {
+		return subsampling;
+	}
+}
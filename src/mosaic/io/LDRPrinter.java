@@ -19,17 +19,17 @@ import transforms.*;
  * @author LD
  */
 public class LDRPrinter {
-	private ToBricksTransform tbt;
+	private MosaicSnapshot mosaic; // Exported as shown.
 	private ToBricksType type;
 	private Dimension blockSize, size;
 	private boolean optimize;
 	
 	public LDRPrinter(MainController mc, BrickedView brickedView) {
-		tbt = brickedView.getToBricksTransform();
-		type = mc.getToBricksController().getToBricksType();
+		mosaic = brickedView.getMosaic();
+		type = mosaic.getToBricksType();
 		MagnifierController magnifier = mc.getMagnifierController();
 		blockSize = magnifier.getSizeInMosaicBlocks();
-		size = brickedView.getBrickedSize();
+		size = mosaic.getSize();
 		optimize = mc.getOptionsController().getOptimizeUseOfBricksBeforeExporting();
 	}
 	
@@ -128,7 +128,7 @@ public class LDRPrinter {
 		
 		for(int y = 0; y < size.height/10; y+=blockSize.height) {
 			for(int x = 0; x < size.width/10; x+=blockSize.width) {
-				tbt.buildLastInstructions(builder, new Rectangle(x,y,blockSize.width, blockSize.height));
+				mosaic.buildInstructions(builder, new Rectangle(x,y,blockSize.width, blockSize.height));
 			}
 			out.println("0 STEP");
 		}
@@ -146,7 +146,7 @@ public class LDRPrinter {
 
 	private void buildWithPlatesFromTop(PrintWriter out, int elementWidth, int elementDepth, String partNumber) {
 		if(optimize) {
-			LEGOColorGrid unoptimized = tbt.getMainTransform().lastInstructions();
+			LEGOColorGrid unoptimized = mosaic.getColors();
 			int unoptimizedWidth = unoptimized.getWidth(); 
 			int width = unoptimizedWidth * elementWidth; 
 			int unoptimizedDepth = unoptimized.getHeight();
@@ -213,7 +213,7 @@ public class LDRPrinter {
 
 	private void buildWithPartsSeenFromSide(PrintWriter out, int elementWidth, int elementHeight, String partNumber) {
 		if(optimize) {
-			LEGOColorGrid unoptimized = tbt.getMainTransform().lastInstructions();
+			LEGOColorGrid unoptimized = mosaic.getColors();
 			int unoptimizedWidth = unoptimized.getWidth(); 
 			int width = unoptimizedWidth * elementWidth; 
 			int unoptimizedHeight = unoptimized.getHeight();
@@ -238,7 +238,7 @@ public class LDRPrinter {
 	}
 	
 	private void buildUnoptimized(PrintWriter out, int xMult, int yMult, String orientAndDat) {
-		LEGOColorGrid instructions = tbt.getMainTransform().lastInstructions();
+		LEGOColorGrid instructions = mosaic.getColors();
 		int w = instructions.getWidth();
 		int h = instructions.getHeight();
 		for(int by = (h/blockSize.height)*blockSize.height; by >= 0; by -= blockSize.height) {
@@ -38,15 +38,15 @@ public class LXFPrinter {
 	//public static final String SIDEWAYS_ORIENTATION = "0,0.99999994039535522,0,0.99999994039535522,0,0,0,0,-0.99999982118606567";
 	public static final String SIDEWAYS_ORIENTATION = "0,1,0,1,0,0,0,0,-1";
 	
-	private ToBricksTransform tbt;
+	private MosaicSnapshot mosaic; // Exported as shown.
 	private ToBricksType type;
 	private Dimension size;
 	private boolean optimize;
 	
 	private LXFPrinter(MainController mc, BrickedView brickedView) {
-		tbt = brickedView.getToBricksTransform();
-		type = mc.getToBricksController().getToBricksType();
-		size = brickedView.getBrickedSize();
+		mosaic = brickedView.getMosaic();
+		type = mosaic.getToBricksType();
+		size = mosaic.getSize();
 		optimize = mc.getOptionsController().getOptimizeUseOfBricksBeforeExporting();
 	}
 	
@@ -85,7 +85,7 @@ public class LXFPrinter {
 			zos.putNextEntry(ze);
 			BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB);
 			Graphics2D g2 = (Graphics2D)image.getGraphics();
-			mw.getBrickedView().getToBricksTransform().drawAll(g2, new Dimension(128, 128));
+			printer.mosaic.drawAll(g2, new Dimension(128, 128));
 			ImageIO.write(image, "png", zos);
 			zos.flush();
 		}
@@ -161,7 +161,7 @@ public class LXFPrinter {
 			}
 		};
 		
-		tbt.buildLastInstructions(builder, new Rectangle(0, 0, size.width, size.height));
+		mosaic.buildInstructions(builder, new Rectangle(0, 0, size.width, size.height));
 	}
 	
 	private void buildWith1xXPlatesFromSide(PrintWriter out, boolean isElementSection, int width, String partNumber) {
@@ -192,7 +192,7 @@ public class LXFPrinter {
 			boolean isElementSection, boolean decorationSection) {
 		if(!optimize) {
 			int elementIndex = 0;
-			LEGOColorGrid instructions = tbt.getMainTransform().lastInstructions();
+			LEGOColorGrid instructions = mosaic.getColors();
 			int w = instructions.getWidth();
 			int h = instructions.getHeight();
 			double multX = elementWidth*2*PLATE_HALF_WIDTH;
@@ -212,7 +212,7 @@ public class LXFPrinter {
 			}			
 		}
 		else {
-			LEGOColorGrid unoptimized = tbt.getMainTransform().lastInstructions();
+			LEGOColorGrid unoptimized = mosaic.getColors();
 			int unoptimizedWidth = unoptimized.getWidth(); 
 			int width = unoptimizedWidth * elementWidth; 
 			int unoptimizedDepth = unoptimized.getHeight();
@@ -255,7 +255,7 @@ public class LXFPrinter {
 	
 	private void buildFromSide(PrintWriter out, double startX, double multX, double startY, double multZ, 
 			String element, boolean isElementSection) {
-		LEGOColorGrid instructions = tbt.getMainTransform().lastInstructions();
+		LEGOColorGrid instructions = mosaic.getColors();
 		int w = instructions.getWidth();
 		int h = instructions.getHeight();
 		int i = 0;
@@ -15,6 +15,7 @@ import io.*;
 import icon.*;
 import mosaic.controllers.MainController;
 import mosaic.ui.MainWindow;
+import transforms.MosaicSnapshot;
 
 import java.util.*;
 
@@ -57,16 +58,7 @@ public class MosaicIO {
 			}
 			break;
 		case img:
-			BufferedImage read = removeAlpha(ImageIO.read(file));
-			if(read.getType() != BufferedImage.TYPE_INT_RGB) {
-				int w = read.getWidth();
-				int h = read.getHeight();
-				BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-				int[] rgb = read.getRGB(0, 0, w, h, null, 0, w);
-				copy.setRGB(0, 0, w, h, rgb, 0, w);
-				read = copy;
-			}
-			mc.setImage(read, file);
+			mc.setImage(file);
 			break;
 		default:
 			throw new IllegalStateException("Enum " + FileType.class + " broken: " + fileType);
@@ -256,10 +248,11 @@ public class MosaicIO {
 				if(file == null) 
 					return;
 				try {
-					Dimension d = mw.getBrickedView().getToBricksTransform().getBasicUnitSize();
+					MosaicSnapshot mosaic = mw.getBrickedView().getToBricksTransform().getSnapshot();
+					Dimension d = mosaic.getBasicUnitSize();
 					BufferedImage image = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_RGB);
 					Graphics2D g2 = (Graphics2D)image.getGraphics();
-					mw.getBrickedView().getToBricksTransform().drawAll(g2, d);
+					mosaic.drawAll(g2, d);
 					saveImage(image, file);
 					JOptionPane.showMessageDialog(mw, "Snapshot saved sucessfully!", "File saved",JOptionPane.INFORMATION_MESSAGE);
 					Log.log("Saved snapshot: " + file.getName());
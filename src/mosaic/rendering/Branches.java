@@ -0,0 +1,91 @@
+package mosaic.rendering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Independent sub-stages of a stage in the pipeline. The branches are forked to run at the same time
+ * and joined before the stage continues with their results.
+ *
+ * Each branch reports progress to a callback of its own. The progress of the stage is the average
+ * progress of the branches, so it doesn't jump back when a branch starts.
+ * When a branch is cancelled or fails, the exception is thrown from join() once all branches have stopped,
+ * as the branches may share transforms with the stages run after the exception.
+ */
+public class Branches<T> {
+	public interface Branch<T> {
+		T run(ProgressCallback progressCallback, CancellationToken cancel);
+	}
+
+	private final List<Branch<T>> branches = new ArrayList<Branch<T>>();
+
+	public void add(Branch<T> branch) {
+		branches.add(branch);
+	}
+
+	/**
+	 * Runs all branches, one of them in the calling thread, and waits for them to complete.
+	 * @return The results in the order the branches were added.
+	 */
+	public List<T> join(ProgressCallback progressCallback, final CancellationToken cancel) {
+		final MergedProgress progress = new MergedProgress(progressCallback, branches.size());
+		List<RecursiveTask<T>> tasks = new ArrayList<RecursiveTask<T>>();
+		for(int i = 0; i < branches.size(); i++) {
+			final int branchIndex = i;
+			final Branch<T> branch = branches.get(i);
+			tasks.add(new RecursiveTask<T>() {
+				private static final long serialVersionUID = -4632530157224914018L;
+
+				@Override
+				protected T compute() {
+					ProgressCallback p = progress.branch(branchIndex);
+					T result = branch.run(p, cancel);
+					p.reportProgress(1000); // Also when the result was buffered.
+					return result;
+				}
+			});
+		}
+		for(int i = 1; i < tasks.size(); i++)
+			tasks.get(i).fork();
+		if(!tasks.isEmpty())
+			tasks.get(0).quietlyInvoke();
+		for(ForkJoinTask<T> task : tasks)
+			task.quietlyJoin();
+		List<T> results = new ArrayList<T>();
+		for(RecursiveTask<T> task : tasks)
+			results.add(task.join()); // Throws the exception of the first branch failing.
+		return results;
+	}
+
+	private static class MergedProgress {
+		private final ProgressCallback progressCallback;
+		private final int[] progress; // Of each branch.
+		private int reported = -1;
+
+		MergedProgress(ProgressCallback progressCallback, int branches) {
+			this.progressCallback = progressCallback;
+			progress = new int[branches];
+		}
+
+		ProgressCallback branch(final int branchIndex) {
+			return new ProgressCallback() {
+				@Override
+				public void reportProgress(int progressInPromilles) {
+					synchronized(MergedProgress.this) {
+						progress[branchIndex] = progressInPromilles;
+						int sum = 0;
+						for(int p : progress)
+							sum += p;
+						int merged = sum / progress.length;
+						if(merged == reported)
+							return;
+						reported = merged;
+						progressCallback.reportProgress(merged);
+					}
+				}
+			};
+		}
+	}
+}
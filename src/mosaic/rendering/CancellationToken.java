@@ -0,0 +1,24 @@
+package mosaic.rendering;
+
+/**
+ * Tells a transform that its result is no longer needed. Long running transforms check the token 
+ * for each row or tile, and stop by throwing a CancelledException.
+ */
+public abstract class CancellationToken {
+	public static final CancellationToken NONE = new CancellationToken() {
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+	};
+	
+	public abstract boolean isCancelled();
+	
+	/**
+	 * @throws CancelledException if cancelled.
+	 */
+	public void check() {
+		if(isCancelled())
+			throw new CancelledException();
+	}
+}
@@ -0,0 +1,16 @@
+package mosaic.rendering;
+
+/**
+ * Thrown by a transform when its CancellationToken is cancelled. The transform has no result.
+ */
+public class CancelledException extends RuntimeException {
+	private static final long serialVersionUID = 4310873146251097315L;
+
+	public CancelledException() {
+		super("Cancelled");
+	}
+	
+	public CancelledException(Throwable cause) {
+		super(cause); // Used when rethrown from another thread.
+	}
+}
@@ -0,0 +1,68 @@
+package mosaic.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of measured durations: Count, mean and maximum of all, and percentiles of the most recent.
+ * @author LD
+ */
+public class LatencyStats {
+	public static final int RECENT = 256;
+	
+	private final String name;
+	private final long[] recent = new long[RECENT]; // Ring buffer of nanoseconds.
+	private long count, totalNanos, maxNanos, lastNanos;
+	
+	public LatencyStats(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public synchronized void record(long nanos) {
+		recent[(int)(count % RECENT)] = nanos;
+		count++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+		lastNanos = nanos;
+	}
+	
+	public synchronized long getCount() {
+		return count;
+	}
+	
+	public synchronized double getLastMs() {
+		return lastNanos / 1e6;
+	}
+	
+	public synchronized double getMeanMs() {
+		return count == 0 ? 0 : totalNanos / 1e6 / count;
+	}
+	
+	public synchronized double getMaxMs() {
+		return maxNanos / 1e6;
+	}
+	
+	/**
+	 * @param percentile in [0;100]
+	 * @return The percentile of the most recent RECENT durations.
+	 */
+	public synchronized double getRecentPercentileMs(double percentile) {
+		int n = (int)Math.min(count, RECENT);
+		if(n == 0)
+			return 0;
+		long[] sorted = new long[n];
+		System.arraycopy(recent, 0, sorted, 0, n);
+		Arrays.sort(sorted);
+		int idx = (int)Math.ceil(percentile / 100 * n) - 1;
+		return sorted[Math.max(0, Math.min(n-1, idx))] / 1e6;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: n=%d, last %.1f ms, mean %.1f ms, p50 %.1f ms, p99 %.1f ms, max %.1f ms", 
+				name, count, getLastMs(), getMeanMs(), getRecentPercentileMs(50), getRecentPercentileMs(99), getMaxMs());
+	}
+}
@@ -2,43 +2,101 @@ package mosaic.rendering;
 
 import io.Log;
 
-import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.swing.SwingUtilities;
+
+import transforms.MosaicSnapshot;
+import transforms.StageCache;
 import transforms.ToBricksTransform;
 import transforms.Transform;
 
+/**
+ * Runs the transforms on the start image in a thread of its own, and notifies listeners of the results.
+ * 
+ * A round starts as soon as the pipeline is invalidated, unless a debounce is set for the source of the 
+ * invalidation: Then the round starts when the source has been quiet for the debounce time.
+ * Invalidations while waiting are coalesced into one round. An invalidation during a round cancels the round: 
+ * Transforms check the cancellation token of the round for each row or tile and stop. Then a new round starts.
+ * Transforms only buffer complete results, so a cancelled round leaves nothing behind.
+ * Transforms render with a snapshot of their settings, so settings changed by the UI during a round only cancel it.
+ * The time from the first invalidation until its result has been delivered to the listeners is measured.
+ * Each stage is measured by StageStats, which are available through JMX and Flight Recorder.
+ * When a round has completed, the SpeculativeRenderer renders the mosaic for the settings likely chosen next.
+ *
+ * The prepared image and the mosaic are delivered to their listeners on the event dispatch thread without 
+ * waiting for it, so the pipeline never blocks on the UI. The mosaic is delivered as an immutable MosaicSnapshot. 
+ * When the UI is busy, only the latest results are delivered.
+ *
+ * When rendering to bricks has recently been slow, a preview of the mosaic is delivered before it is rendered.
+ * The complete mosaic replaces the preview, also if the preview hasn't yet been delivered. Previews are not cached.
+ */
 public class Pipeline extends Thread {
-	public static final int WAIT_TIME_MS = 150;
+	public static final int LOG_LATENCY_EVERY_ROUNDS = 100;
+	public static final double PREVIEW_AFTER_MS = 100; // Preview when 10% of recent renderings to bricks took longer.
 	
 	private ArrayList<Transform> transforms;
+	private ArrayList<StageStats> stageStats; // Of transforms.
 	private ToBricksTransform toBricksTransform;
+	private StageStats toBricksStats;
 
 	private ArrayList<PipelineImageListener> inImageListeners, preparedImageListeners;
 	private ArrayList<PipelineMosaicListener> mosaicListeners;
-	private Object token = new Object(); // For locking (lastInvalidated, transforms, preparedImageListeners and mosaicListeners).
+	private Object token = new Object(); // For locking (invalidation state, transforms, preparedImageListeners and mosaicListeners). Notified on invalidation.
 	private BufferedImage startImage;
-	private long lastInvalidated; // Synchronized. May only be accessed when token is held!
+	// Invalidation state. Synchronized. May only be accessed when token is held!
+	private volatile long invalidations; // Number of invalidations so far. Read without the lock by the cancellation token of a round.
+	private long startRoundAtNanos; // Debounced time for starting the next round.
+	private boolean pending; // Whether there are invalidations not yet picked up by a round.
+	private long pendingSinceNanos; // Time of the first of these.
+	private Map<Object, Long> debounceNanos = new IdentityHashMap<Object, Long>();
+	private long abortedRounds;
+	private final LatencyStats latency = new LatencyStats("Invalidation to render");
+	private final LatencyStats previewLatency = new LatencyStats("Invalidation to preview");
 	private RenderingProgressBar renderingProgressBar;
+	// Results waiting for the event dispatch thread. null when nothing is waiting:
+	private final AtomicReference<BufferedImage> pendingPreparedImage = new AtomicReference<BufferedImage>();
+	private final AtomicReference<MosaicDelivery> pendingMosaic = new AtomicReference<MosaicDelivery>();
+	private final SpeculativeRenderer speculativeRenderer = new SpeculativeRenderer();
 
 	public Pipeline(RenderingProgressBar renderingProgressBar) {
 		transforms = new ArrayList<Transform>();
+		stageStats = new ArrayList<StageStats>();
 		inImageListeners = new ArrayList<PipelineImageListener>();
 		preparedImageListeners = new ArrayList<PipelineImageListener>();
 		mosaicListeners = new ArrayList<PipelineMosaicListener>();
 		this.renderingProgressBar = renderingProgressBar;
+		speculativeRenderer.register();
 	}
 	
 	public void addTransform(Transform t) {
+		addTransform(t.getClass().getSimpleName(), t);
+	}
+	/**
+	 * @param name Name of the stage in statistics.
+	 * @return The statistics of the stage.
+	 */
+	public StageStats addTransform(String name, Transform t) {
+		StageStats stats = new StageStats(name);
 		synchronized(token) {
 			transforms.add(t);
+			stageStats.add(stats);
+			stats.register(stageStats.size() + " " + name);
 		}
 		renderingProgressBar.registerTransform(t);
+		return stats;
 	}
 	public void setToBricksTransform(ToBricksTransform toBricksTransform) {
 		this.toBricksTransform = toBricksTransform;
+		toBricksStats = new StageStats("To bricks");
+		toBricksStats.register(toBricksStats.getName());
 		renderingProgressBar.registerTransform(toBricksTransform);
+		toBricksTransform.getColorMatcher().setPrefillProgressCallback(renderingProgressBar.getBackgroundProgressCallback());
 	}
 	public void addInImageListener(PipelineImageListener l) {
 		inImageListeners.add(l);
@@ -56,9 +114,78 @@ public class Pipeline extends Thread {
 		}
 	}
 	
+	/**
+	 * Sets how long to wait for invalidations from source to stop before starting a round.
+	 * @param source Object passed to invalidate(Object). 
+	 * @param ms 0 to start rounds right away.
+	 */
+	public void setDebounce(Object source, long ms) {
+		synchronized(token) {
+			if(ms <= 0)
+				debounceNanos.remove(source);
+			else
+				debounceNanos.put(source, ms*1000000);
+		}
+	}
+	
 	public void invalidate() {
+		invalidate(null);
+	}
+	
+	/**
+	 * @param source What caused the invalidation. Used for looking up the debounce.
+	 */
+	public void invalidate(Object source) {
+		long now = System.nanoTime();
 		synchronized(token) {
-			lastInvalidated = System.currentTimeMillis();
+			Long debounce = source == null ? null : debounceNanos.get(source);
+			startRoundAtNanos = debounce == null ? now : now + debounce;
+			if(!pending) {
+				pending = true;
+				pendingSinceNanos = now;
+			}
+			invalidations++;
+			token.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return Time from invalidation until the listeners have been notified of the result.
+	 */
+	public LatencyStats getLatencyStats() {
+		return latency;
+	}
+	
+	/**
+	 * @return Time from invalidation until the listeners have been notified of a preview.
+	 */
+	public LatencyStats getPreviewLatencyStats() {
+		return previewLatency;
+	}
+	
+	/**
+	 * @return Statistics of the stages in the order they are run, ending with the stage to bricks if set.
+	 */
+	public List<StageStats> getStageStats() {
+		List<StageStats> ret = new ArrayList<StageStats>();
+		synchronized(token) {
+			ret.addAll(stageStats);
+		}
+		if(toBricksStats != null)
+			ret.add(toBricksStats);
+		return ret;
+	}
+	
+	public SpeculativeRenderer getSpeculativeRenderer() {
+		return speculativeRenderer;
+	}
+	
+	/**
+	 * @return Number of rounds stopped by an invalidation.
+	 */
+	public long getAbortedRounds() {
+		synchronized(token) {
+			return abortedRounds;
 		}
 	}
 	
@@ -71,61 +198,148 @@ public class Pipeline extends Thread {
 		invalidate();
 	}
 	
+	private static class MosaicDelivery {
+		final MosaicSnapshot mosaic;
+		final long pendingSince;
+		
+		MosaicDelivery(MosaicSnapshot mosaic, long pendingSince) {
+			this.mosaic = mosaic;
+			this.pendingSince = pendingSince;
+		}
+	}
+	
+	private void deliverPreparedImage(BufferedImage image) {
+		if(pendingPreparedImage.getAndSet(image) != null)
+			return; // Already scheduled.
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				BufferedImage image = pendingPreparedImage.getAndSet(null);
+				PipelineImageListener[] listeners;
+				synchronized(token) {
+					listeners = preparedImageListeners.toArray(new PipelineImageListener[preparedImageListeners.size()]);
+				}
+				for(PipelineImageListener l : listeners)
+					l.imageChanged(image);
+			}
+		});
+	}
+	
+	private void deliverMosaic(MosaicDelivery delivery) {
+		if(pendingMosaic.getAndSet(delivery) != null)
+			return; // Already scheduled.
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				MosaicDelivery delivery = pendingMosaic.getAndSet(null);
+				PipelineMosaicListener[] listeners;
+				synchronized(token) {
+					listeners = mosaicListeners.toArray(new PipelineMosaicListener[mosaicListeners.size()]);
+				}
+				for(PipelineMosaicListener l : listeners)
+					l.mosaicChanged(delivery.mosaic);
+				if(delivery.mosaic.isPreview())
+					previewLatency.record(System.nanoTime() - delivery.pendingSince);
+				else
+					recordLatency(delivery.pendingSince);
+			}
+		});
+	}
+	
 	@Override
 	public void run() {
 		long lastRunFor = 0;
 		while(true) {
+			long round, pendingSince;
 			try {
-				sleep(WAIT_TIME_MS);
+				synchronized(token) {
+					while(true) {
+						if(invalidations != lastRunFor) {
+							long wait = startRoundAtNanos - System.nanoTime();
+							if(wait <= 0)
+								break;
+							token.wait(wait / 1000000, (int)(wait % 1000000));
+						}
+						else
+							token.wait();
+					}
+					round = lastRunFor = invalidations;
+					pendingSince = pendingSinceNanos;
+					pending = false;
+				}
 			} catch (InterruptedException e) {
 				Log.log(e);
 				Log.log("Pipeline thread dead. Closing down.");
 				System.exit(1);
+				return;
 			}
-			synchronized(token) {
-				if(lastInvalidated <= lastRunFor)
-					continue;
-			}
-			lastRunFor = lastInvalidated;
-			runRound();
+			runRound(round, pendingSince);
 		}
 	}
 	
-	private void runRound() {
+	private void runRound(final long round, long pendingSince) {
 		if(startImage == null)
 			return;
-		long timeThatThisRoundRunsFor;
-		synchronized(token) {
-			timeThatThisRoundRunsFor = lastInvalidated;
-		}
+		CancellationToken cancel = new CancellationToken() {
+			@Override
+			public boolean isCancelled() {
+				return round != invalidations;
+			}
+		};
 		// Run pipeline:
 		BufferedImage image = startImage;
 		Transform[] copyTransforms;
+		StageStats[] copyStats;
 		synchronized(token) {
 			copyTransforms = new Transform[transforms.size()];
 			copyTransforms = transforms.toArray(copyTransforms);
+			copyStats = stageStats.toArray(new StageStats[stageStats.size()]);
 		}		
-		for(Transform t : copyTransforms) {
-			synchronized(token) {
-				if(timeThatThisRoundRunsFor != lastInvalidated)
-					return; // Start new round.
+		try {
+			for(int i = 0; i < copyTransforms.length; i++) {
+				cancel.check();
+				image = copyStats[i].run(copyTransforms[i], image, cancel);
 			}
-			image = t.transform(image);
-		}
-		// Notify listeners:
-		synchronized(token) {
-			for(PipelineImageListener l : preparedImageListeners) {
-				l.imageChanged(image);			
-			}	
+			deliverPreparedImage(image);
 			if(toBricksTransform != null) {
-				Dimension imageSize = new Dimension(image.getWidth(), image.getHeight());
-				toBricksTransform.transform(image); // Returns null.
-				imageSize = toBricksTransform.getTransformedSize(imageSize);
-				for(PipelineMosaicListener l : mosaicListeners) {
-					l.mosaicChanged(imageSize);
-				}			
+				if(shouldPreview())
+					deliverMosaic(new MosaicDelivery(toBricksTransform.preview(image, cancel), pendingSince));
+				toBricksStats.run(toBricksTransform, image, cancel); // Returns null. Publishes the snapshot.
+				deliverMosaic(new MosaicDelivery(toBricksTransform.getSnapshot(), pendingSince));
+				speculativeRenderer.speculate(image, toBricksTransform, cancel);
+			}
+		}
+		catch(CancelledException e) {
+			synchronized(token) {
+				// Start new round. Its latency counts from the invalidations this round didn't render:
+				if(!pending || pendingSince - pendingSinceNanos < 0)
+					pendingSinceNanos = pendingSince;
+				pending = true;
+				abortedRounds++;
 			}
+			return;
 		}
 		renderingProgressBar.resetProgress();
+		if(toBricksTransform == null)
+			recordLatency(pendingSince);
+	}
+	
+	/**
+	 * @return true before the first rendering to bricks, and when at least 10% of the recent ones were slow.
+	 */
+	private boolean shouldPreview() {
+		LatencyStats stats = toBricksStats.getLatencyStats();
+		return stats.getCount() == 0 || stats.getRecentPercentileMs(90) >= PREVIEW_AFTER_MS;
+	}
+	
+	private void recordLatency(long pendingSince) {
+		latency.record(System.nanoTime() - pendingSince);
+		if(latency.getCount() % LOG_LATENCY_EVERY_ROUNDS == 0) {
+			Log.log(previewLatency.toString());
+			Log.log(latency.toString() + ", " + getAbortedRounds() + " rounds stopped. " + StageCache.getShared());
+			for(StageStats stats : getStageStats())
+				Log.log(stats.toString());
+			Log.log(speculativeRenderer.toString());
+		}
 	}
 }
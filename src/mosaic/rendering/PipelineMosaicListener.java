@@ -1,7 +1,13 @@
 package mosaic.rendering;
 
-import java.awt.Dimension;
+import transforms.MosaicSnapshot;
 
+/**
+ * Notified on the event dispatch thread. 
+ */
 public interface PipelineMosaicListener {
-	void mosaicChanged(Dimension mosaicImageSize);
+	/**
+	 * @param mosaic The mosaic rendered. It doesn't change, so it may be kept and drawn later.
+	 */
+	void mosaicChanged(MosaicSnapshot mosaic);
 }
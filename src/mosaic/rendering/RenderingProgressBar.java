@@ -11,6 +11,9 @@ import transforms.Transform;
 
 /**
  * Progress shown by painting icons in the middle, then swiping over them.
+ * Progress may be reported from several threads, such as by the branches of a stage.
+ * The branches of a stage report their merged progress, so the bar doesn't jump back and forth.
+ * Work in the background, which is not part of a round, is shown as a thin line along the bottom.
  * @author LD
  */
 public class RenderingProgressBar extends JPanel {
@@ -19,9 +22,12 @@ public class RenderingProgressBar extends JPanel {
 	public static final Color PROGRESS_BAR_COLOR = new Color(0, 0, 255, OPACITY);
 	public static final int NUM_TRANSFORMS = 9; // For easy concurrency.
 	public static final int WAIT_MS_UNTIL_SHOW = 300;
+	public static final int BACKGROUND_PROGRESS_HEIGHT = 3;
 	
 	private Transform[] transforms;
-	private int currentSection, currentSectionProgressInPromilles, numTranforms;
+	private int currentSection, currentSectionProgressInPromilles; // Synchronized.
+	private int backgroundProgressInPromilles = 1000; // Synchronized.
+	private int numTranforms;
 	private long currentStartTime;
 	
 	public RenderingProgressBar() {
@@ -31,7 +37,9 @@ public class RenderingProgressBar extends JPanel {
 	}
 	
 	public void resetProgress() {
-		currentSection = currentSectionProgressInPromilles = 0;
+		synchronized(this) {
+			currentSection = currentSectionProgressInPromilles = 0;
+		}
 		repaint();
 	}
 	
@@ -44,18 +52,50 @@ public class RenderingProgressBar extends JPanel {
 			public void reportProgress(int progressInPromilles) {
 				if(progressInPromilles < 0 || progressInPromilles > 1000)
 					throw new IllegalArgumentException("Promille should be in [0;1000]: " + progressInPromilles);
-				if(currentSection == idx && currentSectionProgressInPromilles == progressInPromilles)
-					return; // no change. No reason for callback.
-				currentSection = idx;
-				currentSectionProgressInPromilles = progressInPromilles;
+				synchronized(RenderingProgressBar.this) {
+					if(currentSection == idx && currentSectionProgressInPromilles == progressInPromilles)
+						return; // no change. No reason for callback.
+					currentSection = idx;
+					currentSectionProgressInPromilles = progressInPromilles;
+				}
 				repaint();
 			}
 		});
 	}
 	
+	/**
+	 * @return Callback for progress of work in the background, such as filling the color lookup table. 
+	 * It is shown independently of the rounds of the pipeline. 1000 hides it.
+	 */
+	public ProgressCallback getBackgroundProgressCallback() {
+		return new ProgressCallback() {
+			@Override
+			public void reportProgress(int progressInPromilles) {
+				if(progressInPromilles < 0 || progressInPromilles > 1000)
+					throw new IllegalArgumentException("Promille should be in [0;1000]: " + progressInPromilles);
+				synchronized(RenderingProgressBar.this) {
+					if(backgroundProgressInPromilles == progressInPromilles)
+						return;
+					backgroundProgressInPromilles = progressInPromilles;
+				}
+				repaint();
+			}
+		};
+	}
+	
 	@Override
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
+		int currentSection, currentSectionProgressInPromilles, backgroundProgressInPromilles;
+		synchronized(this) {
+			currentSection = this.currentSection;
+			currentSectionProgressInPromilles = this.currentSectionProgressInPromilles;
+			backgroundProgressInPromilles = this.backgroundProgressInPromilles;
+		}
+		if(backgroundProgressInPromilles < 1000) {
+			g.setColor(PROGRESS_BAR_COLOR);
+			g.fillRect(0, getHeight()-BACKGROUND_PROGRESS_HEIGHT, getWidth()*backgroundProgressInPromilles/1000, BACKGROUND_PROGRESS_HEIGHT);
+		}
 		if(currentSection == 0 && currentSectionProgressInPromilles == 0) {
 			currentStartTime = -1;
 			return; // Clear!
@@ -71,9 +111,9 @@ public class RenderingProgressBar extends JPanel {
 		int sectionWidth = width / numTranforms;
 		// Paint icons:
 		g2.translate(-sectionWidth/2 - height/2, 2);
-		for(Transform t : transforms) {
+		for(int i = 0; i < numTranforms; i++) {
 			g2.translate(sectionWidth, 0);
-			t.paintIcon(g2, height);
+			transforms[i].paintIcon(g2, height);
 		}
 		g2.translate(sectionWidth/2 + height/2 - numTranforms*sectionWidth, -2);
 		// Paint progress:
@@ -0,0 +1,290 @@
+package mosaic.rendering;
+
+import io.Log;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import bricks.ToBricksType;
+import transforms.StageCache;
+import transforms.ToBricksTransform;
+
+/**
+ * Renders the mosaic for the settings most likely chosen next while the pipeline is idle, such as 
+ * the neighbouring propagation percentages and the other types of construction. 
+ * The results go to the shared StageCache, where the next round finds them when one of these settings is chosen.
+ *
+ * Speculation starts when a round has completed and gives way to real work: The rendering is cancelled 
+ * by the next invalidation of the pipeline, just like the round. 
+ * CPU use is limited by running at most maxThreads renderings at the same time. 
+ * Parallel work of the transforms, such as bands of rows, runs in these threads as well. 
+ * The threads have the lowest priority, but HotSpot on Linux ignores thread priorities by default 
+ * (see -XX:ThreadPriorityPolicy), so there the limit rests on maxThreads alone.
+ * Memory is limited by the bytes added to the StageCache after each round, so speculation can only push 
+ * out maxBytes of the least recently used results. Renderings expected to exceed the limit are skipped.
+ *
+ * The likely next states are only settings. They are applied to copies of the transform of the pipeline 
+ * on the pipeline thread once the round has completed, so the event dispatch thread never copies the 
+ * transform while a round uses it.
+ *
+ * A speculation is used when the next round renders the same settings of the same image. 
+ * Otherwise it is wasted, although its results stay in the cache for later.
+ * Other types of construction are therefore only rendered while the prepared image doesn't depend on the type,
+ * as it does when the image is scaled for the construction before it is prepared.
+ */
+public class SpeculativeRenderer implements SpeculativeRendererMBean {
+	public static final int DEFAULT_MAX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+	public static final long DEFAULT_MAX_BYTES = StageCache.DEFAULT_MAX_BYTES/4;
+
+	private volatile List<State> likelyNextStates = Collections.emptyList();
+	private volatile boolean preparedImageDependsOnType = true;
+	private ForkJoinPool pool; // null when disabled.
+	private int maxThreads;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	// State of the latest speculation:
+	private long generation;
+	private BufferedImage speculatedImage;
+	private Set<Object> speculated = new HashSet<Object>(); // Parameter keys of the states rendered.
+	private long addedBytes, lastBytes;
+	private long rounds, started, completed, cancelled, skipped, used, wasted;
+
+	public SpeculativeRenderer() {
+		setMaxThreads(DEFAULT_MAX_THREADS);
+	}
+
+	/**
+	 * Registers the statistics in the platform MBean server.
+	 */
+	public void register() {
+		try {
+			ObjectName objectName = new ObjectName(StageStats.JMX_DOMAIN + ":type=SpeculativeRenderer");
+			if(!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		}
+		catch(JMException e) {
+			Log.log(e);
+		}
+	}
+
+	/**
+	 * Settings of a likely next state. The other settings are those of the transform of the pipeline.
+	 */
+	public static final class State {
+		private final ToBricksType toBricksType;
+		private final int propagationPercentage, width, height;
+
+		/**
+		 * @param width Width of the construction in basic units.
+		 * @param height Height of the construction in basic units.
+		 */
+		public State(ToBricksType toBricksType, int propagationPercentage, int width, int height) {
+			this.toBricksType = toBricksType;
+			this.propagationPercentage = propagationPercentage;
+			this.width = width;
+			this.height = height;
+		}
+
+		public ToBricksType getToBricksType() {
+			return toBricksType;
+		}
+
+		/**
+		 * @return A copy of current with these settings, which shares its results in the StageCache. See ToBricksTransform.copy().
+		 */
+		ToBricksTransform apply(ToBricksTransform current) {
+			ToBricksTransform state = current.copy();
+			state.setToBricksType(toBricksType);
+			state.setPropagationPercentage(propagationPercentage);
+			state.setBasicUnitSize(width, height);
+			state.setDitheringThreads(1); // Speculations run next to each other instead.
+			return state;
+		}
+	}
+
+	/**
+	 * @param states Settings to render, most likely first.
+	 */
+	public void setLikelyNextStates(List<State> states) {
+		likelyNextStates = new ArrayList<State>(states);
+	}
+
+	/**
+	 * @param dependsOnType Whether the prepared image of the round running is made for the type of construction.
+	 * States of other types are not rendered while it is, as the next round would prepare another image for them.
+	 */
+	public void setPreparedImageDependsOnType(boolean dependsOnType) {
+		preparedImageDependsOnType = dependsOnType;
+	}
+
+	/**
+	 * Starts rendering the likely next states in the background and returns.
+	 * Called by the pipeline thread, which is the only thread running current.
+	 * @param image The prepared image the round completed with.
+	 * @param current The transform of the pipeline.
+	 * @param cancel Token of the round completed.
+	 */
+	public void speculate(final BufferedImage image, ToBricksTransform current, final CancellationToken cancel) {
+		Object currentKey = current.getParameterKey();
+		final long speculation;
+		ForkJoinPool pool;
+		synchronized(this) {
+			rounds++;
+			if(image == speculatedImage && speculated.remove(currentKey))
+				used++;
+			wasted += speculated.size();
+			speculated.clear();
+			speculatedImage = image;
+			addedBytes = 0;
+			speculation = ++generation;
+			pool = this.pool;
+		}
+		if(pool == null)
+			return;
+		boolean otherTypes = !preparedImageDependsOnType;
+		ToBricksType currentType = current.getToBricksType();
+		for(State s : likelyNextStates) {
+			if(!otherTypes && s.getToBricksType() != currentType)
+				continue;
+			final ToBricksTransform state = s.apply(current);
+			final Object key = state.getParameterKey();
+			if(key.equals(currentKey))
+				continue;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					render(state, key, image, speculation, cancel);
+				}
+			});
+		}
+	}
+
+	private void render(ToBricksTransform state, Object key, BufferedImage image, long speculation, CancellationToken cancel) {
+		StageCache cache = StageCache.getShared();
+		synchronized(this) {
+			if(speculation != generation || cancel.isCancelled()) {
+				cancelled++;
+				return;
+			}
+			if(addedBytes + lastBytes > maxBytes) {
+				skipped++;
+				return;
+			}
+			started++;
+		}
+		long bytesBefore = cache.getBytes();
+		try {
+			state.transform(image, cancel);
+		}
+		catch(CancelledException e) {
+			synchronized(this) {
+				cancelled++;
+			}
+			return;
+		}
+		catch(RuntimeException e) {
+			Log.log(e);
+			return;
+		}
+		long bytes = Math.max(0, cache.getBytes() - bytesBefore); // Approximate when other stages use the cache meanwhile.
+		synchronized(this) {
+			completed++;
+			if(bytes > 0)
+				lastBytes = bytes;
+			if(speculation == generation) {
+				speculated.add(key);
+				addedBytes += bytes;
+			}
+			else
+				wasted++;
+		}
+	}
+
+	@Override
+	public synchronized long getRounds() {
+		return rounds;
+	}
+
+	@Override
+	public synchronized long getStarted() {
+		return started;
+	}
+
+	@Override
+	public synchronized long getCompleted() {
+		return completed;
+	}
+
+	@Override
+	public synchronized long getCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	@Override
+	public synchronized long getWasted() {
+		return wasted;
+	}
+
+	@Override
+	public synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * @param maxThreads 0 to stop speculating.
+	 */
+	@Override
+	public synchronized void setMaxThreads(int maxThreads) {
+		if(maxThreads < 0)
+			throw new IllegalArgumentException("maxThreads < 0: " + maxThreads);
+		if(this.maxThreads == maxThreads)
+			return;
+		this.maxThreads = maxThreads;
+		if(pool != null)
+			pool.shutdown(); // Renderings started complete or are cancelled.
+		pool = maxThreads == 0 ? null : new ForkJoinPool(maxThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+				thread.setName("Speculative rendering " + thread.getPoolIndex());
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		}, null, true);
+	}
+
+	@Override
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Speculation after %d rounds: %d started, %d completed, %d used, %d wasted, %d cancelled, %d skipped for memory",
+				rounds, started, completed, used, wasted, cancelled, skipped);
+	}
+}
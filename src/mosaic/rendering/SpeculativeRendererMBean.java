@@ -0,0 +1,18 @@
+package mosaic.rendering;
+
+/**
+ * Statistics and limits of the SpeculativeRenderer as seen in JMX consoles such as JConsole and VisualVM.
+ */
+public interface SpeculativeRendererMBean {
+	long getRounds();
+	long getStarted();
+	long getCompleted();
+	long getCancelled();
+	long getSkipped();
+	long getUsed();
+	long getWasted();
+	int getMaxThreads();
+	void setMaxThreads(int maxThreads);
+	long getMaxBytes();
+	void setMaxBytes(long maxBytes);
+}
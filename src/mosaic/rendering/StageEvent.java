@@ -0,0 +1,62 @@
+package mosaic.rendering;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a run of a stage of the pipeline. Recorded when a recording is started,
+ * such as with -XX:StartFlightRecording or from JDK Mission Control.
+ * Only loaded when the JVM has Flight Recorder, so StageStats works without it.
+ */
+@Name("brickgraphics.PipelineStage")
+@Label("Pipeline Stage")
+@Category({"BrickGraphics", "Rendering"})
+@Description("A transform of the rendering pipeline run on an image")
+class StageEvent extends Event {
+	@Label("Stage")
+	String stage;
+
+	@Label("Plan")
+	String plan;
+
+	@Label("Pixels")
+	long pixels;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+
+	@Label("Cache Hits")
+	long cacheHits;
+
+	@Label("Cache Misses")
+	long cacheMisses;
+
+	@Label("Cancelled")
+	boolean cancelled;
+
+	static Object start(String stage) {
+		StageEvent event = new StageEvent();
+		event.stage = stage;
+		event.begin();
+		return event;
+	}
+
+	static void commit(Object e, String plan, long pixels, long allocatedBytes, long cacheHits, long cacheMisses, boolean cancelled) {
+		StageEvent event = (StageEvent)e;
+		event.end();
+		if(!event.shouldCommit())
+			return;
+		event.plan = plan;
+		event.pixels = pixels;
+		event.allocatedBytes = allocatedBytes;
+		event.cacheHits = cacheHits;
+		event.cacheMisses = cacheMisses;
+		event.cancelled = cancelled;
+		event.commit();
+	}
+}
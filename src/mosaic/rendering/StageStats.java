@@ -0,0 +1,202 @@
+package mosaic.rendering;
+
+import io.Log;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import transforms.StageCache;
+import transforms.Transform;
+
+/**
+ * Measures the runs of a stage of the pipeline: Wall time, pixels of the input, memory allocated,
+ * hits and misses in the shared StageCache and cancellations.
+ *
+ * Memory allocated is an estimate: Bytes allocated by the thread running the stage if the JVM can tell, 
+ * otherwise the memory of outputs not found in the cache. Allocations by other threads working for the stage are not included.
+ * Cache hits and misses are those of all threads while the stage runs, including branches of the stage.
+ *
+ * A stage deciding how to run, such as whether to scale the image first, reports its plan. 
+ * The statistics are registered as an MBean, and each run is recorded as a Flight Recorder event when available.
+ */
+public class StageStats implements StageStatsMBean {
+	public static final String JMX_DOMAIN = "brickgraphics";
+	private static final boolean FLIGHT_RECORDER = isFlightRecorderAvailable();
+
+	private final String name;
+	private final LatencyStats latency;
+	private volatile String plan;
+	private long cancellations, pixels, allocatedBytes, cacheHits, cacheMisses;
+
+	public StageStats(String name) {
+		this.name = name;
+		latency = new LatencyStats(name);
+	}
+
+	private static boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		}
+		catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Registers the statistics in the platform MBean server.
+	 * @param id Unique among the stages, as names need not be.
+	 */
+	public void register(String id) {
+		try {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=PipelineStage,name=" + ObjectName.quote(id));
+			if(!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		}
+		catch(JMException e) {
+			Log.log(e);
+		}
+	}
+
+	/**
+	 * Runs t on in and records the run.
+	 * @throws CancelledException when t is cancelled. The cancellation is recorded.
+	 */
+	public BufferedImage run(Transform t, BufferedImage in, CancellationToken cancel) {
+		StageCache cache = StageCache.getShared();
+		long hitsBefore = cache.getHits();
+		long missesBefore = cache.getMisses();
+		long allocatedBefore = threadAllocatedBytes();
+		Object event = FLIGHT_RECORDER ? StageEvent.start(name) : null;
+		long start = System.nanoTime();
+		BufferedImage out = null;
+		boolean completed = false, cancelled = false;
+		try {
+			out = t.transform(in, cancel);
+			completed = true;
+			return out;
+		}
+		catch(CancelledException e) {
+			cancelled = true;
+			throw e;
+		}
+		finally {
+			long nanos = System.nanoTime() - start;
+			long hits = cache.getHits() - hitsBefore;
+			long misses = cache.getMisses() - missesBefore;
+			long allocated = allocatedBefore < 0 ? (misses > 0 ? StageCache.bytes(out, in) : 0) : threadAllocatedBytes() - allocatedBefore;
+			long runPixels = in == null ? 0 : (long)in.getWidth() * in.getHeight();
+			synchronized(this) {
+				if(cancelled)
+					cancellations++;
+				pixels += runPixels;
+				allocatedBytes += allocated;
+				cacheHits += hits;
+				cacheMisses += misses;
+			}
+			if(completed)
+				latency.record(nanos);
+			if(event != null)
+				StageEvent.commit(event, plan, runPixels, allocated, hits, misses, cancelled);
+		}
+	}
+
+	/*
+	 * -1 if not supported.
+	 */
+	private static long threadAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean)bean;
+			if(b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled())
+				return b.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public LatencyStats getLatencyStats() {
+		return latency;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param plan How the stage runs, or null.
+	 */
+	public void setPlan(String plan) {
+		this.plan = plan;
+	}
+
+	@Override
+	public String getPlan() {
+		return plan;
+	}
+
+	@Override
+	public long getRuns() {
+		return latency.getCount();
+	}
+
+	@Override
+	public synchronized long getCancellations() {
+		return cancellations;
+	}
+
+	@Override
+	public double getLastMs() {
+		return latency.getLastMs();
+	}
+
+	@Override
+	public double getMeanMs() {
+		return latency.getMeanMs();
+	}
+
+	@Override
+	public double getP50Ms() {
+		return latency.getRecentPercentileMs(50);
+	}
+
+	@Override
+	public double getP99Ms() {
+		return latency.getRecentPercentileMs(99);
+	}
+
+	@Override
+	public double getMaxMs() {
+		return latency.getMaxMs();
+	}
+
+	@Override
+	public synchronized long getPixels() {
+		return pixels;
+	}
+
+	@Override
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	@Override
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	@Override
+	public synchronized long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return latency.toString() + String.format(", %d cancelled, %d MP, %d MB allocated, %d cache hits, %d misses",
+				cancellations, pixels / 1000000, allocatedBytes >> 20, cacheHits, cacheMisses) + (plan == null ? "" : ". " + plan);
+	}
+}
@@ -0,0 +1,21 @@
+package mosaic.rendering;
+
+/**
+ * Statistics of a stage of the pipeline as seen in JMX consoles such as JConsole and VisualVM.
+ * Durations are of completed runs. Percentiles are of the most recent LatencyStats.RECENT runs.
+ */
+public interface StageStatsMBean {
+	String getName();
+	String getPlan();
+	long getRuns();
+	long getCancellations();
+	double getLastMs();
+	double getMeanMs();
+	double getP50Ms();
+	double getP99Ms();
+	double getMaxMs();
+	long getPixels();
+	long getAllocatedBytes();
+	long getCacheHits();
+	long getCacheMisses();
+}
@@ -2,6 +2,7 @@ package mosaic.ui;
 
 import transforms.*;
 import transforms.ScaleTransform.ScaleQuality;
+import transforms.FloydSteinbergTransform.ScanOrder;
 import icon.Icons;
 import io.*;
 import java.awt.*;
@@ -14,10 +15,11 @@ import mosaic.controllers.PrintController.ShowPosition;
 import mosaic.io.*;
 import mosaic.rendering.Pipeline;
 import mosaic.rendering.PipelineMosaicListener;
-import bricks.ToBricksType;
 
 public class BrickedView extends JPanel implements ChangeListener, PipelineMosaicListener {
 	private Dimension mosaicImageSize;
+	private MosaicSnapshot mosaic; // Last complete mosaic delivered by the pipeline.
+	private MosaicSnapshot shownMosaic; // mosaic, or a preview delivered after it.
 	private ToBricksTransform toBricksTransform; // Used by CAD accessing functions.
 	private Pipeline pipeline;
 	private ToBricksController toBricksController;
@@ -51,10 +53,27 @@ public class BrickedView extends JPanel implements ChangeListener, PipelineMosai
 		toBricksTransform = new ToBricksTransform(colorController.getColorChooserSelectedColors(), 
 				toBricksController.getToBricksType(), 
 				toBricksController.getPropagationPercentage(), 
+				toBricksController.getDitheringEngine(),
 				toBricksController.getConstructionWidthInBasicUnits(),
 				toBricksController.getConstructionHeightInBasicUnits(),
 				colorController);
 		magnifierController.setTBTransform(toBricksTransform);
+		final OptionsController optionsController = mc.getOptionsController();
+		final LookUpTableCache lookUpTableCache = new LookUpTableCache();
+		ChangeListener colorMatchingOptionsListener = new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				toBricksTransform.getColorMatcher().setDiskCache(optionsController.getStoreColorLookUpTables() ? lookUpTableCache : null);
+				toBricksTransform.getColorMatcher().setEagerPrefill(optionsController.getPrefillColorLookUpTable());
+				ScanOrder scanOrder = optionsController.getParallelDithering() ? ScanOrder.RASTER : ScanOrder.SERPENTINE;
+				boolean changed = toBricksTransform.setDitheringScanOrder(scanOrder);
+				changed |= toBricksTransform.setDitheringErrorClamp(optionsController.getDitheringErrorClamp());
+				if(changed && e != null)
+					pipeline.invalidate();
+			}
+		};
+		colorMatchingOptionsListener.stateChanged(null);
+		optionsController.addChangeListener(colorMatchingOptionsListener);
 
 		// build UI components:
 		setPreferredSize(new Dimension(32, 32)); // Ensure mosaic is shown when repositioning the slider.
@@ -86,17 +105,16 @@ public class BrickedView extends JPanel implements ChangeListener, PipelineMosai
 	public LEGOColor.CountingLEGOColor[] getLegendColors() {
 		if(toBricksTransform == null)
 			throw new IllegalStateException();
-		if(toBricksTransform.getToBricksType() == ToBricksType.SNOT_IN_2_BY_2)
-			return toBricksTransform.lastUsedColorCounts();				
-		else
-			return toBricksTransform.getMainTransform().lastUsedColorCounts();								
+		return toBricksTransform.getSnapshot().getColorCounts();
 	}
 	
 	private void updateTransform(ToBricksController t) {
 		toBricksTransform.setPropagationPercentage(t.getPropagationPercentage());
+		toBricksTransform.setDitheringEngine(t.getDitheringEngine());
 		toBricksTransform.setToBricksType(t.getToBricksType());
 		toBricksTransform.setColors(colorController.getColorChooserSelectedColors());
 		toBricksTransform.setBasicUnitSize(t.getConstructionWidthInBasicUnits(), t.getConstructionHeightInBasicUnits());
+		pipeline.getSpeculativeRenderer().setLikelyNextStates(t.getLikelyNextStates());
 		pipeline.invalidate();
 	}
 	
@@ -131,10 +149,20 @@ public class BrickedView extends JPanel implements ChangeListener, PipelineMosai
 	public Dimension getBrickedSize() {
 		return mosaicImageSize;
 	}
+	
+	/**
+	 * @return The last complete mosaic, or null before the first has been rendered. Never a preview.
+	 */
+	public MosaicSnapshot getMosaic() {
+		return mosaic;
+	}
 
 	@Override
-	public void mosaicChanged(Dimension mosaicImageSize) {
-		this.mosaicImageSize = mosaicImageSize;
+	public void mosaicChanged(MosaicSnapshot mosaic) {
+		if(!mosaic.isPreview())
+			this.mosaic = mosaic;
+		shownMosaic = mosaic;
+		mosaicImageSize = mosaic.getSize();
 		repaint();
 	}
 	
@@ -142,7 +170,7 @@ public class BrickedView extends JPanel implements ChangeListener, PipelineMosai
 		@Override 
 		public void paintComponent(Graphics g) {				
 			super.paintComponent(g);
-			if(mosaicImageSize == null)
+			if(shownMosaic == null)
 				return;
 
 			Dimension size = getSize();
@@ -155,7 +183,7 @@ public class BrickedView extends JPanel implements ChangeListener, PipelineMosai
 			Graphics2D g2 = (Graphics2D)g;
 
 			// Perform actual drawing:
-			toBricksTransform.drawAll(g2, shownImageSize);
+			shownMosaic.drawAll(g2, shownImageSize);
 		}
 	}
 	
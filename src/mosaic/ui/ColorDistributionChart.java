@@ -12,6 +12,7 @@ import mosaic.controllers.MainController;
 import mosaic.controllers.UIController;
 import mosaic.rendering.Pipeline;
 import mosaic.rendering.PipelineMosaicListener;
+import transforms.MosaicSnapshot;
 
 public class ColorDistributionChart extends JPanel implements PipelineMosaicListener {
 	public static final int PREFERRED_SIZE = 128;
@@ -58,7 +59,9 @@ public class ColorDistributionChart extends JPanel implements PipelineMosaicList
 	}
 
 	@Override
-	public void mosaicChanged(Dimension ignore) {
+	public void mosaicChanged(MosaicSnapshot mosaic) {
+		if(mosaic != null && mosaic.isPreview())
+			return; // Colors are only counted for complete mosaics.
 		boolean visible = uiController.showColorDistributionChart();
 		setVisible(visible);
 		setPreferredSize(visible ? new Dimension(PREFERRED_SIZE, PREFERRED_SIZE) : new Dimension(0, 0));		
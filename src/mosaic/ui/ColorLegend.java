@@ -8,6 +8,7 @@ import javax.swing.event.ChangeListener;
 import mosaic.controllers.*;
 import mosaic.rendering.Pipeline;
 import mosaic.rendering.PipelineMosaicListener;
+import transforms.MosaicSnapshot;
 import colors.LEGOColor;
 
 public class ColorLegend extends JToolBar implements ChangeListener, PipelineMosaicListener {
@@ -142,9 +143,9 @@ public class ColorLegend extends JToolBar implements ChangeListener, PipelineMos
 	}
 
 	@Override
-	public void mosaicChanged(Dimension ignore) {
-		if(brickedView == null)
-			return;
+	public void mosaicChanged(MosaicSnapshot mosaic) {
+		if(brickedView == null || (mosaic != null && mosaic.isPreview()))
+			return; // Colors are only counted for complete mosaics.
 		colors = brickedView.getLegendColors();
 		if(!uc.showMagnifier() || !uc.showTotals())
 			list.setListData(colors);
@@ -55,11 +55,28 @@ public class Cropper implements MouseListener, MouseMotionListener, ModelHandler
 		return (float)(cropRect.width/cropRect.height);
 	}
 	
+	/**
+	 * @return The crop as fractions of the image. The whole image when not cropping.
+	 */
+	public Rectangle2D.Double getRelativeCrop() {
+		if(!enabled)
+			return new Rectangle2D.Double(0, 0, 1, 1);
+		return (Rectangle2D.Double)cropRect.clone();
+	}
+	
 	public Rectangle getCrop(Rectangle r) {
 		return getCrop(r.x, r.y, r.width, r.height);
 	}
 		
 	public Rectangle getCrop(int x, int y, int w, int h) {
+		return getCrop(cropRect, w, h);
+	}
+	
+	/**
+	 * @param cropRect The crop as fractions of the image, such as from getRelativeCrop().
+	 * @return The crop of an image of size w x h.
+	 */
+	public static Rectangle getCrop(Rectangle2D.Double cropRect, int w, int h) {
 		int rx = (int)Math.round(cropRect.x*w);
 		rx = clamp(rx, 0, w);
 		
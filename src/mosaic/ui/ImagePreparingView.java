@@ -4,12 +4,19 @@ import io.*;
 import mosaic.controllers.OptionsController;
 import mosaic.controllers.ToBricksController;
 import mosaic.io.BrickGraphicsState;
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.Pipeline;
 import mosaic.rendering.PipelineImageListener;
 import mosaic.rendering.ProgressCallback;
+import mosaic.rendering.SpeculativeRenderer;
+import mosaic.rendering.StageStats;
 import mosaic.ui.menu.ImagePreparingToolBar;
 import java.awt.image.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.*;
 import javax.swing.event.*;
@@ -18,7 +25,7 @@ import transforms.*;
 import transforms.ScaleTransform.ScaleQuality;
 
 /**
- * crop, sharpness, gamma, brightness, contrast, saturation
+ * crop, sharpness, auto levels, gamma, brightness, contrast, saturation
  */
 public class ImagePreparingView extends JComponent implements ModelHandler<BrickGraphicsState>, ChangeListener {
 	private BufferedImage inImage, preparedImage; // PreparedImage to be set from listener on pipeline.
@@ -26,8 +33,12 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 	private Pipeline pipeline;
 
 	private RGBTransform brightness, gamma, contrast;
-	private StateTransform<Float> saturation, sharpness;
+	private StateTransform<Float> sharpness;
+	private SaturationTransform saturation;
+	private AutoLevelsTransform autoLevels;
 	private CropTransform cropTransform;
+	private PixelTransform[] pixelTransforms; // Applied in one pass by fusedPixelTransforms.
+	private FusedPixelTransform fusedPixelTransforms;
 
 	private Transform[] movableTransforms;
 	private ImagePreparingToolBar toolBar;
@@ -39,6 +50,11 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 
 	// For showing image:
 	private ScaleTransform fullScaler, cropScaler, noCropScaler, toBrickedPixelsSizeScaler;
+	// Scaling planned when not scaling before preparing:
+	private ScalePlanner scalePlanner = new ScalePlanner();
+	private ScaleTransform plannedScaler = new ScaleTransform("Planned scaling before preparing", false, ScaleQuality.AreaAveraging);
+	private StageStats scaleBeforePreparingStats;
+	private volatile Dimension viewSize = new Dimension(); // Size of this view planned for. Set on the event dispatch thread.
 	private Transform lastTransformUsedAsSource = null;
 	private ProgressCallback progressCallbackForLastTransformUsedAsSource = ProgressCallback.NOP;
 	
@@ -53,10 +69,24 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		ScaleQuality quality = optionsController.getScaleQuality();		
 		allowFilterReordering = optionsController.getAllowFilterReordering();
 		scaleBeforePreparing = optionsController.getScaleBeforePreparing();
-		fullScaler = new ScaleTransform("Filtered left image", true, quality, 2);
+		fullScaler = new ScaleTransform("Filtered left image", true, quality);
 		cropScaler = new ScaleTransform("Crop", false, quality);
 		noCropScaler = new ScaleTransform("No crop", false, ScaleQuality.RetainColors);
 		toBrickedPixelsSizeScaler = new ScaleTransform("Construction minimal size", false, quality);
+		plannedScaler.setQuality(plannedScaleQuality(quality));
+		
+		// The plan depends on the size the prepared image is shown in:
+		pipeline.setDebounce(this, MainWindow.DIVIDER_DEBOUNCE_MS);
+		addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				Dimension size = getSize();
+				if(size.equals(viewSize))
+					return;
+				viewSize = size;
+				pipeline.invalidate(ImagePreparingView.this);
+			}
+		});
 		
 		cropper = new Cropper(model);		
 		model.addModelHandler(this); // Ensure cropper is updated before this - so the crop doesn't lag.
@@ -70,7 +100,7 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 			@Override
 			public void stateChanged(ChangeEvent e) {
 				updateWidthToHeight();
-				pipeline.invalidate();
+				pipeline.invalidate(cropper);
 			}
 		}); // For cursor style.
 		cropTransform = new CropTransform(cropper);
@@ -82,7 +112,12 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 			brightness = new BrightnessTransform((float[])model.get(BrickGraphicsState.PrepareBrightness));
 			contrast = new ContrastTransform((float[])model.get(BrickGraphicsState.PrepareContrast));
 			saturation = new SaturationTransform((Float)model.get(BrickGraphicsState.PrepareSaturation));
-			movableTransforms = new Transform[]{sharpness, gamma, brightness, contrast, saturation};
+			saturation.setLabChroma(optionsController.getSaturationLabChroma());
+			autoLevels = new AutoLevelsTransform((Float)model.get(BrickGraphicsState.PrepareAutoLevels));
+			pixelTransforms = new PixelTransform[]{autoLevels, gamma, brightness, contrast, saturation};
+			fusedPixelTransforms = new FusedPixelTransform();
+			updateFusedPixelTransforms();
+			movableTransforms = new Transform[]{sharpness, fusedPixelTransforms};
 		}
 		toolBar = new ImagePreparingToolBar(ImagePreparingView.this, model);
 		toolBar.setVisible((Boolean)model.get(BrickGraphicsState.PrepareFiltersEnabled));
@@ -104,12 +139,16 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 	public ImagePreparingToolBar getToolBar() {
 		return toolBar;
 	}
+	
+	public Cropper getCropper() {
+		return cropper;
+	}
 
 	private void populatePipeline() {
 		// Crop:
-		pipeline.addTransform(cropTransform);
-		// Resizing optimization (if enabled):
-		pipeline.addTransform(new Transform(){
+		pipeline.addTransform("Crop", cropTransform);
+		// Resizing optimization (if enabled, otherwise as planned):
+		scaleBeforePreparingStats = pipeline.addTransform("Scale before preparing", new Transform(){
 			private boolean shouldScaleBeforePreparing(BufferedImage in) {
 				return scaleBeforePreparing && 
 				   in.getWidth() > toBrickedPixelsSizeScaler.getWidth() &&
@@ -117,7 +156,25 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 			}			
 			@Override
 			public BufferedImage transform(BufferedImage in) {
-				return shouldScaleBeforePreparing(in) ? toBrickedPixelsSizeScaler.transform(in) : in;
+				return transform(in, CancellationToken.NONE);
+			}
+			@Override
+			public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
+				SpeculativeRenderer speculativeRenderer = pipeline.getSpeculativeRenderer();
+				if(shouldScaleBeforePreparing(in)) {
+					scaleBeforePreparingStats.setPlan("Scale to construction size before preparing");
+					speculativeRenderer.setPreparedImageDependsOnType(true);
+					return toBrickedPixelsSizeScaler.transform(in, cancel);
+				}
+				Dimension construction = new Dimension(toBrickedPixelsSizeScaler.getWidth(), toBrickedPixelsSizeScaler.getHeight());
+				ScalePlanner.Plan plan = scalePlanner.plan(new Dimension(in.getWidth(), in.getHeight()), construction, viewSize, getFilterCost());
+				scaleBeforePreparingStats.setPlan(plan.toString());
+				speculativeRenderer.setPreparedImageDependsOnType(plan.isScaling()); // The plan is made for the construction.
+				if(!plan.isScaling())
+					return in;
+				plannedScaler.setWidth(plan.getSize().width);
+				plannedScaler.setHeight(plan.getSize().height);
+				return plannedScaler.transform(in, cancel);
 			}
 			@Override
 			public Dimension getTransformedSize(Dimension in) {
@@ -130,17 +187,22 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 			@Override
 			public void setProgressCallback(ProgressCallback p) {
 				toBrickedPixelsSizeScaler.setProgressCallback(p); // They should report progress when applicable.
+				plannedScaler.setProgressCallback(p);
 			}});
 		// The main filters:
 		for(final Transform t : movableTransforms) {
-			pipeline.addTransform(new Transform(){
+			pipeline.addTransform(t.getClass().getSimpleName(), new Transform(){
 				@Override
 				public BufferedImage transform(BufferedImage in) {
+					return transform(in, CancellationToken.NONE);
+				}
+				@Override
+				public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
 					if(allowFilterReordering && 
 							lastTransformUsedAsSource != null && 
 							lastTransformUsedAsSource == t)
 						return in; // Ignore progress here.
-					return t.transform(in); // t reports progress.
+					return t.transform(in, cancel); // t reports progress.
 				}
 				@Override
 				public Dimension getTransformedSize(Dimension in) {
@@ -171,11 +233,15 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 				}});
 		}
 		// Skipped main filter:
-		pipeline.addTransform(new Transform(){
+		pipeline.addTransform("Last changed filter", new Transform(){
 			@Override
 			public BufferedImage transform(BufferedImage in) {
+				return transform(in, CancellationToken.NONE);
+			}
+			@Override
+			public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
 				if(allowFilterReordering && lastTransformUsedAsSource != null)
-					return lastTransformUsedAsSource.transform(in);
+					return lastTransformUsedAsSource.transform(in, cancel);
 				progressCallbackForLastTransformUsedAsSource.reportProgress(1000);
 				return in;
 			}
@@ -193,6 +259,8 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 			@Override
 			public void setProgressCallback(ProgressCallback p) {
 				progressCallbackForLastTransformUsedAsSource = p; // Save this callback to be used in the other transforms.				
+				for(PixelTransform t : pixelTransforms)
+					t.setProgressCallback(p); // Only run on their own when used as source.
 			}});
 		
 		pipeline.addInImageListener(new PipelineImageListener() {
@@ -211,9 +279,34 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		}); // Update prepared image.
 	}
 
+	/*
+	 * All pixel transforms except the one used as source when reordering, as that one is applied last on its own.
+	 */
+	private void updateFusedPixelTransforms() {
+		List<PixelTransform> steps = new ArrayList<PixelTransform>();
+		for(PixelTransform t : pixelTransforms) {
+			if(!allowFilterReordering || lastTransformUsedAsSource != t)
+				steps.add(t);
+		}
+		fusedPixelTransforms.setSteps(steps.toArray(new PixelTransform[steps.size()]));
+	}
+
+	/*
+	 * Cost of sharpness and the pixel transforms for each pixel, as estimated by the ScalePlanner.
+	 */
+	private double getFilterCost() {
+		double cost = sharpness.get().equals(1f) ? 0 : ScalePlanner.CONVOLUTION_COST;
+		for(PixelTransform t : pixelTransforms) {
+			if(!t.isIdentity())
+				cost += ScalePlanner.PIXEL_TRANSFORM_COST;
+		}
+		return cost;
+	}
+
 	private void transformChangedInvalidatePipeline(Transform source) {
 		lastTransformUsedAsSource = source;
-		pipeline.invalidate();
+		updateFusedPixelTransforms();
+		pipeline.invalidate(source);
 	}
 	
 	public void setContrast(int index, float contrast) {
@@ -230,6 +323,11 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		transformChangedInvalidatePipeline(this.contrast);	
 	}
 
+	public void setAutoLevels(float autoLevels) {
+		this.autoLevels.set(autoLevels);
+		transformChangedInvalidatePipeline(this.autoLevels);
+	}
+
 	public void setSaturation(float saturation) {
 		this.saturation.set(saturation);
 		transformChangedInvalidatePipeline(this.saturation);
@@ -297,6 +395,13 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		return true;
 	}
 
+	/**
+	 * The planned scaling always averages areas. In linear light when chosen for the other scalings.
+	 */
+	private static ScaleQuality plannedScaleQuality(ScaleQuality quality) {
+		return quality == ScaleQuality.AreaAveragingLinear ? quality : ScaleQuality.AreaAveraging;
+	}
+
 	@Override
 	public void stateChanged(ChangeEvent e) {
 		boolean changed = false;
@@ -304,15 +409,21 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		changed |= fullScaler.setQuality(quality);
 		changed |= cropScaler.setQuality(quality);
 		changed |= toBrickedPixelsSizeScaler.setQuality(quality);
+		changed |= plannedScaler.setQuality(plannedScaleQuality(quality));
 		
 		if(allowFilterReordering != optionsController.getAllowFilterReordering()) {
 			allowFilterReordering = optionsController.getAllowFilterReordering();
+			updateFusedPixelTransforms();
 			changed = true;
 		}		
 		if(scaleBeforePreparing != optionsController.getScaleBeforePreparing()) {
 			scaleBeforePreparing = optionsController.getScaleBeforePreparing();
 			changed = true;			
 		}
+		if(saturation.setLabChroma(optionsController.getSaturationLabChroma())) {
+			updateFusedPixelTransforms();
+			changed = true;
+		}
 
 		//changed |= updateBaseCrop();
 		changed |= updateToBrickedPixelsSizeScaler();
@@ -382,6 +493,7 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		brightness.set((float[])model.get(BrickGraphicsState.PrepareBrightness));
 		contrast.set((float[])model.get(BrickGraphicsState.PrepareContrast));
 		saturation.set((Float)model.get(BrickGraphicsState.PrepareSaturation));
+		autoLevels.set((Float)model.get(BrickGraphicsState.PrepareAutoLevels));
 
 		// TODO: ToolBar should just do this itself...
 		toolBar.setVisible((Boolean)model.get(BrickGraphicsState.PrepareFiltersEnabled));
@@ -396,6 +508,7 @@ public class ImagePreparingView extends JComponent implements ModelHandler<Brick
 		model.set(BrickGraphicsState.PrepareBrightness, brightness.get());
 		model.set(BrickGraphicsState.PrepareContrast, contrast.get());
 		model.set(BrickGraphicsState.PrepareSaturation, saturation.get());
+		model.set(BrickGraphicsState.PrepareAutoLevels, autoLevels.get());
 		model.set(BrickGraphicsState.PrepareFiltersEnabled, toolBar.isVisible());
 	}
 }
@@ -22,6 +22,8 @@ import mosaic.ui.dialogs.ColorSettingsDialog;
 import mosaic.ui.menu.*;
 
 public class MainWindow extends JFrame implements ChangeListener, ModelHandler<BrickGraphicsState> {
+	public static final int DIVIDER_DEBOUNCE_MS = 100;
+	
 	private ImagePreparingView imagePreparingView;
 	private BrickedView brickedView;
 	private JSplitPane splitPane;
@@ -86,9 +88,10 @@ public class MainWindow extends JFrame implements ChangeListener, ModelHandler<B
 				int dividerLocation = splitPane.getDividerLocation();
 				imagePreparingView.setVisible(dividerLocation >= getMinDividerLocation());
 				brickedView.setVisible(splitPane.getWidth() == 0 || dividerLocation <= getMaxDividerLocation());
-				pipeline.invalidate();
+				pipeline.invalidate(splitPane);
 			}
 		});
+		pipeline.setDebounce(splitPane, DIVIDER_DEBOUNCE_MS); // Render when the divider stops moving.
 
 		Container cp = getContentPane();
 		cp.setLayout(new BorderLayout());
@@ -15,6 +15,7 @@ import mosaic.controllers.ColorController;
 import mosaic.controllers.PrintController;
 import mosaic.rendering.Pipeline;
 import mosaic.rendering.PipelineMosaicListener;
+import transforms.MosaicSnapshot;
 
 /**
  * @author LD
@@ -182,7 +183,7 @@ public class PrintPreviewPanel extends JPanel implements ChangeListener, Pipelin
 	}
 
 	@Override
-	public void mosaicChanged(Dimension ignore) {
+	public void mosaicChanged(MosaicSnapshot ignore) {
 		update();
 	}
 }
@@ -5,12 +5,14 @@ import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.event.*;
 import mosaic.controllers.OptionsController;
+import colors.LookUpTableCache;
 import transforms.ScaleTransform.ScaleQuality;
+import transforms.FloydSteinbergTransform.ErrorClamp;
 
 public class OptionsDialog extends JDialog implements ChangeListener {
 	private OptionsController oc;
-	private JCheckBox cbAllowFilterReordering, cbScale, cbOptimize;
-	private JRadioButton[] rbScaleQuality;
+	private JCheckBox cbAllowFilterReordering, cbScale, cbSaturationLabChroma, cbOptimize, cbPrefill, cbStoreTables, cbParallelDithering;
+	private JRadioButton[] rbScaleQuality, rbErrorClamp;
 	private static final String DIALOG_TITLE = "Settings";
 
 	public OptionsDialog(JFrame parent, OptionsController oc) {
@@ -86,8 +88,93 @@ public class OptionsDialog extends JDialog implements ChangeListener {
 				flowPanel.add(cbAllowFilterReordering);
 				filterOptionsPanel.add(flowPanel);
 			}
+			{
+				// Saturation in CIE Lab:
+				JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+				cbSaturationLabChroma = new JCheckBox("Change saturation in CIE Lab, as colors are matched, rather than the saturation of HSB. Slower.");
+				ActionListener a = new ActionListener() {				
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						oc.setSaturationLabChroma(cbSaturationLabChroma.isSelected(), OptionsDialog.this);
+					}
+				};
+				cbSaturationLabChroma.addActionListener(a);
+				flowPanel.add(cbSaturationLabChroma);
+				filterOptionsPanel.add(flowPanel);
+			}
 			performancePanel.add(filterOptionsPanel);
 		}
+		{
+			// Color matching:
+			JPanel colorMatchingPanel = new JPanel();
+			colorMatchingPanel.setLayout(new BoxLayout(colorMatchingPanel, BoxLayout.Y_AXIS));
+			colorMatchingPanel.setBorder(BorderFactory.createTitledBorder("Color matching"));
+			{
+				JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+				cbPrefill = new JCheckBox("Compute the closest colors on all processor cores as soon as the colors are changed.");
+				ActionListener a = new ActionListener() {				
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						oc.setPrefillColorLookUpTable(cbPrefill.isSelected(), OptionsDialog.this);
+					}
+				};
+				cbPrefill.addActionListener(a);
+				flowPanel.add(cbPrefill);
+				colorMatchingPanel.add(flowPanel);
+			}
+			{
+				JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+				cbStoreTables = new JCheckBox("Store the closest colors in the folder '" + LookUpTableCache.DEFAULT_FOLDER + "', so colors used before load instantly.");
+				ActionListener a = new ActionListener() {				
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						oc.setStoreColorLookUpTables(cbStoreTables.isSelected(), OptionsDialog.this);
+					}
+				};
+				cbStoreTables.addActionListener(a);
+				flowPanel.add(cbStoreTables);
+				colorMatchingPanel.add(flowPanel);
+			}
+			{
+				JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+				cbParallelDithering = new JCheckBox("Dither on all processor cores. All rows are dithered from left to right, which changes the result slightly.");
+				ActionListener a = new ActionListener() {				
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						oc.setParallelDithering(cbParallelDithering.isSelected(), OptionsDialog.this);
+					}
+				};
+				cbParallelDithering.addActionListener(a);
+				flowPanel.add(cbParallelDithering);
+				colorMatchingPanel.add(flowPanel);
+			}
+			{
+				// Error clamp:
+				JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+				flowPanel.setBorder(BorderFactory.createTitledBorder("Colors outside of the color range when dithering"));
+				
+				JPanel buttonGroupPanel = new JPanel();
+				buttonGroupPanel.setLayout(new BoxLayout(buttonGroupPanel, BoxLayout.Y_AXIS));
+				ButtonGroup bgErrorClamp = new ButtonGroup();
+				rbErrorClamp = new JRadioButton[ErrorClamp.values().length];
+				int i = 0;
+				for(final ErrorClamp c : ErrorClamp.values()) {
+					rbErrorClamp[i] = new JRadioButton(c.title);
+					rbErrorClamp[i].addActionListener(new ActionListener() {				
+						@Override
+						public void actionPerformed(ActionEvent e) {
+							oc.setDitheringErrorClamp(c, OptionsDialog.this);
+						}
+					});
+					bgErrorClamp.add(rbErrorClamp[i]);
+					buttonGroupPanel.add(rbErrorClamp[i]);
+					++i;
+				}
+				flowPanel.add(buttonGroupPanel);
+				colorMatchingPanel.add(flowPanel);
+			}
+			performancePanel.add(colorMatchingPanel);
+		}
 		{
 			// Scale Quality:
 			JPanel flowPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -155,7 +242,12 @@ public class OptionsDialog extends JDialog implements ChangeListener {
 		rbScaleQuality[oc.getScaleQuality().ordinal()].setSelected(true);
 		cbAllowFilterReordering.setSelected(oc.getAllowFilterReordering());
 		cbScale.setSelected(oc.getScaleBeforePreparing());
+		cbSaturationLabChroma.setSelected(oc.getSaturationLabChroma());
 		cbOptimize.setSelected(oc.getOptimizeUseOfBricksBeforeExporting());
+		cbPrefill.setSelected(oc.getPrefillColorLookUpTable());
+		cbStoreTables.setSelected(oc.getStoreColorLookUpTables());
+		cbParallelDithering.setSelected(oc.getParallelDithering());
+		rbErrorClamp[oc.getDitheringErrorClamp().ordinal()].setSelected(true);
 	}
 	
 	@Override
@@ -30,6 +30,16 @@ public class ImagePreparingToolBar extends JToolBar {
 				view.setSharpness(value);
 			}
 		}));
+		sliderList.add(new ColorSlider(Icons.levels(Icons.SIZE_SMALL), "Auto levels: 1 stretches the colors to the full range, 2 equalizes them", model, BrickGraphicsState.PrepareAutoLevels, 0f, 2f, new ViewSlideUpdater() {			
+			@Override
+			public void set(int index, float value) {
+				throw new UnsupportedOperationException();
+			}
+			@Override
+			public void set(float value) {
+				view.setAutoLevels(value);
+			}
+		}));
 		sliderList.add(new ColorSlider(Icons.gamma(Icons.SIZE_SMALL), "Gamma", model, BrickGraphicsState.PrepareGamma, 0.05f, 6f, new ViewSlideUpdater() {
 			@Override
 			public void set(int index, float value) {
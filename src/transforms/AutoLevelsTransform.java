@@ -0,0 +1,115 @@
+package transforms;
+
+import icon.Icons;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+
+/**
+ * Levels set from the histogram of each color component.
+ * The state is the strength: 0 leaves the image unchanged. 1 stretches the values between the darkest and 
+ * brightest CLIP of the pixels to the full range. 2 equalizes the histograms, so all values are used equally.
+ * Strengths in between blend the tables on either side.
+ */
+public class AutoLevelsTransform extends StateTransform<Float> implements LookupTableTransform {
+	public static final double CLIP = 0.005; // Fraction of the pixels at either end put at black and white when stretching.
+	
+	public AutoLevelsTransform(Float initialState) {
+		super(initialState);
+	}
+
+	@Override
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
+		if(isIdentity())
+			return in;
+		return FusedPixelTransform.transformAlone(this, in, progressCallback, cancel);
+	}
+
+	@Override
+	public boolean isIdentity() {
+		return get() <= 0f;
+	}
+
+	@Override
+	public boolean needsHistograms() {
+		return true;
+	}
+
+	@Override
+	public int[][] lookupTables(int[][] histograms) {
+		float strength = Math.min(get(), 2f);
+		int[][] tables = new int[3][256];
+		for(int rgb = 0; rgb < 3; rgb++) {
+			int[] histogram = histograms[rgb];
+			int[] stretched = stretch(histogram);
+			int[] from, to;
+			float t;
+			if(strength <= 1f) {
+				from = identity();
+				to = stretched;
+				t = strength;
+			}
+			else {
+				from = stretched;
+				to = equalize(histogram);
+				t = strength - 1;
+			}
+			for(int i = 0; i < 256; i++)
+				tables[rgb][i] = Math.round(from[i] + (to[i] - from[i]) * t);
+		}
+		return tables;
+	}
+	
+	private static int[] identity() {
+		int[] table = new int[256];
+		for(int i = 0; i < 256; i++)
+			table[i] = i;
+		return table;
+	}
+	
+	private static int[] stretch(int[] histogram) {
+		int low = Histograms.percentile(histogram, CLIP);
+		int high = Histograms.percentile(histogram, 1 - CLIP);
+		if(high <= low)
+			return identity(); // A single value has nothing to stretch.
+		int[] table = new int[256];
+		for(int i = 0; i < 256; i++) {
+			int v = Math.round((i - low) * 255f / (high - low));
+			table[i] = Math.max(0, Math.min(255, v));
+		}
+		return table;
+	}
+	
+	/**
+	 * Each value to the fraction of the pixels at or below it, with the lowest value used at 0.
+	 */
+	private static int[] equalize(int[] histogram) {
+		long count = Histograms.count(histogram);
+		long first = 0; // Pixels with the lowest value.
+		for(int i = 0; i < 256 && first == 0; i++)
+			first = histogram[i];
+		if(count == first)
+			return identity();
+		int[] table = new int[256];
+		long below = 0;
+		for(int i = 0; i < 256; i++) {
+			below += histogram[i];
+			table[i] = (int)Math.max(0, Math.round(255.0 * (below - first) / (count - first)));
+		}
+		return table;
+	}
+
+	@Override
+	public Dimension getTransformedSize(Dimension in) {
+		return in;
+	}
+
+	@Override
+	public void paintIcon(Graphics2D g, int size) {
+		Icons.levels(size).paintIcon(null, g, 0, 0);
+	}
+}
@@ -6,6 +6,7 @@ import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public class BrightnessTransform extends RGBTransform {
@@ -15,16 +16,39 @@ public class BrightnessTransform extends RGBTransform {
 
 	@Override
 	public BufferedImage transformUnbuffered(BufferedImage in,
-			ProgressCallback progressCallback) {
+			ProgressCallback progressCallback, CancellationToken cancel) {
 		if(allAreOne())
 			return in;
 
-		RescaleOp op = new RescaleOp(get(), new float[3], null);
 		BufferedImage out = new BufferedImage(in.getWidth(), in.getHeight(), BufferedImage.TYPE_INT_RGB);
-		op.filter(in, out);
+		op().filter(in, out);
 		// TODO: Use progressCallback!
 		return out;
 	}
+	
+	private RescaleOp op() {
+		return new RescaleOp(get(), new float[3], null);
+	}
+
+	/**
+	 * The tables are read from the op applied to all values, so they give the same colors as the op.
+	 */
+	@Override
+	public int[][] lookupTables(int[][] histograms) {
+		BufferedImage ramp = new BufferedImage(256, 1, BufferedImage.TYPE_INT_RGB);
+		for(int i = 0; i < 256; i++)
+			ramp.setRGB(i, 0, (i << 16) | (i << 8) | i);
+		BufferedImage out = new BufferedImage(256, 1, BufferedImage.TYPE_INT_RGB);
+		op().filter(ramp, out);
+		int[][] tables = new int[3][256];
+		for(int i = 0; i < 256; i++) {
+			int rgb = out.getRGB(i, 0);
+			tables[0][i] = (rgb >> 16) & 0xFF;
+			tables[1][i] = (rgb >> 8) & 0xFF;
+			tables[2][i] = rgb & 0xFF;
+		}
+		return tables;
+	}
 
 	@Override
 	public Dimension getTransformedSize(Dimension in) {
@@ -1,71 +1,131 @@
 package transforms;
 
 import java.awt.*;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
 import mosaic.controllers.ColorController;
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
 import colors.*;
 
-public abstract class BufferedLEGOColorTransform implements LEGOColorTransform, InstructionsTransform {
-	private TransformationSet[] sets;
-	private int pairIndex, lastIndex;
+/**
+ * Keeps the colors in the shared StageCache under the parameter key of the transform.
+ * As for BufferedTransform, each run is computed by a snapshot of the transform, which also gives the key.
+ * The instructions are drawn for the colors of the last transformation.
+ * Views drawing while the next colors are computed use the MosaicSnapshot of the ToBricksTransform instead.
+ */
+public abstract class BufferedLEGOColorTransform implements LEGOColorTransform, InstructionsTransform, Cloneable {
+	private volatile LEGOColorGrid last;
+	private volatile int threads = Runtime.getRuntime().availableProcessors();
+	private Object generation = new Object();
+	private Object stage = this; // Results are keyed by the stage computing them.
+	private ProgressCallback progressCallback = ProgressCallback.NOP;
 	private ColorController cc;
 
-	public BufferedLEGOColorTransform(int bufferSize, ColorController cc) {
+	public BufferedLEGOColorTransform(ColorController cc) {
 		this.cc = cc;
-		sets = new TransformationSet[bufferSize];
-		lastIndex = -1;
-		pairIndex = 0;
 	}
 
-	public BufferedLEGOColorTransform(ColorController cc) {
-		this(1, cc);
+	/**
+	 * Makes results computed so far unreachable for transforms keyed by generation.
+	 */
+	public void clearBuffer() {
+		generation = new Object();
 	}
 
-	public void clearBuffer() {
-		int size = sets.length;
-		sets = new TransformationSet[size];
+	/**
+	 * Makes this transform use the results of t in the StageCache and t use those of this.
+	 * Only for copies of t, as the parameter key has to tell all settings apart.
+	 */
+	void shareStage(BufferedLEGOColorTransform t) {
+		stage = t.stage;
 	}
 
-	@Override
-	public LEGOColorGrid lcTransform(BufferedImage in) {
-		return transformSet(in).colors;
+	/**
+	 * @return Everything besides the input the colors depend on. Must implement equals() and hashCode().
+	 * By default a generation which changes when the buffer is cleared.
+	 */
+	protected Object getParameterKey() {
+		return generation;
+	}
+
+	/**
+	 * @return Copy of this transform with its settings as they are now. Settings changed later don't affect it.
+	 * Subclasses pin the colors of their ColorMatcher, as the colors can be changed during a run.
+	 */
+	protected BufferedLEGOColorTransform snapshot() {
+		try {
+			return (BufferedLEGOColorTransform)clone();
+		}
+		catch(CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	@Override
-	public BufferedImage transform(BufferedImage in) {
-		transformSet(in);
-		return null;
-		//return transformSet(in).out;
+	public void setProgressCallback(ProgressCallback progressCallback) {
+		this.progressCallback = progressCallback;
 	}
 
-	private TransformationSet transformSet(BufferedImage in) {
-		for (int i = 0; i < sets.length; i++) {
-			if (sets[i] != null && sets[i].in == in) {
-				lastIndex = i;
-				return sets[i];
-			}
-		}
+	/**
+	 * @param threads Number of threads dithering rows at the same time, such as for the RASTER scan order.
+	 */
+	public void setThreads(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("threads < 1: " + threads);
+		this.threads = threads;
+	}
+	public int getThreads() {
+		return threads;
+	}
 
-		TransformationSet s = new TransformationSet();
-		s.in = in;
-		s.colors = lcTransformUnbuffered(in);
-		//s.out = toBufferedImage(s.colors);
+	@Override
+	public LEGOColorGrid lcTransform(BufferedImage in) {
+		return lcTransform(in, CancellationToken.NONE);
+	}
 
-		if (sets.length == 0)
-			return s;
+	@Override
+	public LEGOColorGrid lcTransform(BufferedImage in, CancellationToken cancel) {
+		LEGOColorGrid colors = transformSet(in, threads, progressCallback, cancel);
+		last = colors;
+		return colors;
+	}
 
-		sets[pairIndex] = s;
-		lastIndex = pairIndex;
+	/**
+	 * For several branches of a stage using the same transform at the same time: Dithers on at most 
+	 * threads threads, reports progress to progressCallback instead of the callback set, and leaves the 
+	 * colors of the last transformation unchanged. The stage sets those with setLastInstructions().
+	 */
+	public LEGOColorGrid lcTransform(BufferedImage in, int threads, ProgressCallback progressCallback, CancellationToken cancel) {
+		return transformSet(in, threads, progressCallback, cancel);
+	}
 
-		pairIndex++;
-		pairIndex %= sets.length;
-		return s;
+	@Override
+	public BufferedImage transform(BufferedImage in) {
+		return transform(in, CancellationToken.NONE);
+	}
+
+	@Override
+	public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
+		lcTransform(in, cancel);
+		return null;
+		//return transformSet(in).out;
 	}
 
-	private static class TransformationSet {
-		public BufferedImage in;//, out;
-		public LEGOColorGrid colors;
+	/*
+	 * A cancelled transformation throws before the colors are buffered, so the buffer only holds complete results.
+	 */
+	private LEGOColorGrid transformSet(BufferedImage in, int threads, ProgressCallback progressCallback, CancellationToken cancel) {
+		BufferedLEGOColorTransform run = snapshot();
+		run.threads = threads; // The results don't depend on the threads.
+		StageCache cache = StageCache.getShared();
+		StageCache.Key key = cache.key(stage, run.getParameterKey(), in);
+		LEGOColorGrid colors = (LEGOColorGrid)cache.get(key);
+		if(colors == null) {
+			colors = run.lcTransformUnbuffered(in, progressCallback, cancel);
+			//s.out = toBufferedImage(s.colors);
+			cache.put(key, colors, StageCache.bytes(colors));
+		}
+		return colors;
 	}
 
 	/*private static BufferedImage toBufferedImage(LEGOColorGrid lcs) {
@@ -89,189 +149,30 @@ public abstract class BufferedLEGOColorTransform implements LEGOColorTransform,
 	public LEGOColor.CountingLEGOColor[] drawLastInstructions(Graphics2D g2,
 			Rectangle unitBounds, int blockWidth, int blockHeight,
 			Dimension toSize) {
-		g2.setColor(Color.WHITE);
-		g2.fillRect(0, 0, toSize.width, toSize.height);
-
-		int w = unitBounds.width / blockWidth;
-		int h = unitBounds.height / blockHeight;
-		double scaleW = toSize.width / (double) w;
-		double scaleH = toSize.height / (double) h;
-		int cellW = (int) Math.round(scaleW);
-		int cellH = (int) Math.round(scaleH);
-
-		if(lastIndex == -1 || sets[lastIndex] == null)
-			return new LEGOColor.CountingLEGOColor[]{};
-		
-		LEGOColorGrid transformedColors = sets[lastIndex].colors;
-		Font font = LEGOColor.makeFont(g2, cellW - 4, cellH - 4, cc,
-				lastUsedColorCounts());
-		g2.setFont(font);
-		FontMetrics fm = g2.getFontMetrics(font);
-		int fontHeight = (fm.getDescent() + fm.getAscent()) / 2;
-
-		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
-		int cnt = 0;
-
-		g2.setColor(Color.BLACK);
-		for (int y = 0; y < h; y++) {
-			int yIndent = (int) Math.round(scaleH * y);
-			int iy = unitBounds.y / blockHeight + y;
-			if (iy >= transformedColors.getHeight())
-				continue;
-			LEGOColor[] row = transformedColors.getRow(iy);
-
-			for (int x = 0; x < w; x++) {
-				int xIndent = (int) Math.round(scaleW * x);
-				Rectangle r = new Rectangle(xIndent, yIndent, cellW, cellH);
-				g2.draw(r);
-
-				int ix = unitBounds.x / blockWidth + x;
-				if (ix < transformedColors.getWidth()) {
-					LEGOColor color = row[ix];
-					int idx = color.getIDRebrickable();
-					if(m[idx] == null) {
-						m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
-						++cnt;
-					}
-					else
-						m[idx].cnt++;
-
-					String id = cc.getShortIdentifier(color);
-					int originX = (int) (r.getCenterX() - g2.getFontMetrics(
-							font).stringWidth(id) / 2);
-					int originY = (int) (r.getCenterY() + fontHeight / 2);
-					g2.drawString(id, originX, originY);
-				}
-			}
-		}
-		return trim(m, cnt);
+		LEGOColorGrid transformedColors = last;
+		return MosaicSnapshot.drawInstructions(transformedColors, MosaicSnapshot.countColors(transformedColors), cc, 
+				g2, unitBounds, blockWidth, blockHeight, toSize);
 	}
 
 	@Override
 	public LEGOColor.CountingLEGOColor[] drawLastColors(Graphics2D g2, Rectangle unitBounds,
 			int blockWidth, int blockHeight, Dimension toSize,
 			int numStudsWide, int numStudsTall, boolean drawOutlines) {
-		// Find scaling parameters:
-		int w = unitBounds.width / blockWidth;
-		int h = unitBounds.height / blockHeight;
-		double scaleW = toSize.width / (double)w;
-		double scaleH = toSize.height / (double)h;
-		int cellW = (int)Math.ceil(scaleW);
-		int cellH = (int)Math.ceil(scaleH);
-
-		// draw colors and studs:
-		if(lastIndex == -1 || sets[lastIndex] == null)
-			return new LEGOColor.CountingLEGOColor[]{};
-		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
-		int cnt = 0;
-
-		LEGOColorGrid transformedColors = sets[lastIndex].colors;
-		for (int y = 0; y < h; y++) {
-			int yIndent = (int)Math.round(scaleH * y);
-			int iy = unitBounds.y / blockHeight + y;
-			if (iy >= transformedColors.getHeight())
-				break;
-			LEGOColor[] row = transformedColors.getRow(iy);
-
-			for (int x = 0; x < w; x++) {
-				int xIndent = (int)Math.round(scaleW * x);
-				Rectangle r = new Rectangle(xIndent, yIndent, cellW, cellH);
-
-				int ix = unitBounds.x / blockWidth + x;
-				if (ix >= transformedColors.getWidth())
-					break;
-					
-				LEGOColor color = row[ix];
-				int idx = color.getIDRebrickable();
-				if(m[idx] == null) {
-					m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
-					++cnt;
-				}
-				else {
-					m[idx].cnt++;
-				}
-				g2.setColor(color.getRGB());
-				g2.fill(r);
-
-				if (numStudsWide > 0 && drawOutlines) {
-					g2.setColor(color.getRGB().equals(Color.BLACK) ? Color.WHITE : Color.BLACK);
-					// Draw studs:
-					final int cell = (int)Math.round(scaleW / numStudsWide);
-					final int stud = (int)Math.round(scaleW * 2 / 3 / numStudsWide);
-					final int gap = (int)Math.round(scaleW / 6 / numStudsWide);
-					for (int xx = 0; xx < numStudsWide; ++xx) {
-						for (int yy = 0; yy < numStudsTall; ++yy) {
-							g2.drawOval(xIndent + cell * xx + gap, yIndent+ cell * yy + gap, stud, stud);
-						}
-					}
-				}
-			}
-		}
-		
-		if(!drawOutlines)
-			return trim(m, cnt);
-
-		// Outlines:
-		for (int y = 0; y < h; y++) {
-			double yIndent = scaleH * y;
-			int iy = unitBounds.y / blockHeight + y;
-			if (iy >= transformedColors.getHeight())
-				break;
-			LEGOColor[] row = transformedColors.getRow(iy);
-
-			for (int x = 0; x < w; x++) {
-				double xIndent = scaleW * x;
-				int ix = unitBounds.x / blockWidth + x;
-				if (ix >= transformedColors.getWidth())
-					break;
-					
-				LEGOColor color = row[ix];
-				g2.setColor(color.getRGB().equals(Color.BLACK) ? Color.WHITE : Color.BLACK);
-				Rectangle2D.Double r = new Rectangle2D.Double(xIndent, yIndent, scaleW, scaleH);
-				g2.draw(r);
-			}
-		}
-		return trim(m, cnt);
+		return MosaicSnapshot.drawColors(last, g2, unitBounds, blockWidth, blockHeight, toSize, numStudsWide, numStudsTall, drawOutlines);
 	}
 	
 	@Override
 	public LEGOColor.CountingLEGOColor[] lastUsedColorCounts() {
-		if (lastIndex == -1 || sets[lastIndex] == null)
-			return new LEGOColor.CountingLEGOColor[] {};
-		LEGOColorGrid transformedColors = sets[lastIndex].colors;
-		if (transformedColors == null)
-			return new LEGOColor.CountingLEGOColor[] {};
-
-		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
-		int entries = 0;
-		for (int y = 0; y < transformedColors.getHeight(); y++) {
-			LEGOColor[] row = transformedColors.getRow(y);
-			for (int x = 0; x < row.length; x++) {
-				LEGOColor c = row[x];
-				LEGOColor.CountingLEGOColor mc = m[c.getIDRebrickable()];
-				if (m[c.getIDRebrickable()] != null) {
-					mc.cnt++;
-				} else {
-					m[c.getIDRebrickable()] = new LEGOColor.CountingLEGOColor(c, 1);
-					++entries;
-				}
-			}
-		}
-		return trim(m, entries);
-	}
-
-	private static LEGOColor.CountingLEGOColor[] trim(LEGOColor.CountingLEGOColor[] m, int size) {
-		LEGOColor.CountingLEGOColor[] out = new LEGOColor.CountingLEGOColor[size];
-		for (int i = 0, idx = 0; i <= LEGOColor.getMaxRebrickableId(); i++) {
-			if(m[i] != null)
-				out[idx++] = m[i];
-		}
-		return out;		
+		return MosaicSnapshot.countColors(last);
 	}
 	
 	public LEGOColorGrid lastInstructions() {
-		return sets[lastIndex].colors;
+		return last;
+	}
+
+	public void setLastInstructions(LEGOColorGrid colors) {
+		last = colors;
 	}
 
-	public abstract LEGOColorGrid lcTransformUnbuffered(BufferedImage in);
+	public abstract LEGOColorGrid lcTransformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel);
 }
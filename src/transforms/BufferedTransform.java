@@ -1,28 +1,61 @@
 package transforms;
 
-//import io.Log;
-
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
-public abstract class BufferedTransform implements Transform {
-	private BufferedImage[][] imagePairs;
-	private int pairIndex;
+/**
+ * Keeps the results in the shared StageCache under the parameter key of the transform.
+ * Each run is computed by a snapshot of the transform, which also gives the key, so settings changed 
+ * during the run, such as by the event dispatch thread, can't make a result end up under another key.
+ */
+public abstract class BufferedTransform implements Transform, Cloneable {
+	private Object generation = new Object();
+	private Object stage = this; // Results are keyed by the stage computing them.
 	private ProgressCallback progressCallback = ProgressCallback.NOP;
 	
-	public BufferedTransform(int bufferSize) {
-		if(bufferSize == 0)
-			throw new IllegalArgumentException();
-		imagePairs = new BufferedImage[bufferSize][2];
+	/**
+	 * Makes results computed so far unreachable for transforms keyed by generation.
+	 */
+	public void clearBuffer() {
+		generation = new Object();
+	}
+	
+	/**
+	 * Makes this transform use the results of t in the StageCache and t use those of this.
+	 * Only for copies of t, as the parameter key has to tell all settings apart.
+	 */
+	void shareStage(BufferedTransform t) {
+		stage = t.stage;
 	}
 
-	public BufferedTransform() {
-		this(1);
+	/**
+	 * @return Everything besides the input the result depends on. Must implement equals() and hashCode().
+	 * By default a generation which changes when the buffer is cleared.
+	 */
+	protected Object getParameterKey() {
+		return generation;
 	}
 	
-	public void clearBuffer() {
-		imagePairs = new BufferedImage[imagePairs.length][2];		
+	/**
+	 * @return Copy of this transform with its settings as they are now. Settings changed later don't affect it.
+	 * Subclasses with settings changed in place, or read from other objects, copy those as well.
+	 */
+	protected BufferedTransform snapshot() {
+		try {
+			return (BufferedTransform)clone();
+		}
+		catch(CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return Key of the results of this transform. Shared by snapshots and copies sharing the stage.
+	 */
+	Object getStage() {
+		return stage;
 	}
 	
 	@Override
@@ -32,28 +65,32 @@ public abstract class BufferedTransform implements Transform {
 	
 	@Override
 	public BufferedImage transform(BufferedImage in) {
+		return transform(in, CancellationToken.NONE);
+	}
+	
+	/**
+	 * A cancelled transformation throws before its output is buffered, so the buffer only holds complete results.
+	 */
+	@Override
+	public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
 		progressCallback.reportProgress(0);
+		if(in == null)
+			return null; // Such as after a LEGO color transform.
 		
-		for(BufferedImage[] pair : imagePairs) {
-			if(pair[0] == in) {
-				if(progressCallback != null)
-					progressCallback.reportProgress(1000);
-				return pair[1];
-			}
+		BufferedTransform run = snapshot();
+		StageCache cache = StageCache.getShared();
+		StageCache.Key key = cache.key(stage, run.getParameterKey(), in);
+		BufferedImage out = (BufferedImage)cache.get(key);
+		if(out != null) {
+			progressCallback.reportProgress(1000);
+			return out;
 		}
 		
-		//long startTime = System.currentTimeMillis();
-		BufferedImage newOut = transformUnbuffered(in, progressCallback);
-		imagePairs[pairIndex] = new BufferedImage[]{in, newOut};
-		
-		pairIndex++;
-		if(pairIndex == imagePairs.length)
-			pairIndex = 0;
-		//long endTime = System.currentTimeMillis();
-		//Log.log(getClass().getName() + " transformation performed in " + (endTime-startTime) + "ms.");
+		out = run.transformUnbuffered(in, progressCallback, cancel); // Timed by the StageStats of the pipeline.
+		cache.put(key, out, StageCache.bytes(out, in));
 		progressCallback.reportProgress(1000);
-		return newOut;
+		return out;
 	}
 	
-	public abstract BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback);
+	public abstract BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel);
 }
@@ -2,11 +2,11 @@ package transforms;
 
 import icon.Icons;
 
-import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public class ContrastTransform extends RGBTransform {
@@ -15,44 +15,34 @@ public class ContrastTransform extends RGBTransform {
 	}
 
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback) {
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
 		if(allAreOne())
 			return in;
+		return FusedPixelTransform.transformAlone(this, in, progressCallback, cancel);
+	}
 
-		int w = in.getWidth();
-		int h = in.getHeight();
-		
-		int sumR = 0;
-		int sumG = 0;
-		int sumB = 0;
-		int[] rgbs = in.getRGB(0, 0, w, h, null, 0, w);
-		for(int i = 0; i < rgbs.length; ++i) {			
-			int rgb = rgbs[i];
-			Color color = new Color(rgb);
-			sumR += color.getRed();
-			sumG += color.getGreen();
-			sumB += color.getBlue();
-			progressCallback.reportProgress((int)(700.0 * i / rgbs.length));
-		}
-		float meanR = sumR / rgbs.length;
-		float meanG = sumG / rgbs.length;
-		float meanB = sumB / rgbs.length;
+	@Override
+	public boolean needsHistograms() {
+		return true;
+	}
 
-		short[][] contrastSpectrum = new short[3][256];
-		for(int i = 0; i < 256; i++) {
-			short r = (short)Math.round(meanR + (i-meanR)*get(0));
-			short g = (short)Math.round(meanG + (i-meanG)*get(1));
-			short b = (short)Math.round(meanB + (i-meanB)*get(2));
-			contrastSpectrum[0][i] = cut(r);
-			contrastSpectrum[1][i] = cut(g);
-			contrastSpectrum[2][i] = cut(b);
-		}
-		progressCallback.reportProgress(800);
+	/**
+	 * Contrast is changed around the mean of each color component.
+	 */
+	@Override
+	public int[][] lookupTables(int[][] histograms) {
+		float[] means = new float[3];
+		for(int rgb = 0; rgb < 3; rgb++)
+			means[rgb] = (float)Histograms.mean(histograms[rgb]);
 
-		LookupTable table = new ShortLookupTable(0,contrastSpectrum);
-		BufferedImage tmp = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		progressCallback.reportProgress(900);
-		return new LookupOp(table, null).filter(in, tmp);
+		int[][] contrastSpectrum = new int[3][256];
+		for(int rgb = 0; rgb < 3; rgb++) {
+			for(int i = 0; i < 256; i++) {
+				short s = (short)Math.round(means[rgb] + (i-means[rgb])*get(rgb));
+				contrastSpectrum[rgb][i] = cut(s);
+			}
+		}
+		return contrastSpectrum;
 	}
 
 	private static short cut(short s) {
@@ -5,25 +5,39 @@ import icon.Icons;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 
-import javax.swing.event.ChangeEvent;
-import javax.swing.event.ChangeListener;
-
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 import mosaic.ui.Cropper;
 
+/**
+ * Crops as set by the Cropper. The results are keyed by the relative crop, which a snapshot reads once, 
+ * as the crop is changed by dragging on the event dispatch thread.
+ */
 public class CropTransform extends BufferedTransform {
 	private Cropper cropper;
+	private Rectangle2D.Double relativeCrop; // Of a snapshot. null to read the cropper.
 	
 	public CropTransform(Cropper cropper) {
 		this.cropper = cropper;
-		cropper.addChangeListener(new ChangeListener() {			
-			@Override
-			public void stateChanged(ChangeEvent e) {
-				clearBuffer();
-			}
-		});
+	}
+	
+	private Rectangle2D.Double getRelativeCrop() {
+		return relativeCrop != null ? relativeCrop : cropper.getRelativeCrop();
+	}
+	
+	@Override
+	protected Object getParameterKey() {
+		return getRelativeCrop();
+	}
+	
+	@Override
+	protected BufferedTransform snapshot() {
+		CropTransform snapshot = (CropTransform)super.snapshot();
+		snapshot.relativeCrop = getRelativeCrop();
+		return snapshot;
 	}
 
 	@Override
@@ -38,13 +52,14 @@ public class CropTransform extends BufferedTransform {
 	}
 
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback cb) {
-		if(!cropper.isEnabled())
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback cb, CancellationToken cancel) {
+		Rectangle2D.Double relativeCrop = getRelativeCrop();
+		if(relativeCrop.x == 0 && relativeCrop.y == 0 && relativeCrop.width == 1 && relativeCrop.height == 1)
 			return in;
 		
 		int w = in.getWidth();
 		int h = in.getHeight();
-		Rectangle r = cropper.getCrop(0, 0, w, h);
+		Rectangle r = Cropper.getCrop(relativeCrop, w, h);
 		cb.reportProgress(100);
 		return in.getSubimage(r.x, r.y, r.width, r.height);		
 	}
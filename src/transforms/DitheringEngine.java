@@ -0,0 +1,32 @@
+package transforms;
+
+/**
+ * The ways of dithering a mosaic. Chosen per mosaic. Without dithering (0%) colors are matched by threshold.
+ * @author LD
+ */
+public enum DitheringEngine {
+	FLOYD_STEINBERG("Floyd-Steinberg"),
+	ORDERED_BAYER("Ordered (Bayer)"),
+	BLUE_NOISE("Blue noise"),
+	JARVIS_JUDICE_NINKE("Jarvis-Judice-Ninke"),
+	STUCKI("Stucki"),
+	SIERRA("Sierra"),
+	ATKINSON("Atkinson");
+	
+	private final String displayName;
+	private DitheringEngine(String displayName) {
+		this.displayName = displayName;
+	}
+	
+	/**
+	 * @return true if the engine diffuses error between pixels, so each row depends on the rows above.
+	 */
+	public boolean isErrorDiffusion() {
+		return this != ORDERED_BAYER && this != BLUE_NOISE;
+	}
+	
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
@@ -0,0 +1,286 @@
+package transforms;
+
+import icon.Icons;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+import java.util.Arrays;
+
+import mosaic.controllers.ColorController;
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+import transforms.FloydSteinbergTransform.ErrorClamp;
+import transforms.FloydSteinbergTransform.ScanOrder;
+import colors.*;
+
+/**
+ * Error diffusion dithering driven by a Kernel: The weights with which the error of a pixel is spread to 
+ * the pixels to its right and to the rows below. Error spread outside of the image is dropped.
+ * 
+ * As in FloydSteinbergTransform, the error is kept in rows of signed ints per color component, and only the 
+ * rows currently in use are kept. With the RASTER scan order the rows are dithered in parallel as a wavefront: 
+ * Each row follows left+right+1 pixels behind the row above, where left and right are how far the kernel 
+ * reaches to each side. By then the row above has spread all its error into the pixels the row reads, and no 
+ * longer writes to the pixels the row writes to. The result is the same as when dithering the rows one at a time.
+ * 
+ * ErrorClamp.COMPATIBILITY is handled as ErrorClamp.CLAMP_VALUE, since there is no older behavior to keep.
+ */
+public class ErrorDiffusionTransform extends BufferedLEGOColorTransform {
+	public static class Kernel {
+		public static final Kernel FLOYD_STEINBERG = new Kernel("Floyd-Steinberg", 16, 1, new int[][]{
+			{0, 0, 7},
+			{3, 5, 1}});
+		public static final Kernel JARVIS_JUDICE_NINKE = new Kernel("Jarvis-Judice-Ninke", 48, 2, new int[][]{
+			{0, 0, 0, 7, 5},
+			{3, 5, 7, 5, 3},
+			{1, 3, 5, 3, 1}});
+		public static final Kernel STUCKI = new Kernel("Stucki", 42, 2, new int[][]{
+			{0, 0, 0, 8, 4},
+			{2, 4, 8, 4, 2},
+			{1, 2, 4, 2, 1}});
+		public static final Kernel SIERRA = new Kernel("Sierra", 32, 2, new int[][]{
+			{0, 0, 0, 5, 3},
+			{2, 4, 5, 4, 2},
+			{0, 2, 3, 2, 0}});
+		public static final Kernel ATKINSON = new Kernel("Atkinson", 8, 1, new int[][]{ // Spreads only 6/8 of the error.
+			{0, 0, 1, 1},
+			{1, 1, 1, 0},
+			{0, 1, 0, 0}});
+		
+		public final String name;
+		private final int divisor, left, right, depth;
+		private final int[] dxs, dys, weights; // Non-zero weights ordered by row.
+		private final int[] tapsInRows; // Number of weights in the rows up to and including each row.
+		
+		/**
+		 * @param divisor The error spread by a weight is weight/divisor.
+		 * @param originX Column of the current pixel in the first row of weights. Weights left of it and under it must be 0.
+		 * @param weights Rows of weights. The first row is the row of the current pixel.
+		 */
+		public Kernel(String name, int divisor, int originX, int[][] weights) {
+			this.name = name;
+			this.divisor = divisor;
+			int columns = weights[0].length;
+			left = originX;
+			right = columns-1-originX;
+			depth = weights.length-1;
+			int taps = 0;
+			for(int y = 0; y < weights.length; y++) {
+				if(weights[y].length != columns)
+					throw new IllegalArgumentException("Rows of weights must have the same length");
+				for(int x = 0; x < columns; x++) {
+					if(weights[y][x] == 0)
+						continue;
+					if(y == 0 && x <= originX)
+						throw new IllegalArgumentException("Error can only be spread to pixels not yet dithered");
+					taps++;
+				}
+			}
+			dxs = new int[taps];
+			dys = new int[taps];
+			this.weights = new int[taps];
+			tapsInRows = new int[weights.length];
+			for(int y = 0, i = 0; y < weights.length; y++) {
+				for(int x = 0; x < columns; x++) {
+					if(weights[y][x] == 0)
+						continue;
+					dxs[i] = x-originX;
+					dys[i] = y;
+					this.weights[i] = weights[y][x];
+					i++;
+				}
+				tapsInRows[y] = i;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	private volatile int propagationPercentage;
+	private ColorMatcher colorMatcher;
+	private volatile Kernel kernel;
+	private volatile ScanOrder scanOrder = ScanOrder.SERPENTINE;
+	private volatile ErrorClamp errorClamp = ErrorClamp.CLAMP_VALUE;
+	
+	public ErrorDiffusionTransform(Kernel kernel, int pp, ColorMatcher colorMatcher, ColorController cc) {
+		super(cc);
+		this.kernel = kernel;
+		propagationPercentage = pp;
+		this.colorMatcher = colorMatcher;
+	}
+	
+	public boolean setKernel(Kernel kernel) {
+		if(this.kernel == kernel)
+			return false;
+		this.kernel = kernel;
+		clearBuffer();
+		return true;
+	}
+	public Kernel getKernel() {
+		return kernel;
+	}
+	
+	public boolean setPropagationPercentage(int pp) {
+		if(propagationPercentage == pp)
+			return false;
+		propagationPercentage = pp;
+		clearBuffer();
+		return true;
+	}
+	public int getPropagationPercentage() {
+		return propagationPercentage;
+	}
+	
+	public boolean setScanOrder(ScanOrder scanOrder) {
+		if(this.scanOrder == scanOrder)
+			return false;
+		this.scanOrder = scanOrder;
+		clearBuffer();
+		return true;
+	}
+	
+	public boolean setErrorClamp(ErrorClamp errorClamp) {
+		if(errorClamp == ErrorClamp.COMPATIBILITY)
+			errorClamp = ErrorClamp.CLAMP_VALUE;
+		if(this.errorClamp == errorClamp)
+			return false;
+		this.errorClamp = errorClamp;
+		clearBuffer();
+		return true;
+	}
+	
+	@Override
+	protected Object getParameterKey() {
+		return Arrays.asList(kernel, propagationPercentage, scanOrder, errorClamp, colorMatcher.getFingerprint());
+	}
+
+	@Override
+	protected BufferedLEGOColorTransform snapshot() {
+		ErrorDiffusionTransform snapshot = (ErrorDiffusionTransform)super.snapshot();
+		snapshot.colorMatcher = colorMatcher.snapshot();
+		return snapshot;
+	}
+	
+	private static int boundFF(int a) {
+		return a < 0 ? 0 : (a > 255 ? 255 : a);
+	}
+
+	@Override
+	public LEGOColorGrid lcTransformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
+		int w = in.getWidth();
+		int h = in.getHeight();
+		if(w == 0 || h == 0)
+			throw new IllegalArgumentException("In-image has null dimension!");
+		
+		LEGOColor[][] out = new LEGOColor[h][w];
+		int threads = scanOrder == ScanOrder.RASTER ? Math.min(getThreads(), h) : 1;
+		Wavefront.run(h, threads, new ErrorRows(in, out, w, h, threads), progressCallback, cancel);
+		return new LEGOColorGrid(out);
+	}
+	
+	/**
+	 * Rows of pixels and error for the rows currently in use: The rows reached by the kernel, 
+	 * and one more for each additional thread.
+	 */
+	private class ErrorRows implements Wavefront.Rows {
+		private final int[] in; // Pixels of the image dithered.
+		private final LEGOColor[][] out;
+		private final int w, h, pp, scale, pad, lag;
+		private final Kernel k;
+		private final boolean serpentine;
+		private final ErrorClamp clamp;
+		private final int[][] pixels, red, green, blue;
+		
+		ErrorRows(BufferedImage in, LEGOColor[][] out, int w, int h, int threads) {
+			this.in = IntRaster.of(in).getPixels();
+			this.out = out;
+			this.w = w;
+			this.h = h;
+			k = kernel;
+			pp = propagationPercentage;
+			scale = 100*k.divisor;
+			pad = Math.max(k.left, k.right); // Error spread outside of the image lands here.
+			lag = k.left + k.right + 1;
+			serpentine = scanOrder == ScanOrder.SERPENTINE;
+			clamp = errorClamp;
+			int rows = k.depth + Math.max(1, threads);
+			pixels = new int[rows][w];
+			red = new int[rows][w+2*pad];
+			green = new int[rows][w+2*pad];
+			blue = new int[rows][w+2*pad];
+		}
+
+		@Override
+		public void run(int y, Wavefront wavefront) {
+			final int rows = pixels.length;
+			final int[] row = pixels[y % rows];
+			System.arraycopy(in, y*w, row, 0, w);
+			if(y + k.depth < h) {
+				// This row is the first to spread error into the row depth below. Last used by a completed row:
+				int slot = (y + k.depth) % rows;
+				Arrays.fill(red[slot], 0);
+				Arrays.fill(green[slot], 0);
+				Arrays.fill(blue[slot], 0);
+			}
+			// Error rows reached, and the weights reaching rows inside of the image:
+			final int reach = Math.min(k.depth, h-1-y);
+			final int[][] errR = new int[reach+1][], errG = new int[reach+1][], errB = new int[reach+1][];
+			for(int dy = 0; dy <= reach; dy++) {
+				errR[dy] = red[(y+dy) % rows];
+				errG[dy] = green[(y+dy) % rows];
+				errB[dy] = blue[(y+dy) % rows];
+			}
+			final int taps = k.tapsInRows[reach];
+			final int[] dxs = k.dxs, dys = k.dys, weights = k.weights;
+			
+			final int dir = serpentine && (y & 1) == 1 ? -1 : 1;
+			final int start = dir == 1 ? 0 : w-1;
+			final int[] curR = errR[0], curG = errG[0], curB = errB[0];
+			final LEGOColor[] outRow = out[y];
+			int aboveDone = y == 0 || wavefront == null ? w : 0;
+			for(int i = 0; i < w; i++) {
+				if(aboveDone < Math.min(i+lag, w))
+					aboveDone = wavefront.await(y-1, Math.min(i+lag, w)); // Only RASTER, so i == x.
+				final int x = start+dir*i;
+				final int pixel = row[x];
+				final int r = LEGOColorLookUp.getRed(pixel) + curR[x+pad]/scale;
+				final int g = LEGOColorLookUp.getGreen(pixel) + curG[x+pad]/scale;
+				final int b = LEGOColorLookUp.getBlue(pixel) + curB[x+pad]/scale;
+				
+				LEGOColor nearest = colorMatcher.lookUp(boundFF(r), boundFF(g), boundFF(b));
+				outRow[x] = nearest;
+				final int c = nearest.getRGB().getRGB();
+				final int eR = pp*clamp.error(r, LEGOColorLookUp.getRed(c));
+				final int eG = pp*clamp.error(g, LEGOColorLookUp.getGreen(c));
+				final int eB = pp*clamp.error(b, LEGOColorLookUp.getBlue(c));
+				if(eR != 0 || eG != 0 || eB != 0) {
+					for(int t = 0; t < taps; t++) {
+						final int dy = dys[t];
+						final int ix = x + pad + dir*dxs[t];
+						final int weight = weights[t];
+						errR[dy][ix] += weight*eR;
+						errG[dy][ix] += weight*eG;
+						errB[dy][ix] += weight*eB;
+					}
+				}
+				if(wavefront != null)
+					wavefront.done(y, i+1);
+			}
+		}
+	}
+
+	@Override
+	public Dimension getTransformedSize(Dimension in) {
+		return in;
+	}
+
+	@Override
+	public void paintIcon(Graphics2D g, int size) {
+		Kernel k = kernel;
+		Icons.errorDiffusion(size, k.dxs, k.dys, k.weights).paintIcon(null, g, 0, 0);
+	}
+}
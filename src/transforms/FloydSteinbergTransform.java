@@ -5,23 +5,86 @@ import icon.Icons;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
+import java.util.Arrays;
 
 import mosaic.controllers.ColorController;
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 import colors.*;
 
+/**
+ * Floyd-Steinberg dithering.
+ * 
+ * With the SERPENTINE scan order every other row is scanned right to left. Each row then starts
+ * where the previous row ended, so the rows are dithered one at a time.
+ * With the RASTER scan order all rows are scanned left to right. A row only needs the error from 
+ * the row above, so the rows are dithered in parallel as a wavefront: Each row follows 3 pixels behind 
+ * the row above. The result is the same as when dithering the rows one at a time.
+ * 
+ * The ErrorClamp decides how colors outside of 0-255 are handled. Except for COMPATIBILITY, the error
+ * is kept in separate rows of signed ints per color component rather than being added to the pixels.
+ */
 public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
-	private int propagationPercentage;
-	private ProgressCallback progressCallback = ProgressCallback.NOP;
+	public static enum ScanOrder {
+		SERPENTINE, RASTER;
+	}
 	
-	public FloydSteinbergTransform(int pp, ColorController cc) {
-		super(1, cc);
-		propagationPercentage = pp;
+	public static enum ErrorClamp {
+		/**
+		 * Error is added to the pixels and the components are clamped to 0-255 after each addition.
+		 * Error beyond the clamp is lost, and rounding happens for each addition.
+		 */
+		COMPATIBILITY("Clamp after each diffusion (compatible)") {
+			@Override
+			public int error(int value, int chosen) {
+				return value - chosen;
+			}
+		},
+		/**
+		 * The sum of the pixel and the error diffused into it is clamped to 0-255 once. 
+		 * The error diffused further is the difference between the clamped color and the chosen color.
+		 */
+		CLAMP_VALUE("Clamp each color once") {
+			@Override
+			public int error(int value, int chosen) {
+				return boundFF(value) - chosen;
+			}
+		},
+		/**
+		 * The color is only clamped to 0-255 to find the closest color. The error diffused further is 
+		 * the full difference, limited to -255 to 255 so colors which can't be reached don't build up error.
+		 */
+		CLAMP_ERROR("Keep the error, limited to 255") {
+			@Override
+			public int error(int value, int chosen) {
+				int e = value - chosen;
+				return e < -255 ? -255 : (e > 255 ? 255 : e);
+			}
+		};
+		
+		public String title;
+		
+		private ErrorClamp(String title) {
+			this.title = title;
+		}
+		
+		/**
+		 * @param value Color component including diffused error. Can be outside of 0-255.
+		 * @param chosen Color component of the chosen color.
+		 * @return Error to diffuse further.
+		 */
+		public abstract int error(int value, int chosen);
 	}
 	
-	public FloydSteinbergTransform(int bufferSize, int pp, ColorController cc) {
-		super(bufferSize, cc);
+	private volatile int propagationPercentage;
+	private ColorMatcher colorMatcher;
+	private volatile ScanOrder scanOrder = ScanOrder.SERPENTINE;
+	private volatile ErrorClamp errorClamp = ErrorClamp.COMPATIBILITY;
+	
+	public FloydSteinbergTransform(int pp, ColorMatcher colorMatcher, ColorController cc) {
+		super(cc);
 		propagationPercentage = pp;
+		this.colorMatcher = colorMatcher;
 	}
 	
 	public boolean setPropagationPercentage(int pp) {
@@ -35,6 +98,40 @@ public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
 		return propagationPercentage;
 	}
 	
+	public boolean setScanOrder(ScanOrder scanOrder) {
+		if(this.scanOrder == scanOrder)
+			return false;
+		this.scanOrder = scanOrder;
+		clearBuffer();
+		return true;
+	}
+	public ScanOrder getScanOrder() {
+		return scanOrder;
+	}
+	
+	public boolean setErrorClamp(ErrorClamp errorClamp) {
+		if(this.errorClamp == errorClamp)
+			return false;
+		this.errorClamp = errorClamp;
+		clearBuffer();
+		return true;
+	}
+	public ErrorClamp getErrorClamp() {
+		return errorClamp;
+	}
+	
+	@Override
+	protected Object getParameterKey() {
+		return Arrays.asList(propagationPercentage, scanOrder, errorClamp, colorMatcher.getFingerprint());
+	}
+
+	@Override
+	protected BufferedLEGOColorTransform snapshot() {
+		FloydSteinbergTransform snapshot = (FloydSteinbergTransform)super.snapshot();
+		snapshot.colorMatcher = colorMatcher.snapshot();
+		return snapshot;
+	}
+	
 	private static int boundFF(int a) {
 		if(a < 0) {
 			return 0;
@@ -44,21 +141,13 @@ public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
 		}
 		return a;
 	}
-	private static void splitColor(int c, int[] components) {
-		components[0] = LEGOColorLookUp.getRed(c);
-		components[1] = LEGOColorLookUp.getGreen(c);
-		components[2] = LEGOColorLookUp.getBlue(c);
-	}
-	private static int mergeColor(int[] components) {
-		return (components[0] << 16) + (components[1] << 8) + components[2];
-	}	
 	private static void diff(int before, int after, int[] out) {
 		out[0] = LEGOColorLookUp.getRed(before) - LEGOColorLookUp.getRed(after);
 		out[1] = LEGOColorLookUp.getGreen(before) - LEGOColorLookUp.getGreen(after);
 		out[2] = LEGOColorLookUp.getBlue(before) - LEGOColorLookUp.getBlue(after);
 	}	
-	private static void processPixel(final int pixel, LEGOColor[][] out, final int x, final int y, int[] diff) {
-		LEGOColor nearest = LEGOColorLookUp.lookUp(pixel);
+	private void processPixel(final int pixel, LEGOColor[][] out, final int x, final int y, int[] diff) {
+		LEGOColor nearest = colorMatcher.lookUp(pixel);
 		
 		out[y][x] = nearest;
 		diff(pixel, nearest.getRGB().getRGB(), diff);
@@ -66,31 +155,48 @@ public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
 	private void sub(int[] pixels, int pixelIndex, int weight, int[] diff) {
 		if(pixelIndex < 0 || pixelIndex >= pixels.length)
 			return; // Error silently.
-		int[] components = new int[3];
-		splitColor(pixels[pixelIndex], components);
-		for(int i = 0; i < 3; ++i) {
-			components[i] += (weight*diff[i]*propagationPercentage)/1600;
-			components[i] = boundFF(components[i]);
-		}
-		pixels[pixelIndex] = mergeColor(components);
+		int c = pixels[pixelIndex];
+		int r = boundFF(LEGOColorLookUp.getRed(c) + (weight*diff[0]*propagationPercentage)/1600);
+		int g = boundFF(LEGOColorLookUp.getGreen(c) + (weight*diff[1]*propagationPercentage)/1600);
+		int b = boundFF(LEGOColorLookUp.getBlue(c) + (weight*diff[2]*propagationPercentage)/1600);
+		pixels[pixelIndex] = (r << 16) + (g << 8) + b;
 	}
 	
 	@Override
-	public LEGOColorGrid lcTransformUnbuffered(BufferedImage in) {		
-		int w = in.getWidth();
-		int h = in.getHeight();
+	public LEGOColorGrid lcTransformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {		
+		final int w = in.getWidth();
+		final int h = in.getHeight();
 		if(w == 0 || h == 0)
 			throw new IllegalArgumentException("In-image has null dimension!");
-		//io.Log.log("Floyd-Steinberg " + w + "x" + h + " with " + LEGOColorLookUp.size() + " colors.");		
+		//io.Log.log("Floyd-Steinberg " + w + "x" + h + " with " + colorMatcher.size() + " colors.");		
 		
-		int[] pixels = new int[w*h];
-		in.getRGB(0, 0, w, h, pixels, 0, w);
-		LEGOColor[][] out = new LEGOColor[h][w];
-
+		final LEGOColor[][] out = new LEGOColor[h][w];
+		if(errorClamp != ErrorClamp.COMPATIBILITY) {
+			int threads = scanOrder == ScanOrder.RASTER ? Math.min(getThreads(), h) : 1;
+			Wavefront.run(h, threads, new ErrorRows(in, out, w, h, threads), progressCallback, cancel);
+			return new LEGOColorGrid(out);
+		}
+		
+		final int[] pixels = IntRaster.of(in).writable().getPixels(); // The error is added to the pixels.
+		if(scanOrder == ScanOrder.RASTER) {
+			Wavefront.run(h, getThreads(), new Wavefront.Rows() {
+				@Override
+				public void run(int y, Wavefront wavefront) {
+					ditherRasterRow(pixels, out, w, h, y, new int[3], wavefront);
+				}
+			}, progressCallback, cancel);
+		}
+		else
+			ditherSerpentine(pixels, out, w, h, progressCallback, cancel);
+	    return new LEGOColorGrid(out);
+	}
+	
+	private void ditherSerpentine(int[] pixels, LEGOColor[][] out, int w, int h, ProgressCallback progressCallback, CancellationToken cancel) {
 		int[] diff = new int[3];
 		int dir = 1, start = 0;
 		for(int y = 0; y < h-1; y++, dir = -dir, start = (w-1)-start) {
 			progressCallback.reportProgress(1000*y/h);
+			cancel.check();
 			//handle first pixel in each row specially:
 			processPixel(pixels[y*w+start], out, start, y, diff);
 			sub(pixels, y*w+start+dir, 8, diff);
@@ -121,8 +227,160 @@ public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
 		}
 		//handle last pixel in last row specially:
 		processPixel(pixels[w*(h-1)+w-1-start], out, w-1-start, h-1, diff);
+	}
+	
+	/*
+	 * Dithers row y left to right. With a wavefront, pixel x is only processed once the row above 
+	 * has completed pixel x+2: Before then the row above still diffuses error into pixel x and x+1.
+	 */
+	private void ditherRasterRow(int[] pixels, LEGOColor[][] out, int w, int h, int y, int[] diff, Wavefront wavefront) {
+		int aboveDone = y == 0 || wavefront == null ? w : 0;
+		for(int x = 0; x < w; x++) {
+			if(aboveDone < Math.min(x+3, w))
+				aboveDone = wavefront.await(y-1, Math.min(x+3, w));
+			processPixel(pixels[y*w+x], out, x, y, diff);
+			
+			if(y == h-1) {
+				//handle last row specially:
+				if(x < w-1)
+					sub(pixels, x+1+y*w, 16, diff);
+			}
+			else if(x == w-1) {
+				//handle last pixel in each row specially:
+				sub(pixels, x+w*(y+1), 9, diff);
+				if(x > 0)
+					sub(pixels, x-1+w*(y+1), 7, diff);
+			}
+			else if(x == 0) {
+				//handle first pixel in each row specially:
+				sub(pixels, x+1+y*w, 8, diff);
+				sub(pixels, x+w*(y+1), 6, diff);
+				sub(pixels, x+1+w*(y+1), 2, diff);
+			}
+			else {
+				sub(pixels, x+1+w*y, 7, diff);
+				sub(pixels, x-1+w*(y+1), 3, diff);
+				sub(pixels, x  +w*(y+1), 5, diff);
+				sub(pixels, x+1+w*(y+1), 1, diff);
+			}
+			if(wavefront != null)
+				wavefront.done(y, x+1);
+		}
+	}
+	
+	/**
+	 * Dithering with the error kept in rows of signed ints, one array per color component.
+	 * The image is only read. Only the rows of pixels and error currently in use are kept: 2 when the rows
+	 * are dithered one at a time, and one more for each additional thread.
+	 * Error is stored as weight (in 16ths) times propagation percentage, so it is only rounded 
+	 * when read. The same weights as in COMPATIBILITY are used, including at the edges.
+	 */
+	private class ErrorRows implements Wavefront.Rows {
+		private final int[] in; // Pixels of the image dithered.
+		private final LEGOColor[][] out;
+		private final int w, h, pp;
+		private final boolean serpentine;
+		private final ErrorClamp clamp;
+		private final int[][] pixels, red, green, blue;
+		
+		ErrorRows(BufferedImage in, LEGOColor[][] out, int w, int h, int threads) {
+			this.in = IntRaster.of(in).getPixels();
+			this.out = out;
+			this.w = w;
+			this.h = h;
+			pp = propagationPercentage;
+			serpentine = scanOrder == ScanOrder.SERPENTINE;
+			clamp = errorClamp;
+			int rows = Math.max(2, threads+1);
+			pixels = new int[rows][w];
+			red = new int[rows][w];
+			green = new int[rows][w];
+			blue = new int[rows][w];
+		}
 
-	    return new LEGOColorGrid(out);
+		@Override
+		public void run(int y, Wavefront wavefront) {
+			final int rows = red.length;
+			final int[] row = pixels[y % rows];
+			System.arraycopy(in, y*w, row, 0, w);
+			final int[] errR = red[y % rows], errG = green[y % rows], errB = blue[y % rows];
+			final boolean lastRow = y == h-1;
+			int[] nextR = null, nextG = null, nextB = null;
+			if(!lastRow) {
+				// Last used by the row 'rows' below, which is completed:
+				nextR = red[(y+1) % rows];
+				nextG = green[(y+1) % rows];
+				nextB = blue[(y+1) % rows];
+				Arrays.fill(nextR, 0);
+				Arrays.fill(nextG, 0);
+				Arrays.fill(nextB, 0);
+			}
+			final int dir = serpentine && (y & 1) == 1 ? -1 : 1;
+			final int start = dir == 1 ? 0 : w-1;
+			int aboveDone = y == 0 || wavefront == null ? w : 0;
+			int carryR = 0, carryG = 0, carryB = 0; // Error for the next pixel in this row.
+			final LEGOColor[] outRow = out[y];
+			
+			for(int i = 0; i < w; i++) {
+				if(aboveDone < Math.min(i+3, w))
+					aboveDone = wavefront.await(y-1, Math.min(i+3, w)); // Only RASTER, so i == x.
+				final int x = start+dir*i;
+				final int pixel = row[x];
+				final int r = LEGOColorLookUp.getRed(pixel) + (errR[x] + carryR)/1600;
+				final int g = LEGOColorLookUp.getGreen(pixel) + (errG[x] + carryG)/1600;
+				final int b = LEGOColorLookUp.getBlue(pixel) + (errB[x] + carryB)/1600;
+				
+				LEGOColor nearest = colorMatcher.lookUp(boundFF(r), boundFF(g), boundFF(b));
+				outRow[x] = nearest;
+				final int c = nearest.getRGB().getRGB();
+				final int eR = pp*clamp.error(r, LEGOColorLookUp.getRed(c));
+				final int eG = pp*clamp.error(g, LEGOColorLookUp.getGreen(c));
+				final int eB = pp*clamp.error(b, LEGOColorLookUp.getBlue(c));
+				
+				if(lastRow) {
+					carryR = 16*eR;
+					carryG = 16*eG;
+					carryB = 16*eB;
+				}
+				else if(i == w-1) {
+					nextR[x] += 9*eR;
+					nextG[x] += 9*eG;
+					nextB[x] += 9*eB;
+					if(w > 1) {
+						nextR[x-dir] += 7*eR;
+						nextG[x-dir] += 7*eG;
+						nextB[x-dir] += 7*eB;
+					}
+				}
+				else if(i == 0) {
+					carryR = 8*eR;
+					carryG = 8*eG;
+					carryB = 8*eB;
+					nextR[x] += 6*eR;
+					nextG[x] += 6*eG;
+					nextB[x] += 6*eB;
+					nextR[x+dir] += 2*eR;
+					nextG[x+dir] += 2*eG;
+					nextB[x+dir] += 2*eB;
+				}
+				else {
+					carryR = 7*eR;
+					carryG = 7*eG;
+					carryB = 7*eB;
+					nextR[x-dir] += 3*eR;
+					nextG[x-dir] += 3*eG;
+					nextB[x-dir] += 3*eB;
+					nextR[x] += 5*eR;
+					nextG[x] += 5*eG;
+					nextB[x] += 5*eB;
+					nextR[x+dir] += eR;
+					nextG[x+dir] += eG;
+					nextB[x+dir] += eB;
+				}
+				if(wavefront != null)
+					wavefront.done(y, i+1);
+			}
+		}
 	}
 
 	@Override
@@ -134,9 +392,4 @@ public class FloydSteinbergTransform extends BufferedLEGOColorTransform {
 	public void paintIcon(Graphics2D g, int size) {
 		Icons.floydSteinberg(size).paintIcon(null, g, 0, 0);
 	}
-
-	@Override
-	public void setProgressCallback(ProgressCallback p) {
-		this.progressCallback = p;
-	}
 }
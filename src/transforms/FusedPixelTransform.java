@@ -0,0 +1,272 @@
+package transforms;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+
+/**
+ * Applies pixel transforms in the given order in one pass over the pixels, with no images in between.
+ * 
+ * Lookup tables following each other are composed into one table. Transforms which need the histograms 
+ * of their input get them from the histograms of the image passed through the tables before them.
+ * The histograms of the image are shared with other stages through the StageCache (see Histograms).
+ * A transform needing histograms after a transform without tables requires an extra pass.
+ * Rows are processed in parallel. The result is the same as applying the transforms one at a time to 
+ * a TYPE_INT_RGB image. Other images are transformed one transform at a time.
+ */
+public class FusedPixelTransform extends BufferedTransform {
+	private volatile PixelTransform[] steps = new PixelTransform[0];
+	
+	/**
+	 * @param steps Pixel transforms in the order they are applied. Each must be a BufferedTransform and either a LookupTableTransform or a PerPixelTransform.
+	 */
+	public void setSteps(PixelTransform... steps) {
+		this.steps = steps.clone();
+	}
+	
+	public PixelTransform[] getSteps() {
+		return steps.clone();
+	}
+	
+	@Override
+	protected Object getParameterKey() {
+		PixelTransform[] steps = this.steps;
+		List<Object> key = new ArrayList<Object>();
+		for(PixelTransform step : steps) {
+			key.add(((BufferedTransform)step).getStage());
+			key.add(((BufferedTransform)step).getParameterKey());
+		}
+		return key;
+	}
+	
+	/**
+	 * The steps are snapshots as well, as their settings are read while transforming.
+	 */
+	@Override
+	protected BufferedTransform snapshot() {
+		FusedPixelTransform snapshot = (FusedPixelTransform)super.snapshot();
+		PixelTransform[] steps = this.steps;
+		PixelTransform[] stepSnapshots = new PixelTransform[steps.length];
+		for(int i = 0; i < steps.length; i++)
+			stepSnapshots[i] = (PixelTransform)((BufferedTransform)steps[i]).snapshot();
+		snapshot.steps = stepSnapshots;
+		return snapshot;
+	}
+	
+	@Override
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
+		PixelTransform[] steps = this.steps;
+		if(in.getType() != BufferedImage.TYPE_INT_RGB) {
+			for(PixelTransform step : steps)
+				in = step.transform(in, cancel);
+			return in;
+		}
+		
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		IntRaster out = null;
+		int[] pixels = null; // Of out, once the first pass has been made.
+		Pass pass = new Pass();
+		int[][] histograms = null; // Of in or out before the tables and operations of pass.
+		int passes = 0;
+		
+		for(PixelTransform step : steps) {
+			if(step.isIdentity())
+				continue;
+			if(step instanceof PerPixelTransform) {
+				pass.add((PerPixelTransform)step);
+				continue;
+			}
+			LookupTableTransform tableStep = (LookupTableTransform)step;
+			int[][] tables;
+			if(tableStep.needsHistograms()) {
+				if(passes == 0 && !pass.hasOperations()) {
+					if(histograms == null)
+						histograms = Histograms.of(in, progressCallback, cancel).getCounts();
+				}
+				else if(pass.hasOperations()) {
+					// Run the pass so far, which counts the histograms of its output:
+					if(out == null) {
+						out = IntRaster.create(w, h);
+						pixels = out.getPixels();
+					}
+					histograms = pass.run(passes == 0 ? IntRaster.of(in).getPixels() : null, pixels, w, h, true, progressCallback, cancel);
+					passes++;
+					pass = new Pass();
+				}
+				tables = tableStep.lookupTables(pass.map(histograms));
+			}
+			else {
+				tables = tableStep.lookupTables(null);
+			}
+			pass.add(tables);
+		}
+		if(passes == 0 && pass.isEmpty())
+			return in;
+		if(!pass.isEmpty() || passes == 0) {
+			if(out == null) {
+				out = IntRaster.create(w, h);
+				pixels = out.getPixels();
+			}
+			pass.run(passes == 0 ? IntRaster.of(in).getPixels() : null, pixels, w, h, false, progressCallback, cancel);
+		}
+		return out.getImage();
+	}
+	
+	/**
+	 * Applies a single pixel transform in parallel, as a transform does on its own.
+	 */
+	public static BufferedImage transformAlone(PixelTransform step, BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
+		FusedPixelTransform alone = new FusedPixelTransform();
+		alone.setSteps(step);
+		return alone.transformUnbuffered(IntRaster.of(in).getImage(), progressCallback, cancel);
+	}
+	
+	/*
+	 * Lookup tables and operations applied to each pixel in one pass. 
+	 * Tables following each other are composed, so tables and operations alternate.
+	 */
+	private static class Pass {
+		private final List<Object> stages = new ArrayList<Object>(); // int[][] tables or PerPixelTransform.
+		
+		boolean isEmpty() {
+			return stages.isEmpty();
+		}
+		
+		boolean hasOperations() {
+			for(Object stage : stages) {
+				if(stage instanceof PerPixelTransform)
+					return true;
+			}
+			return false;
+		}
+		
+		void add(int[][] tables) {
+			int last = stages.size()-1;
+			if(last >= 0 && stages.get(last) instanceof int[][]) {
+				int[][] before = (int[][])stages.get(last);
+				int[][] composed = new int[3][256];
+				for(int rgb = 0; rgb < 3; rgb++) {
+					for(int i = 0; i < 256; i++)
+						composed[rgb][i] = tables[rgb][before[rgb][i]];
+				}
+				stages.set(last, composed);
+			}
+			else
+				stages.add(tables);
+		}
+		
+		void add(PerPixelTransform op) {
+			stages.add(op);
+		}
+		
+		/*
+		 * Histograms after the tables of a pass without operations.
+		 */
+		int[][] map(int[][] histograms) {
+			if(stages.isEmpty())
+				return histograms;
+			int[][] tables = (int[][])stages.get(0);
+			int[][] mapped = new int[3][256];
+			for(int rgb = 0; rgb < 3; rgb++) {
+				for(int i = 0; i < 256; i++)
+					mapped[rgb][tables[rgb][i]] += histograms[rgb][i];
+			}
+			return mapped;
+		}
+		
+		/**
+		 * @param in Pixels copied into pixels first unless null.
+		 * @return Histograms of the pixels after the pass if count is set.
+		 */
+		int[][] run(final int[] in, final int[] pixels, final int w, final int h, final boolean count, 
+				final ProgressCallback progressCallback, final CancellationToken cancel) {
+			final Object[] stages = this.stages.toArray();
+			final int[][] histograms = count ? new int[3][256] : null;
+			final AtomicInteger rowsDone = new AtomicInteger();
+			RowBands.forEach(h, 16, new RowBands.Band() {
+				@Override
+				public void run(int fromY, int toY) {
+					int[][] bandHistograms = count ? new int[3][256] : null;
+					int[] red = null, green = null, blue = null;
+					if(count) {
+						red = bandHistograms[0];
+						green = bandHistograms[1];
+						blue = bandHistograms[2];
+					}
+					float[] tmp = new float[3];
+					for(int y = fromY; y < toY; y++) {
+						cancel.check();
+						int from = y*w, to = from+w;
+						if(in != null)
+							System.arraycopy(in, from, pixels, from, w);
+						for(Object stage : stages) {
+							if(stage instanceof int[][]) {
+								int[][] tables = (int[][])stage;
+								int[] r = tables[0], g = tables[1], b = tables[2];
+								for(int i = from; i < to; i++) {
+									int rgb = pixels[i];
+									pixels[i] = (r[(rgb >> 16) & 0xFF] << 16) | (g[(rgb >> 8) & 0xFF] << 8) | b[rgb & 0xFF];
+								}
+							}
+							else {
+								PerPixelTransform op = (PerPixelTransform)stage;
+								for(int i = from; i < to; i++)
+									pixels[i] = op.transformPixel(pixels[i], tmp) & 0xFFFFFF;
+							}
+						}
+						if(count) {
+							for(int i = from; i < to; i++) {
+								int rgb = pixels[i];
+								red[(rgb >> 16) & 0xFF]++;
+								green[(rgb >> 8) & 0xFF]++;
+								blue[rgb & 0xFF]++;
+							}
+						}
+					}
+					if(count) {
+						synchronized(histograms) {
+							for(int rgb = 0; rgb < 3; rgb++) {
+								for(int i = 0; i < 256; i++)
+									histograms[rgb][i] += bandHistograms[rgb][i];
+							}
+						}
+					}
+					progressCallback.reportProgress(1000*rowsDone.addAndGet(toY-fromY)/h);
+				}
+			});
+			return histograms;
+		}
+	}
+
+	@Override
+	public Dimension getTransformedSize(Dimension in) {
+		return in;
+	}
+
+	/**
+	 * Icon of the first step changing pixels.
+	 */
+	@Override
+	public void paintIcon(Graphics2D g, int size) {
+		for(PixelTransform step : steps) {
+			if(!step.isIdentity()) {
+				step.paintIcon(g, size);
+				return;
+			}
+		}
+		g.drawOval(0,  0, size, size); // empty icon.
+	}
+	
+	@Override
+	public String toString() {
+		return "Fused " + Arrays.toString(steps);
+	}
+}
@@ -6,6 +6,7 @@ import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public class GammaTransform extends RGBTransform {
@@ -14,7 +15,7 @@ public class GammaTransform extends RGBTransform {
 	}
 
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback) {
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
 		if(allAreOne())
 			return in;
 
@@ -22,16 +23,10 @@ public class GammaTransform extends RGBTransform {
 		int h = in.getHeight();
 		
 		progressCallback.reportProgress(100);
-		short[][] gammaSpectrum = new short[3][256];
-		for(int rgb = 0; rgb < 3; rgb++) {
-			for(int i = 0; i < 256; i++) {
-				long s = Math.round(256*Math.pow(i/256.0, 1/get(rgb)));
-				gammaSpectrum[rgb][i] = (short)Math.min(s, 255);
-			}			
-		}
+		int[][] gammaSpectrum = lookupTables(null);
 
 		progressCallback.reportProgress(300);
-		LookupTable table = new ShortLookupTable(0,gammaSpectrum);
+		LookupTable table = toLookupTable(gammaSpectrum);
 		progressCallback.reportProgress(500);
 		LookupOp op = new LookupOp(table, null);
 		BufferedImage tmp = new BufferedImage(w, h, in.getType());
@@ -41,6 +36,18 @@ public class GammaTransform extends RGBTransform {
 		return out;
 	}
 
+	@Override
+	public int[][] lookupTables(int[][] histograms) {
+		int[][] gammaSpectrum = new int[3][256];
+		for(int rgb = 0; rgb < 3; rgb++) {
+			for(int i = 0; i < 256; i++) {
+				long s = Math.round(256*Math.pow(i/256.0, 1/get(rgb)));
+				gammaSpectrum[rgb][i] = (int)Math.min(s, 255);
+			}			
+		}
+		return gammaSpectrum;
+	}
+
 	@Override
 	public Dimension getTransformedSize(Dimension in) {
 		return in;
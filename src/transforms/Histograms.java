@@ -0,0 +1,131 @@
+package transforms;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+
+/**
+ * Number of pixels with each value 0-255 of red, green and blue.
+ *
+ * Bands of rows are counted in parallel into histograms of their own, which are added up at the end.
+ * The histograms of an image are kept in the StageCache, so the stages needing them share a single count.
+ * Sums over the histograms are longs, as the sum of a component over an image of 8 million pixels overflows an int.
+ */
+public final class Histograms {
+	private static final int MIN_ROWS_PER_BAND = 16;
+	private static final long BYTES = 3*(16 + 4*256);
+
+	private final int[][] counts;
+	private final long pixels;
+
+	/**
+	 * @param counts Histograms of red, green and blue. Not copied.
+	 */
+	public Histograms(int[][] counts) {
+		this.counts = counts;
+		pixels = count(counts[0]);
+	}
+
+	/**
+	 * @return The histograms of image, counted unless they are in the StageCache.
+	 */
+	public static Histograms of(BufferedImage image, ProgressCallback progressCallback, CancellationToken cancel) {
+		StageCache cache = StageCache.getShared();
+		StageCache.Key key = cache.key(Histograms.class, null, image);
+		Histograms histograms = (Histograms)cache.get(key);
+		if(histograms == null) {
+			histograms = count(IntRaster.of(image), progressCallback, cancel);
+			cache.put(key, histograms, BYTES);
+		}
+		return histograms;
+	}
+
+	private static Histograms count(IntRaster raster, final ProgressCallback progressCallback, final CancellationToken cancel) {
+		final int[] pixels = raster.getPixels();
+		final int w = raster.getWidth();
+		final int h = raster.getHeight();
+		final int[][] counts = new int[3][256];
+		final AtomicInteger rowsDone = new AtomicInteger();
+		RowBands.forEach(h, MIN_ROWS_PER_BAND, new RowBands.Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				int[] red = new int[256], green = new int[256], blue = new int[256];
+				for(int y = fromY; y < toY; y++) {
+					cancel.check();
+					for(int i = y*w; i < (y+1)*w; i++) {
+						int rgb = pixels[i];
+						red[(rgb >> 16) & 0xFF]++;
+						green[(rgb >> 8) & 0xFF]++;
+						blue[rgb & 0xFF]++;
+					}
+				}
+				synchronized(counts) {
+					for(int i = 0; i < 256; i++) {
+						counts[0][i] += red[i];
+						counts[1][i] += green[i];
+						counts[2][i] += blue[i];
+					}
+				}
+				progressCallback.reportProgress(1000*rowsDone.addAndGet(toY-fromY)/h);
+			}
+		});
+		return new Histograms(counts);
+	}
+
+	/**
+	 * @return Copies of the histograms of red, green and blue.
+	 */
+	public int[][] getCounts() {
+		int[][] copy = new int[3][];
+		for(int rgb = 0; rgb < 3; rgb++)
+			copy[rgb] = counts[rgb].clone();
+		return copy;
+	}
+
+	public long getPixelCount() {
+		return pixels;
+	}
+
+	/**
+	 * @param rgb 0 for red, 1 for green and 2 for blue.
+	 */
+	public double mean(int rgb) {
+		return mean(counts[rgb]);
+	}
+
+	public static long count(int[] histogram) {
+		long count = 0;
+		for(int i = 0; i < histogram.length; i++)
+			count += histogram[i];
+		return count;
+	}
+
+	/**
+	 * @return The mean value, or 0 for an empty histogram.
+	 */
+	public static double mean(int[] histogram) {
+		long count = 0, sum = 0;
+		for(int i = 0; i < histogram.length; i++) {
+			count += histogram[i];
+			sum += (long)histogram[i] * i;
+		}
+		return count == 0 ? 0 : sum / (double)count;
+	}
+
+	/**
+	 * @param fraction In [0;1].
+	 * @return The smallest value at least the fraction of the pixels have or are below. 0 for an empty histogram.
+	 */
+	public static int percentile(int[] histogram, double fraction) {
+		long count = count(histogram);
+		long below = 0;
+		for(int i = 0; i < histogram.length; i++) {
+			below += histogram[i];
+			if(below > 0 && below >= fraction * count)
+				return i;
+		}
+		return 0;
+	}
+}
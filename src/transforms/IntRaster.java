@@ -0,0 +1,114 @@
+package transforms;
+
+import java.awt.image.*;
+
+/**
+ * The pixels of a TYPE_INT_RGB image as the int array of its raster, so stages read and write pixels
+ * without copying them through getRGB() and setRGB(). Pixels are 0xRRGGBB.
+ *
+ * Images of other types are converted once when wrapped. The pixels of a wrapped image are shared with it,
+ * and images passed between stages may be kept in the StageCache, so they are only read. A stage changing
+ * the pixels of its input calls writable(), which copies them unless this raster was created by the stage.
+ */
+public final class IntRaster {
+	private final BufferedImage image;
+	private final int[] pixels;
+	private final int width, height;
+	private final boolean shared; // Whether the pixels belong to an image given to of().
+
+	private IntRaster(BufferedImage image, boolean shared) {
+		this.image = image;
+		this.shared = shared;
+		width = image.getWidth();
+		height = image.getHeight();
+		pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * @return The pixels of image without copying them when they are stored as RGB ints row by row.
+	 */
+	public static IntRaster of(BufferedImage image) {
+		if(isIntRGB(image))
+			return new IntRaster(image, true);
+		IntRaster converted = create(image.getWidth(), image.getHeight());
+		int[] pixels = converted.pixels;
+		image.getRGB(0, 0, converted.width, converted.height, pixels, 0, converted.width);
+		for(int i = 0; i < pixels.length; ++i)
+			pixels[i] &= 0xFFFFFF;
+		return converted;
+	}
+
+	/**
+	 * @return A new black TYPE_INT_RGB raster which may be written.
+	 */
+	public static IntRaster create(int width, int height) {
+		return new IntRaster(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), false);
+	}
+
+	/**
+	 * For stages reading their input once, row by row: Images of other types are then read one row at a time 
+	 * with readRow() instead of being converted as a whole by of().
+	 * @return The pixels of image if they are stored as RGB ints row by row, otherwise null.
+	 */
+	static int[] pixelsOrNull(BufferedImage image) {
+		return isIntRGB(image) ? ((DataBufferInt)image.getRaster().getDataBuffer()).getData() : null;
+	}
+
+	/**
+	 * Reads row y of image into row as 0xRRGGBB. Threads reading at the same time each use a row of their own.
+	 */
+	static void readRow(BufferedImage image, int y, int[] row) {
+		int w = image.getWidth();
+		image.getRGB(0, y, w, 1, row, 0, w);
+		for(int x = 0; x < w; ++x)
+			row[x] &= 0xFFFFFF;
+	}
+
+	private static boolean isIntRGB(BufferedImage image) {
+		if(image.getType() != BufferedImage.TYPE_INT_RGB)
+			return false;
+		WritableRaster raster = image.getRaster();
+		SampleModel sampleModel = raster.getSampleModel();
+		return raster.getDataBuffer() instanceof DataBufferInt && raster.getParent() == null &&
+				raster.getDataBuffer().getOffset() == 0 && sampleModel instanceof SinglePixelPackedSampleModel &&
+				((SinglePixelPackedSampleModel)sampleModel).getScanlineStride() == image.getWidth();
+	}
+
+	/**
+	 * @return A new raster with the same pixels, which may be written.
+	 */
+	public IntRaster copy() {
+		IntRaster copy = create(width, height);
+		System.arraycopy(pixels, 0, copy.pixels, 0, pixels.length);
+		return copy;
+	}
+
+	/**
+	 * @return This raster if it may be written, otherwise a copy.
+	 */
+	public IntRaster writable() {
+		return shared ? copy() : this;
+	}
+
+	/**
+	 * @return The pixels row by row. Only written when this raster is writable.
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * @return The TYPE_INT_RGB image of the pixels.
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
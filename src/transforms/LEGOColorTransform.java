@@ -4,6 +4,9 @@ import colors.*;
 
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
+
 public interface LEGOColorTransform extends Transform {
 	LEGOColorGrid lcTransform(BufferedImage in);
+	LEGOColorGrid lcTransform(BufferedImage in, CancellationToken cancel);
 }
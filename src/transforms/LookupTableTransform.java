@@ -0,0 +1,17 @@
+package transforms;
+
+/**
+ * Pixel transform through a lookup table per color component, possibly depending on the histograms of the image.
+ */
+public interface LookupTableTransform extends PixelTransform {
+	/**
+	 * @return true if the lookup tables depend on the histograms of the image.
+	 */
+	boolean needsHistograms();
+	
+	/**
+	 * @param histograms Number of pixels with each value 0-255 of red, green and blue. null unless needsHistograms().
+	 * @return Lookup tables from 0-255 to 0-255 for red, green and blue.
+	 */
+	int[][] lookupTables(int[][] histograms);
+}
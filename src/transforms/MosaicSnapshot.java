@@ -0,0 +1,501 @@
+package transforms;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+
+import bricks.ToBricksType;
+import colors.*;
+import mosaic.controllers.ColorController;
+import mosaic.io.InstructionsBuilderI;
+
+/**
+ * The colors of a mosaic as rendered by a complete run of a ToBricksTransform.
+ * Snapshots don't change, so they can be drawn and counted on any thread while the next mosaic is rendered.
+ *
+ * The grids are the results kept in the StageCache, which are never written after being computed.
+ * The type, size and color counts are taken from the same run as the grids, so a snapshot is never mixed 
+ * from two mosaics. For SNOT the orientation of each 2x2 block is kept along with the normal and sideways colors.
+ */
+public final class MosaicSnapshot {
+	private final ToBricksType toBricksType;
+	private final int width, height; // In basic units.
+	private final LEGOColorGrid colors, normalColors, sidewaysColors; // colors when not SNOT.
+	private final boolean[][] normalColorsChosen; // For each SNOT block.
+	private final LEGOColor.CountingLEGOColor[] colorCounts;
+	private final ColorController cc;
+	private final boolean preview;
+
+	private MosaicSnapshot(ToBricksType toBricksType, int width, int height, LEGOColorGrid colors, 
+			LEGOColorGrid normalColors, LEGOColorGrid sidewaysColors, boolean[][] normalColorsChosen, ColorController cc) {
+		this.toBricksType = toBricksType;
+		this.width = width;
+		this.height = height;
+		this.colors = colors;
+		this.normalColors = normalColors;
+		this.sidewaysColors = sidewaysColors;
+		this.normalColorsChosen = normalColorsChosen;
+		this.cc = cc;
+		preview = false;
+		colorCounts = normalColorsChosen != null ? countSnotColors() : countColors(colors);
+	}
+
+	private MosaicSnapshot(MosaicSnapshot m, boolean preview) {
+		toBricksType = m.toBricksType;
+		width = m.width;
+		height = m.height;
+		colors = m.colors;
+		normalColors = m.normalColors;
+		sidewaysColors = m.sidewaysColors;
+		normalColorsChosen = m.normalColorsChosen;
+		colorCounts = m.colorCounts;
+		cc = m.cc;
+		this.preview = preview;
+	}
+
+	/**
+	 * @return A snapshot of no colors, such as before the first mosaic has been rendered.
+	 */
+	public static MosaicSnapshot empty(ToBricksType toBricksType, ColorController cc) {
+		return new MosaicSnapshot(toBricksType, 0, 0, null, null, null, null, cc);
+	}
+
+	/**
+	 * @param colors One color for each element of type.
+	 */
+	public static MosaicSnapshot of(ToBricksType toBricksType, LEGOColorGrid colors, ColorController cc) {
+		if(colors == null)
+			return empty(toBricksType, cc);
+		return new MosaicSnapshot(toBricksType, colors.getWidth()*toBricksType.getUnitWidth(), 
+				colors.getHeight()*toBricksType.getUnitHeight(), colors, null, null, null, cc);
+	}
+
+	/**
+	 * @param normalColorsChosen For each block whether the normal colors are used rather than the sideways.
+	 */
+	public static MosaicSnapshot snot(int width, int height, LEGOColorGrid normalColors, LEGOColorGrid sidewaysColors, 
+			boolean[][] normalColorsChosen, ColorController cc) {
+		if(normalColorsChosen == null)
+			return empty(ToBricksType.SNOT_IN_2_BY_2, cc);
+		return new MosaicSnapshot(ToBricksType.SNOT_IN_2_BY_2, width, height, null, normalColors, sidewaysColors, normalColorsChosen, cc);
+	}
+
+	/**
+	 * @return The same mosaic flagged as a preview, which is shown until the complete mosaic has been rendered.
+	 */
+	public MosaicSnapshot asPreview() {
+		return new MosaicSnapshot(this, true);
+	}
+
+	/**
+	 * @return true for an approximation from ToBricksTransform.preview(), which is never exported or cached.
+	 */
+	public boolean isPreview() {
+		return preview;
+	}
+
+	public ToBricksType getToBricksType() {
+		return toBricksType;
+	}
+
+	/**
+	 * @return Size of the mosaic in basic units.
+	 */
+	public Dimension getSize() {
+		return new Dimension(width, height);
+	}
+
+	/**
+	 * @return Size in elements, or in basic units for SNOT. As ToBricksTransform.getBasicUnitSize().
+	 */
+	public Dimension getBasicUnitSize() {
+		if(toBricksType == ToBricksType.SNOT_IN_2_BY_2)
+			return new Dimension(width, height);
+		else
+			return new Dimension(width/toBricksType.getUnitWidth(), height/toBricksType.getUnitHeight());
+	}
+
+	/**
+	 * @return The colors of the elements, or null for SNOT and when empty.
+	 */
+	public LEGOColorGrid getColors() {
+		return colors;
+	}
+
+	/**
+	 * @return The colors used and how many times. The counts are copies, so they may be changed.
+	 */
+	public LEGOColor.CountingLEGOColor[] getColorCounts() {
+		LEGOColor.CountingLEGOColor[] ret = new LEGOColor.CountingLEGOColor[colorCounts.length];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = new LEGOColor.CountingLEGOColor(colorCounts[i].c, colorCounts[i].cnt);
+		return ret;
+	}
+
+	public LEGOColor.CountingLEGOColor[] drawAll(Graphics2D g2, Dimension toSize) {
+		Rectangle basicUnitRect = new Rectangle(0, 0, width, height);
+		return draw(g2, basicUnitRect, toSize, true, false);
+	}
+
+	public LEGOColor.CountingLEGOColor[] draw(Graphics2D g2, Rectangle basicUnitRect, Dimension toSize, boolean showColors, boolean showOutlines) {
+		if(toBricksType == null)
+			return new LEGOColor.CountingLEGOColor[]{};
+		int basicUnitWidth = toBricksType.getUnitWidth();
+		int basicUnitHeight = toBricksType.getUnitHeight();
+		if(toBricksType == ToBricksType.SNOT_IN_2_BY_2)
+			return drawSnot(g2, basicUnitRect, toSize, showColors, showColors ? showOutlines : true);
+		else if(showColors)
+			return drawColors(colors, g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize, 
+					toBricksType.getStudsShownWide(), toBricksType.getStudsShownTall(), showOutlines);
+		else
+			return drawInstructions(colors, colorCounts, cc, g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize);
+	}
+
+	static LEGOColor.CountingLEGOColor[] drawInstructions(LEGOColorGrid transformedColors, LEGOColor.CountingLEGOColor[] colorCounts, 
+			ColorController cc, Graphics2D g2, Rectangle unitBounds, int blockWidth, int blockHeight, Dimension toSize) {
+		g2.setColor(Color.WHITE);
+		g2.fillRect(0, 0, toSize.width, toSize.height);
+
+		int w = unitBounds.width / blockWidth;
+		int h = unitBounds.height / blockHeight;
+		double scaleW = toSize.width / (double) w;
+		double scaleH = toSize.height / (double) h;
+		int cellW = (int) Math.round(scaleW);
+		int cellH = (int) Math.round(scaleH);
+
+		if(transformedColors == null)
+			return new LEGOColor.CountingLEGOColor[]{};
+		
+		Font font = LEGOColor.makeFont(g2, cellW - 4, cellH - 4, cc, colorCounts);
+		g2.setFont(font);
+		FontMetrics fm = g2.getFontMetrics(font);
+		int fontHeight = (fm.getDescent() + fm.getAscent()) / 2;
+
+		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
+		int cnt = 0;
+
+		g2.setColor(Color.BLACK);
+		for (int y = 0; y < h; y++) {
+			int yIndent = (int) Math.round(scaleH * y);
+			int iy = unitBounds.y / blockHeight + y;
+			if (iy >= transformedColors.getHeight())
+				continue;
+			LEGOColor[] row = transformedColors.getRow(iy);
+
+			for (int x = 0; x < w; x++) {
+				int xIndent = (int) Math.round(scaleW * x);
+				Rectangle r = new Rectangle(xIndent, yIndent, cellW, cellH);
+				g2.draw(r);
+
+				int ix = unitBounds.x / blockWidth + x;
+				if (ix < transformedColors.getWidth()) {
+					LEGOColor color = row[ix];
+					int idx = color.getIDRebrickable();
+					if(m[idx] == null) {
+						m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
+						++cnt;
+					}
+					else
+						m[idx].cnt++;
+
+					String id = cc.getShortIdentifier(color);
+					int originX = (int) (r.getCenterX() - g2.getFontMetrics(
+							font).stringWidth(id) / 2);
+					int originY = (int) (r.getCenterY() + fontHeight / 2);
+					g2.drawString(id, originX, originY);
+				}
+			}
+		}
+		return trim(m, cnt);
+	}
+
+	static LEGOColor.CountingLEGOColor[] drawColors(LEGOColorGrid transformedColors, Graphics2D g2, Rectangle unitBounds,
+			int blockWidth, int blockHeight, Dimension toSize,
+			int numStudsWide, int numStudsTall, boolean drawOutlines) {
+		// Find scaling parameters:
+		int w = unitBounds.width / blockWidth;
+		int h = unitBounds.height / blockHeight;
+		double scaleW = toSize.width / (double)w;
+		double scaleH = toSize.height / (double)h;
+		int cellW = (int)Math.ceil(scaleW);
+		int cellH = (int)Math.ceil(scaleH);
+
+		// draw colors and studs:
+		if(transformedColors == null)
+			return new LEGOColor.CountingLEGOColor[]{};
+		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
+		int cnt = 0;
+
+		for (int y = 0; y < h; y++) {
+			int yIndent = (int)Math.round(scaleH * y);
+			int iy = unitBounds.y / blockHeight + y;
+			if (iy >= transformedColors.getHeight())
+				break;
+			LEGOColor[] row = transformedColors.getRow(iy);
+
+			for (int x = 0; x < w; x++) {
+				int xIndent = (int)Math.round(scaleW * x);
+				Rectangle r = new Rectangle(xIndent, yIndent, cellW, cellH);
+
+				int ix = unitBounds.x / blockWidth + x;
+				if (ix >= transformedColors.getWidth())
+					break;
+					
+				LEGOColor color = row[ix];
+				int idx = color.getIDRebrickable();
+				if(m[idx] == null) {
+					m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
+					++cnt;
+				}
+				else {
+					m[idx].cnt++;
+				}
+				g2.setColor(color.getRGB());
+				g2.fill(r);
+
+				if (numStudsWide > 0 && drawOutlines) {
+					g2.setColor(color.getRGB().equals(Color.BLACK) ? Color.WHITE : Color.BLACK);
+					// Draw studs:
+					final int cell = (int)Math.round(scaleW / numStudsWide);
+					final int stud = (int)Math.round(scaleW * 2 / 3 / numStudsWide);
+					final int gap = (int)Math.round(scaleW / 6 / numStudsWide);
+					for (int xx = 0; xx < numStudsWide; ++xx) {
+						for (int yy = 0; yy < numStudsTall; ++yy) {
+							g2.drawOval(xIndent + cell * xx + gap, yIndent+ cell * yy + gap, stud, stud);
+						}
+					}
+				}
+			}
+		}
+		
+		if(!drawOutlines)
+			return trim(m, cnt);
+
+		// Outlines:
+		for (int y = 0; y < h; y++) {
+			double yIndent = scaleH * y;
+			int iy = unitBounds.y / blockHeight + y;
+			if (iy >= transformedColors.getHeight())
+				break;
+			LEGOColor[] row = transformedColors.getRow(iy);
+
+			for (int x = 0; x < w; x++) {
+				double xIndent = scaleW * x;
+				int ix = unitBounds.x / blockWidth + x;
+				if (ix >= transformedColors.getWidth())
+					break;
+					
+				LEGOColor color = row[ix];
+				g2.setColor(color.getRGB().equals(Color.BLACK) ? Color.WHITE : Color.BLACK);
+				Rectangle2D.Double r = new Rectangle2D.Double(xIndent, yIndent, scaleW, scaleH);
+				g2.draw(r);
+			}
+		}
+		return trim(m, cnt);
+	}
+
+	static LEGOColor.CountingLEGOColor[] countColors(LEGOColorGrid transformedColors) {
+		if (transformedColors == null)
+			return new LEGOColor.CountingLEGOColor[] {};
+
+		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
+		int entries = 0;
+		for (int y = 0; y < transformedColors.getHeight(); y++) {
+			LEGOColor[] row = transformedColors.getRow(y);
+			for (int x = 0; x < row.length; x++) {
+				LEGOColor c = row[x];
+				LEGOColor.CountingLEGOColor mc = m[c.getIDRebrickable()];
+				if (m[c.getIDRebrickable()] != null) {
+					mc.cnt++;
+				} else {
+					m[c.getIDRebrickable()] = new LEGOColor.CountingLEGOColor(c, 1);
+					++entries;
+				}
+			}
+		}
+		return trim(m, entries);
+	}
+
+	private static LEGOColor.CountingLEGOColor[] trim(LEGOColor.CountingLEGOColor[] m, int size) {
+		LEGOColor.CountingLEGOColor[] out = new LEGOColor.CountingLEGOColor[size];
+		for (int i = 0, idx = 0; i <= LEGOColor.getMaxRebrickableId(); i++) {
+			if(m[i] != null)
+				out[idx++] = m[i];
+		}
+		return out;		
+	}
+
+	private LEGOColor.CountingLEGOColor[] drawSnot(Graphics2D g2, Rectangle basicUnitRect, 
+			Dimension toSize, boolean drawColors, boolean showOutlines) {
+		if(normalColorsChosen == null)
+			return new LEGOColor.CountingLEGOColor[]{};
+		if(!drawColors) {
+			g2.setColor(Color.WHITE);
+			g2.fillRect(0, 0, toSize.width, toSize.height);			
+		}
+		
+		int w = basicUnitRect.width/10;
+		int h = basicUnitRect.height/10;
+
+		double scaleW = (double)toSize.width / w;
+		double scaleH = (double)toSize.height / h;
+
+		int fontHeight = 0;
+		if(!drawColors) {
+			Font font = LEGOColor.makeFont(g2, (int)(scaleW/5), (int)(scaleH/5), cc, colorCounts);
+			g2.setFont(font);
+			FontMetrics fm = g2.getFontMetrics(font);
+			fontHeight = (fm.getDescent()+fm.getAscent())/2;			
+		}
+		
+		if(showOutlines) {
+			g2.setColor(Color.BLACK);
+			g2.drawRect(0, 0, toSize.width, toSize.height);			
+		}
+		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
+		int cnt = 0;
+		for(int x = 0; x < w; x++) {
+			for(int y = 0; y < h; y++) {
+				int ix = basicUnitRect.x/10+x;
+				int iy = basicUnitRect.y/10+y;
+				
+				if(normalColorsChosen.length > ix && normalColorsChosen[ix].length > iy) {
+					if(normalColorsChosen[ix][iy])
+						cnt += snot(m, g2, basicUnitRect, true, drawColors, scaleW, scaleH, fontHeight, x, y, showOutlines);
+					else
+						cnt += snot(m, g2, basicUnitRect, false, drawColors, scaleW, scaleH, fontHeight, x, y, showOutlines);
+				}
+			}
+		}
+		return trim(m, cnt);
+	}
+	
+	/*
+	 * For Instructions
+	 */
+	private int snot(LEGOColor.CountingLEGOColor[] m, Graphics2D g2, Rectangle basicUnitRect, 
+								 boolean normal, boolean drawColors, 
+			          			 double scaleW, double scaleH, int fontSize, int x, int y, boolean showOutlines) {
+		int n2 = 2;
+		int n5 = 5;
+		if(!normal) {
+			n2 = 5;
+			n5 = 2;
+		}
+		
+		int ret = 0;
+		for(int j = 0; j < n5; j++) { // =
+			int iy = basicUnitRect.y/n2+y*n5+j;
+			for(int i = 0; i < n2; i++) { // |
+				int ix = basicUnitRect.x/n5+x*n2+i;
+				LEGOColor color = (normal ? normalColors : sidewaysColors).getRow(iy)[ix];
+				int idx = color.getIDRebrickable();
+				
+				if(m[idx] == null) {
+					m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
+					++ret;
+				}
+				else
+					m[idx].cnt++;
+				
+				int xIndent = (int)Math.round(scaleW*x+scaleW/n2*i);
+				int yIndent = (int)Math.round(scaleH*y+scaleH/n5*j);
+				int w = (int)(1+scaleW/n2);
+				int h = (int)(1+scaleH/n5);
+				Rectangle r = new Rectangle(xIndent, yIndent, w, h);
+
+				if(drawColors) {
+					g2.setColor(color.getRGB());
+					g2.fill(r);
+					if(showOutlines) {
+						g2.setColor(color.getRGB() == Color.BLACK ? Color.WHITE : Color.BLACK);
+						g2.draw(r);						
+					}
+				}
+				else {
+					String id = cc.getShortIdentifier(color); // ix + "x" + iy;//
+					int width = g2.getFontMetrics().stringWidth(id);
+					int originX = (int)(r.getCenterX() - width/2);
+					int originY = (int)(r.getCenterY() + fontSize/2);
+					g2.drawString(id, originX, originY);											
+					g2.draw(r);					
+				}
+			}			
+		}
+		return ret;
+	}
+
+	private static boolean addOne(LEGOColor.CountingLEGOColor[] m, LEGOColor c) {
+		int idx = c.getIDRebrickable();
+		if(m[idx] != null) {
+			m[idx].cnt++;
+			return false;
+		}
+		else {
+			m[idx] = new LEGOColor.CountingLEGOColor(c, 1);					
+			return true;
+		}
+	}
+	
+	private LEGOColor.CountingLEGOColor[] countSnotColors() {
+		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
+		int size = 0;
+		for(int x = 0; x < normalColorsChosen.length; x++) {
+			for(int y = 0; y < normalColorsChosen[0].length; y++) {
+				boolean normalColorChosen = normalColorsChosen[x][y];
+				
+				int n2 = 2;
+				int n5 = 5;
+				if(!normalColorChosen) {
+					n2 = 5;
+					n5 = 2;
+				}				
+				
+				for(int h = 0; h < n5; ++h) {
+					LEGOColor[] row = (normalColorChosen ? normalColors : sidewaysColors).getRow(y*n5+h);
+					for(int w = 0; w < n2; ++w) {
+						if(addOne(m, row[x*n2+w]))
+							++size;
+					}
+				}				
+			}
+		}
+		return trim(m, size);
+	}
+
+	/**
+	 * Only for SNOT.
+	 */
+	public void buildInstructions(InstructionsBuilderI printer, Rectangle bounds) {
+		if(normalColorsChosen == null || normalColorsChosen.length == 0)
+			return;
+		int id = 0;
+		int maxX = Math.min(normalColorsChosen.length, bounds.x+bounds.width);
+		for(int x = bounds.x; x < maxX; x++) {
+			int maxY = Math.min(normalColorsChosen[0].length, bounds.y+bounds.height);
+			for(int y = bounds.y; y < maxY;y++) {
+				boolean normal = normalColorsChosen[x][y]; 
+				int n2 = 2;
+				int n5 = 5;
+				if(!normal) {
+					n2 = 5;
+					n5 = 2;
+				}
+				
+				for(int j = 0; j < n5; j++) { // =
+					int iy = y*n5+j;
+					LEGOColor[] row = (normal ? normalColors : sidewaysColors).getRow(iy);
+					for(int i = 0; i < n2; i++) { // |
+						int ix = x*n2+i;
+						LEGOColor color = row[ix];
+						if(normal) {
+							printer.add(id++, 2*x+i, 5*y+j, color);
+						}
+						else {
+							printer.addSideways(id++, 5*x+i, 2*y+j, color);
+						}
+					}			
+				}
+			}
+		}
+	}
+}
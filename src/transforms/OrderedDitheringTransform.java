@@ -0,0 +1,247 @@
+package transforms;
+
+import icon.Icons;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mosaic.controllers.ColorController;
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+import colors.*;
+
+/**
+ * Ordered dithering: Each pixel is offset by the value of a tiled threshold map before the closest color 
+ * is found. Pixels don't depend on each other, so rows are dithered in parallel on all cores.
+ * The offset is the same for the three color components and at most SPREAD/2 at 100%.
+ */
+public class OrderedDitheringTransform extends BufferedLEGOColorTransform {
+	public static final int SPREAD = 64;
+	
+	/**
+	 * Square map of thresholds in [-0.5;0.5[ with each threshold used once.
+	 */
+	public static class ThresholdMap {
+		public final int size;
+		private final float[] thresholds; // Row by row.
+		
+		private ThresholdMap(int[] ranks, int size) {
+			this.size = size;
+			int n = size*size;
+			thresholds = new float[n];
+			for(int i = 0; i < n; i++)
+				thresholds[i] = (ranks[i] + 0.5f)/n - 0.5f;
+		}
+		
+		/**
+		 * @return The threshold for pixel (x, y) with the map repeated over the image.
+		 */
+		public float get(int x, int y) {
+			return thresholds[(y % size)*size + x % size];
+		}
+		
+		/**
+		 * @param size Power of two.
+		 */
+		public static ThresholdMap bayer(int size) {
+			int[] ranks = {0};
+			for(int s = 1; s < size; s *= 2) {
+				// Each level splits every cell into 2x2 cells ordered 0, 2, 3, 1:
+				int[] next = new int[4*s*s];
+				for(int y = 0; y < s; y++) {
+					for(int x = 0; x < s; x++) {
+						int r = 4*ranks[y*s+x];
+						next[(2*y)*2*s + 2*x] = r;
+						next[(2*y)*2*s + 2*x+1] = r+2;
+						next[(2*y+1)*2*s + 2*x] = r+3;
+						next[(2*y+1)*2*s + 2*x+1] = r+1;
+					}
+				}
+				ranks = next;
+			}
+			return new ThresholdMap(ranks, size);
+		}
+		
+		/**
+		 * Blue noise by the void-and-cluster method (Ulichney 1993): Starting from a random pattern, 
+		 * pixels are ranked by repeatedly removing the tightest cluster or filling the largest void, 
+		 * measured by a Gaussian filter wrapping around the edges of the map.
+		 */
+		public static ThresholdMap blueNoise(int size, long seed) {
+			final int n = size*size;
+			final double sigma = 1.5;
+			double[] filter = new double[n]; // For offsets wrapping around the edges.
+			for(int dy = 0; dy < size; dy++) {
+				int y = Math.min(dy, size-dy);
+				for(int dx = 0; dx < size; dx++) {
+					int x = Math.min(dx, size-dx);
+					filter[dy*size+dx] = Math.exp(-(x*x+y*y)/(2*sigma*sigma));
+				}
+			}
+			
+			// Initial pattern with about a tenth of the pixels set, spread out:
+			boolean[] pattern = new boolean[n];
+			double[] energy = new double[n];
+			Random random = new Random(seed);
+			int ones = 0;
+			while(ones < n/10) {
+				int p = random.nextInt(n);
+				if(!pattern[p]) {
+					toggle(pattern, energy, filter, size, p);
+					ones++;
+				}
+			}
+			while(true) {
+				int cluster = extreme(pattern, energy, true);
+				toggle(pattern, energy, filter, size, cluster);
+				int ivoid = extreme(pattern, energy, false);
+				toggle(pattern, energy, filter, size, ivoid);
+				if(cluster == ivoid)
+					break;
+			}
+			boolean[] initial = pattern.clone();
+			double[] initialEnergy = energy.clone();
+			
+			int[] ranks = new int[n];
+			// Rank the initial pattern by removing clusters:
+			for(int rank = ones-1; rank >= 0; rank--) {
+				int cluster = extreme(pattern, energy, true);
+				toggle(pattern, energy, filter, size, cluster);
+				ranks[cluster] = rank;
+			}
+			// Rank the rest by filling voids. Past the half this is the tightest cluster of unset pixels:
+			pattern = initial;
+			energy = initialEnergy;
+			for(int rank = ones; rank < n; rank++) {
+				int ivoid = extreme(pattern, energy, false);
+				toggle(pattern, energy, filter, size, ivoid);
+				ranks[ivoid] = rank;
+			}
+			return new ThresholdMap(ranks, size);
+		}
+		
+		private static void toggle(boolean[] pattern, double[] energy, double[] filter, int size, int p) {
+			pattern[p] = !pattern[p];
+			double sign = pattern[p] ? 1 : -1;
+			int px = p % size, py = p / size;
+			for(int y = 0; y < size; y++) {
+				int fy = ((y - py + size) % size) * size;
+				for(int x = 0; x < size; x++) {
+					energy[y*size+x] += sign*filter[fy + (x - px + size) % size];
+				}
+			}
+		}
+		
+		/**
+		 * @return The set pixel with the highest energy (tightest cluster) or the unset pixel with the lowest (largest void).
+		 */
+		private static int extreme(boolean[] pattern, double[] energy, boolean cluster) {
+			int best = -1;
+			for(int i = 0; i < pattern.length; i++) {
+				if(pattern[i] != cluster)
+					continue;
+				if(best == -1 || (cluster ? energy[i] > energy[best] : energy[i] < energy[best]))
+					best = i;
+			}
+			return best;
+		}
+	}
+	
+	private static final ThresholdMap BAYER = ThresholdMap.bayer(8);
+	private static class BlueNoiseHolder { // Computed when first used.
+		static final ThresholdMap MAP = ThresholdMap.blueNoise(64, 0x5EED);
+	}
+	
+	public static ThresholdMap bayerMap() {
+		return BAYER;
+	}
+	
+	public static ThresholdMap blueNoiseMap() {
+		return BlueNoiseHolder.MAP;
+	}
+	
+	private volatile int propagationPercentage;
+	private ColorMatcher colorMatcher;
+	private ThresholdMap map;
+	
+	public OrderedDitheringTransform(ThresholdMap map, int pp, ColorMatcher colorMatcher, ColorController cc) {
+		super(cc);
+		this.map = map;
+		propagationPercentage = pp;
+		this.colorMatcher = colorMatcher;
+	}
+	
+	public boolean setPropagationPercentage(int pp) {
+		if(propagationPercentage == pp)
+			return false;
+		propagationPercentage = pp;
+		clearBuffer();
+		return true;
+	}
+	public int getPropagationPercentage() {
+		return propagationPercentage;
+	}
+	
+	@Override
+	protected Object getParameterKey() {
+		return Arrays.asList(map, propagationPercentage, colorMatcher.getFingerprint());
+	}
+
+	@Override
+	protected BufferedLEGOColorTransform snapshot() {
+		OrderedDitheringTransform snapshot = (OrderedDitheringTransform)super.snapshot();
+		snapshot.colorMatcher = colorMatcher.snapshot();
+		return snapshot;
+	}
+	
+	private static int boundFF(int a) {
+		return a < 0 ? 0 : (a > 255 ? 255 : a);
+	}
+
+	@Override
+	public LEGOColorGrid lcTransformUnbuffered(final BufferedImage in, final ProgressCallback progressCallback, final CancellationToken cancel) {
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		final int size = map.size;
+		final int[] offsets = new int[size*size];
+		for(int i = 0; i < offsets.length; i++)
+			offsets[i] = Math.round(map.thresholds[i] * SPREAD * propagationPercentage / 100);
+		
+		final int[] pixels = IntRaster.of(in).getPixels();
+		final LEGOColor[][] out = new LEGOColor[h][w];
+		final AtomicInteger rowsDone = new AtomicInteger();
+		RowBands.forEach(h, 16, new RowBands.Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				for(int y = fromY; y < toY; y++) {
+					cancel.check();
+					LEGOColor[] outRow = out[y];
+					int mapRow = (y % size)*size;
+					for(int x = 0, i = y*w; x < w; x++, i++) {
+						int pixel = pixels[i];
+						int o = offsets[mapRow + x % size];
+						outRow[x] = colorMatcher.lookUp(boundFF(LEGOColorLookUp.getRed(pixel) + o), 
+								boundFF(LEGOColorLookUp.getGreen(pixel) + o), 
+								boundFF(LEGOColorLookUp.getBlue(pixel) + o));
+					}
+				}
+				progressCallback.reportProgress(1000*rowsDone.addAndGet(toY-fromY)/h);
+			}
+		});
+		return new LEGOColorGrid(out);
+	}
+
+	@Override
+	public Dimension getTransformedSize(Dimension in) {
+		return in;
+	}
+
+	@Override
+	public void paintIcon(Graphics2D g, int size) {
+		Icons.orderedDithering(size, map).paintIcon(null, g, 0, 0);
+	}
+}
@@ -0,0 +1,13 @@
+package transforms;
+
+/**
+ * Pixel transform by a function of the whole pixel, such as one mixing the color components.
+ */
+public interface PerPixelTransform extends PixelTransform {
+	/**
+	 * @param rgb Pixel as packed RGB.
+	 * @param tmp Array of 3 floats for intermediate values, so no objects are created for each pixel.
+	 * @return Packed RGB. Alpha is ignored.
+	 */
+	int transformPixel(int rgb, float[] tmp);
+}
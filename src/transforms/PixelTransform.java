@@ -0,0 +1,13 @@
+package transforms;
+
+/**
+ * Transform of each pixel on its own, either through a lookup table per color component (LookupTableTransform) 
+ * or by a function of the whole pixel (PerPixelTransform). Pixel transforms following each other are applied 
+ * in a single pass by a FusedPixelTransform.
+ */
+public interface PixelTransform extends Transform {
+	/**
+	 * @return true if pixels are left unchanged.
+	 */
+	boolean isIdentity();
+}
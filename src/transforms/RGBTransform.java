@@ -1,8 +1,11 @@
 package transforms;
 
+import java.awt.image.LookupTable;
+import java.awt.image.ShortLookupTable;
+import java.util.Arrays;
 import java.util.Comparator;
 
-public abstract class RGBTransform extends StateTransform<float[]> {
+public abstract class RGBTransform extends StateTransform<float[]> implements LookupTableTransform {
 	public RGBTransform(float[] initialState) {
 		super(initialState, new Comparator<float[]>(){
 			@Override
@@ -23,8 +26,44 @@ public abstract class RGBTransform extends StateTransform<float[]> {
 		get()[index] = val;
 	}
 	
+	/**
+	 * The state can be changed in place, so the key is a copy.
+	 */
+	@Override
+	protected Object getParameterKey() {
+		float[] scales = get();
+		return Arrays.asList(scales[0], scales[1], scales[2]);
+	}
+	
+	@Override
+	protected float[] copy(float[] state) {
+		return state.clone();
+	}
+	
 	public boolean allAreOne() {
 		float[] scales = get();
 		return scales[0] == 1f && scales[1] == 1f && scales[2] == 1f;
 	}
+	
+	@Override
+	public boolean isIdentity() {
+		return allAreOne();
+	}
+	
+	@Override
+	public boolean needsHistograms() {
+		return false;
+	}
+	
+	/**
+	 * @return The lookup tables as used by a LookupOp.
+	 */
+	protected static LookupTable toLookupTable(int[][] tables) {
+		short[][] s = new short[3][256];
+		for(int rgb = 0; rgb < 3; rgb++) {
+			for(int i = 0; i < 256; i++)
+				s[rgb][i] = (short)tables[rgb][i];
+		}
+		return new ShortLookupTable(0, s);
+	}
 }
@@ -0,0 +1,62 @@
+package transforms;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work on bands of rows in parallel on all cores.
+ * Bands are processed independently, so the work on a band may only write to its own rows.
+ * Work started from a task of a ForkJoinPool runs in that pool, so a pool with few threads limits the cores used.
+ */
+public class RowBands {
+	public interface Band {
+		/**
+		 * Process rows fromY (inclusive) to toY (exclusive).
+		 */
+		void run(int fromY, int toY);
+	}
+
+	/**
+	 * Splits the rows [0;height) into bands of at least minRowsPerBand rows and returns when all are processed.
+	 */
+	public static void forEach(int height, int minRowsPerBand, Band band) {
+		if(height <= 0)
+			return;
+		ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+		int parallelism = pool.getParallelism();
+		int rowsPerBand = Math.max(minRowsPerBand, height / (4*parallelism));
+		if(parallelism <= 1 || rowsPerBand >= height) {
+			band.run(0, height);
+			return;
+		}
+		BandTask task = new BandTask(band, 0, height, rowsPerBand);
+		if(ForkJoinTask.inForkJoinPool())
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	private static class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 2283154367193305791L;
+		private final Band band;
+		private final int fromY, toY, rowsPerBand;
+
+		BandTask(Band band, int fromY, int toY, int rowsPerBand) {
+			this.band = band;
+			this.fromY = fromY;
+			this.toY = toY;
+			this.rowsPerBand = rowsPerBand;
+		}
+
+		@Override
+		protected void compute() {
+			if(toY - fromY <= rowsPerBand) {
+				band.run(fromY, toY);
+				return;
+			}
+			int mid = (fromY + toY) >>> 1;
+			invokeAll(new BandTask(band, fromY, mid, rowsPerBand), new BandTask(band, mid, toY, rowsPerBand));
+		}
+	}
+}
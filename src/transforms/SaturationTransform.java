@@ -2,45 +2,119 @@ package transforms;
 
 import icon.Icons;
 
-import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import colors.CIELab;
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
-public class SaturationTransform extends StateTransform<Float> {
+/**
+ * Scales the saturation of HSB, keeping hue and brightness, or the chroma of CIE Lab, keeping hue and lightness as the colors are matched.
+ * Bands of rows are processed in parallel.
+ */
+public class SaturationTransform extends StateTransform<Float> implements PerPixelTransform {
+	private static final int MIN_ROWS_PER_BAND = 16;
+	private volatile boolean labChroma;
+
 	public SaturationTransform(Float initialState) {
 		super(initialState);
 	}
 
+	public boolean setLabChroma(boolean labChroma) {
+		if(this.labChroma == labChroma)
+			return false;
+		this.labChroma = labChroma;
+		clearBuffer();
+		return true;
+	}
+	public boolean getLabChroma() {
+		return labChroma;
+	}
+
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback) {
+	protected Object getParameterKey() {
+		return Arrays.asList(get(), labChroma);
+	}
+
+	@Override
+	public BufferedImage transformUnbuffered(BufferedImage in, final ProgressCallback progressCallback, final CancellationToken cancel) {
 		if(get().equals(1f))
 			return in;
 
-		int w = in.getWidth();
-		int h = in.getHeight();
+		final int w = in.getWidth();
+		final int h = in.getHeight();
 		
-		int[] rgbs = in.getRGB(0, 0, w, h, null, 0, w);
-		float[] hsb = new float[3];
-		for(int i = 0; i < rgbs.length; i++) {
-			progressCallback.reportProgress((int)(1000.0 * i / rgbs.length));
-			int rgb = rgbs[i];
-			Color c = new Color(rgb);
-			Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(), hsb);
-			hsb[1] *= get();
-			if(hsb[1] > 1)
-				hsb[1] = 1;
-			// brightness:
-/*			hsb[2] *= get();
-			if(hsb[2] > 1)
-				hsb[2] = 1;//*/
-			rgbs[i] = Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]);
-		}
-		BufferedImage tmp = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		tmp.setRGB(0, 0, w, h, rgbs, 0, w);
-		return tmp;
+		final int[] rgbs = IntRaster.of(in).getPixels();
+		IntRaster out = IntRaster.create(w, h);
+		final int[] outRGBs = out.getPixels();
+		final float saturation = get();
+		final boolean labChroma = this.labChroma;
+		final AtomicInteger rowsDone = new AtomicInteger();
+		RowBands.forEach(h, MIN_ROWS_PER_BAND, new RowBands.Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				float[] lab = new float[3];
+				for(int y = fromY; y < toY; ++y) {
+					cancel.check();
+					int end = (y+1)*w;
+					if(labChroma) {
+						for(int i = y*w; i < end; ++i)
+							outRGBs[i] = saturateLabChroma(rgbs[i], saturation, lab);
+					}
+					else {
+						for(int i = y*w; i < end; ++i)
+							outRGBs[i] = saturate(rgbs[i], saturation);
+					}
+				}
+				progressCallback.reportProgress(1000*rowsDone.addAndGet(toY-fromY)/h);
+			}
+		});
+		return out.getImage();
+	}
+
+	/**
+	 * Scales the HSB saturation without converting to HSB: Hue and brightness are kept when all components
+	 * are moved away from the largest by the same factor. The saturation is at most 1, where the smallest component is 0.
+	 * Same as Color.RGBtoHSB() and Color.HSBtoRGB() except for rounding.
+	 * @return The saturated color as 0xRRGGBB.
+	 */
+	public static int saturate(int rgb, float saturation) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		int max = Math.max(r, Math.max(g, b));
+		int min = Math.min(r, Math.min(g, b));
+		if(max == min)
+			return rgb & 0xFFFFFF; // Gray has no hue to saturate.
+		float f = Math.min(saturation, max / (float)(max - min));
+		r = (int)(max - (max - r)*f + 0.5f);
+		g = (int)(max - (max - g)*f + 0.5f);
+		b = (int)(max - (max - b)*f + 0.5f);
+		return (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Scales a and b of CIE Lab. Colors leaving sRGB are clamped.
+	 * @param lab For intermediate values.
+	 * @return The saturated color as 0xRRGGBB.
+	 */
+	public static int saturateLabChroma(int rgb, float saturation, float[] lab) {
+		CIELab.rgb2lab((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, lab);
+		return CIELab.lab2rgb(lab[0], lab[1]*saturation, lab[2]*saturation);
+	}
+
+	@Override
+	public boolean isIdentity() {
+		return get().equals(1f);
+	}
+
+	@Override
+	public int transformPixel(int rgb, float[] tmp) {
+		return labChroma ? saturateLabChroma(rgb, get(), tmp) : saturate(rgb, get());
 	}
 
 	@Override
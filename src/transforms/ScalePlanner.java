@@ -0,0 +1,82 @@
+package transforms;
+
+import java.awt.Dimension;
+
+/**
+ * Decides whether the image is scaled down before it is prepared.
+ *
+ * Scaling down by area averaging before the filters is visually equivalent to filtering the whole image
+ * when the scaled image is at least SAFE_FACTOR times the size of the construction in elements, and at
+ * least the size the prepared image is shown in: Each element and each pixel shown is then still made
+ * from several pixels of the scaled image.
+ * The image is therefore scaled whenever it is larger than that, whichever filters are on, so turning 
+ * a filter on or off doesn't change how the rest of the mosaic is made.
+ * The costs of the preparing stages are estimated from the number of pixels they process, for the 
+ * statistics of the stage. Costs are relative to looking up a pixel in a table.
+ */
+public class ScalePlanner {
+	public static final int SAFE_FACTOR = 4;
+	public static final double SCALE_COST = 2; // For each pixel scaled down.
+	public static final double PIXEL_TRANSFORM_COST = 1; // For each pixel of each pixel transform.
+	public static final double CONVOLUTION_COST = 9; // For each pixel of a 3x3 convolution.
+
+	/**
+	 * @param in Size of the image to prepare.
+	 * @param construction Size of the construction in elements.
+	 * @param view Size the prepared image is shown in. May be empty.
+	 * @param filterCost Cost of the filters for each pixel.
+	 */
+	public Plan plan(Dimension in, Dimension construction, Dimension view, double filterCost) {
+		double inPixels = (double)in.width * in.height;
+		if(construction.width <= 0 || construction.height <= 0 || inPixels == 0)
+			return new Plan(in, null, filterCost * inPixels, filterCost * inPixels);
+		double scale = Math.max(SAFE_FACTOR * construction.width / (double)in.width, SAFE_FACTOR * construction.height / (double)in.height);
+		scale = Math.max(scale, Math.max(view.width / (double)in.width, view.height / (double)in.height));
+		Dimension size = new Dimension((int)Math.ceil(in.width * scale), (int)Math.ceil(in.height * scale));
+
+		double costUnscaled = filterCost * inPixels;
+		double costScaled = SCALE_COST * inPixels + filterCost * size.width * size.height;
+		if(scale >= 1)
+			return new Plan(in, null, costUnscaled, costUnscaled);
+		return new Plan(in, size, costUnscaled, costScaled);
+	}
+
+	public static class Plan {
+		private final Dimension in, size;
+		private final double costUnscaled, cost;
+
+		private Plan(Dimension in, Dimension size, double costUnscaled, double cost) {
+			this.in = in;
+			this.size = size;
+			this.costUnscaled = costUnscaled;
+			this.cost = cost;
+		}
+
+		public boolean isScaling() {
+			return size != null;
+		}
+
+		/**
+		 * @return Size to scale the image to before preparing it, or null if not scaling.
+		 */
+		public Dimension getSize() {
+			return size;
+		}
+
+		public double getCost() {
+			return cost;
+		}
+
+		public double getCostUnscaled() {
+			return costUnscaled;
+		}
+
+		@Override
+		public String toString() {
+			if(!isScaling())
+				return String.format("Prepare %dx%d unscaled. Cost %.1fM", in.width, in.height, cost/1e6);
+			return String.format("Scale %dx%d to %dx%d before preparing. Cost %.1fM instead of %.1fM",
+					in.width, in.height, size.width, size.height, cost/1e6, costUnscaled/1e6);
+		}
+	}
+}
@@ -8,26 +8,34 @@ import java.awt.RenderingHints;
 //import java.awt.Transparency;
 //import java.awt.geom.*;
 import java.awt.image.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import colors.CIELab;
+
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public class ScaleTransform extends BufferedTransform {
+	public static final int STRIP_HEIGHT = 64; // Rows drawn between checks for cancellation.
+	private static final float[] COMPONENTS = new float[256], LINEAR_COMPONENTS = new float[256]; // Summed when area averaging.
+	static {
+		for(int i = 0; i < 256; ++i) {
+			COMPONENTS[i] = i;
+			LINEAR_COMPONENTS[i] = CIELab.toLinear(i);
+		}
+	}
 	private int width, height;
 	private double scaleX, scaleY;
 	private boolean bounded;
 	private ScaleQuality quality;
 	//private String usage;
 
-	public ScaleTransform(String usage, boolean bounded, ScaleQuality quality, int bufferSize) {
-		super(bufferSize);
+	public ScaleTransform(String usage, boolean bounded, ScaleQuality quality) {
 		this.bounded = bounded;
 		this.quality = quality;
 		//this.usage = usage;
 	}
-
-	public ScaleTransform(String usage, boolean bounded, ScaleQuality quality) {
-		this(usage, bounded, quality, 1);
-	}
 	
 	public boolean setQuality(ScaleQuality quality) {
 		if(this.quality == quality)
@@ -72,6 +80,11 @@ public class ScaleTransform extends BufferedTransform {
 		return true;
 	}
 	
+	@Override
+	protected Object getParameterKey() {
+		return Arrays.asList(width, height, quality);
+	}
+	
 	public Scale getScale(double inX, double inY) {
 		double scaleX = width / inX;
 		double scaleY = height / inY;
@@ -89,7 +102,7 @@ public class ScaleTransform extends BufferedTransform {
 	}
 	
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback) {
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
 		int w = in.getWidth();
 		int h = in.getHeight();
 		if(w <= 0 || h <= 0 || width <= 0 || height <= 0)
@@ -100,14 +113,16 @@ public class ScaleTransform extends BufferedTransform {
 		w = (int)Math.round(scale.w*w);
 		h = (int)Math.round(scale.h*h);
 
-        BufferedImage resized = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        if((quality == ScaleQuality.AreaAveraging || quality == ScaleQuality.AreaAveragingLinear) && w <= in.getWidth() && h <= in.getHeight())
+        	return areaAverage(in, w, h, quality == ScaleQuality.AreaAveragingLinear, progressCallback, cancel);
         Object renderingHint = quality.renderingHint;
         if(renderingHint == null) {
         	// Fill arrays:
         	int inWidth = in.getWidth();
-        	int fromPixels[] = new int[inWidth * in.getHeight()];
-        	fromPixels = in.getRGB(0, 0, inWidth, in.getHeight(), fromPixels, 0, inWidth);
-        	int rgbArray[] = new int[w*h];
+        	int fromPixels[] = IntRaster.pixelsOrNull(in); // null to read the rows used one at a time.
+        	int fromRow[] = fromPixels == null ? new int[inWidth] : null;
+        	IntRaster resized = IntRaster.create(w, h);
+        	int rgbArray[] = resized.getPixels();
 
         	// First the dimensional arrays:
         	int xArray[] = new int[w];
@@ -117,25 +132,152 @@ public class ScaleTransform extends BufferedTransform {
         	// Fill the output array:
         	for(int y = 0; y < h; ++y) {
         		progressCallback.reportProgress(1000*y/h);
+        		cancel.check();
         		int fromY = (int)(y*in.getHeight()/(double)h);
+        		int[] from = fromPixels;
+        		int fromOffset = fromY*inWidth;
+        		if(from == null) {
+        			IntRaster.readRow(in, fromY, fromRow);
+        			from = fromRow;
+        			fromOffset = 0;
+        		}
             	for(int x = 0; x < w; ++x) {
-            		rgbArray[y*w + x] = fromPixels[fromY*inWidth + xArray[x]];
+            		rgbArray[y*w + x] = from[fromOffset + xArray[x]];
             	}        		
         	}        	        	
-        	resized.setRGB(0, 0, w, h, rgbArray, 0, w);
+        	return resized.getImage();
         }
         else {
-        	progressCallback.reportProgress(100);
+            BufferedImage resized = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
             Graphics2D g2 = resized.createGraphics();
             g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, renderingHint);
-        	progressCallback.reportProgress(300);
-            g2.drawImage(in, 0, 0, w, h, null);        	
-        	progressCallback.reportProgress(600);
-            g2.dispose();
+            try {
+            	// Drawn in strips clipped from the whole scaled image. The first row of a clip can differ slightly
+            	// from drawing at once, so strips are drawn bottom up and each one redraws the first row of the one below:
+            	for(int y = (h-1)/STRIP_HEIGHT*STRIP_HEIGHT; y >= 0; y -= STRIP_HEIGHT) {
+            		progressCallback.reportProgress(1000*(h-y)/h);
+            		cancel.check();
+            		int fromY = Math.max(0, y-1);
+            		g2.setClip(0, fromY, w, Math.min(y+STRIP_HEIGHT, h)-fromY);
+            		g2.drawImage(in, 0, 0, w, h, null);
+            	}
+            }
+            finally {
+            	g2.dispose();
+            }
         	progressCallback.reportProgress(1000);
+            return resized;
         }
+	}
+	
+	/*
+	 * Each output pixel is the average of the input area it covers. Input pixels on the border 
+	 * between two output pixels are split between them by the fraction they cover of each.
+	 * Bands of output rows are computed in parallel. An input row on the border between two
+	 * output rows is read by both of them.
+	 * When linear, the components are averaged in linear light, so dark and light details keep their brightness.
+	 * Images which are not TYPE_INT_RGB are read one row at a time instead of being converted as a whole.
+	 */
+	private static BufferedImage areaAverage(final BufferedImage in, final int w, final int h, final boolean linear, 
+			final ProgressCallback progressCallback, final CancellationToken cancel) {
+		final int inW = in.getWidth();
+		int inH = in.getHeight();
+		// Output column of each input column, and the fraction of output area it covers in that column and the next:
+		final int[] toX = new int[inW];
+		final float[] firstX = new float[inW], secondX = new float[inW];
+		split(inW, w, toX, firstX, secondX);
+		final int[] toY = new int[inH];
+		final float[] firstY = new float[inH], secondY = new float[inH];
+		split(inH, h, toY, firstY, secondY);
+		// First input row of each output row. When scaling down, each output row has at least one:
+		final int[] fromY = new int[h+1];
+		for(int y = inH-1; y >= 0; --y)
+			fromY[toY[y]] = y;
+		fromY[h] = inH;
 		
-		return resized;
+		final float[] components = linear ? LINEAR_COMPONENTS : COMPONENTS;
+		final int[] inPixels = IntRaster.pixelsOrNull(in);
+		final IntRaster out = IntRaster.create(w, h);
+		final int[] outPixels = out.getPixels();
+		final AtomicInteger rowsDone = new AtomicInteger();
+		RowBands.forEach(h, Math.max(1, STRIP_HEIGHT*h/inH), new RowBands.Band() {
+			@Override
+			public void run(int fromOutY, int toOutY) {
+				float[] sums = new float[3*w];
+				int[] row = inPixels == null ? new int[inW] : null;
+				for(int outY = fromOutY; outY < toOutY; ++outY) {
+					cancel.check();
+					Arrays.fill(sums, 0);
+					int y = fromY[outY];
+					if(y > 0 && toY[y-1] == outY-1 && secondY[y-1] > 0)
+						addRow(in, inPixels, row, y-1, toX, firstX, secondX, components, secondY[y-1], sums);
+					for(; y < fromY[outY+1]; ++y)
+						addRow(in, inPixels, row, y, toX, firstX, secondX, components, firstY[y], sums);
+					flush(sums, outPixels, outY*w, w, linear);
+				}
+				progressCallback.reportProgress(1000*rowsDone.addAndGet(toOutY-fromOutY)/h);
+			}
+		});
+		return out.getImage();
+	}
+	
+	private static void split(int inSize, int outSize, int[] to, float[] first, float[] second) {
+		double scale = outSize / (double)inSize; // Output pixels per input pixel.
+		for(int i = 0; i < inSize; ++i) {
+			double from = i * scale, until = (i+1) * scale;
+			int o = Math.min((int)from, outSize-1);
+			to[i] = o;
+			if(until > o+1 && o+1 < outSize) {
+				first[i] = (float)(o+1 - from);
+				second[i] = (float)(until - (o+1));
+			}
+			else
+				first[i] = (float)(until - from);
+		}
+	}
+	
+	/*
+	 * Adds row y from the pixels of in, or read into row when pixels is null.
+	 */
+	private static void addRow(BufferedImage in, int[] pixels, int[] row, int y, int[] toX, float[] firstX, float[] secondX, float[] components, float weightY, float[] sums) {
+		int offset = y*toX.length;
+		if(pixels == null) {
+			IntRaster.readRow(in, y, row);
+			pixels = row;
+			offset = 0;
+		}
+		for(int x = 0; x < toX.length; ++x) {
+			int rgb = pixels[offset + x];
+			float r = components[(rgb >> 16) & 0xFF], g = components[(rgb >> 8) & 0xFF], b = components[rgb & 0xFF];
+			float a = firstX[x] * weightY;
+			int i = 3*toX[x];
+			sums[i] += a*r;
+			sums[i+1] += a*g;
+			sums[i+2] += a*b;
+			if(secondX[x] > 0) {
+				a = secondX[x] * weightY;
+				sums[i+3] += a*r;
+				sums[i+4] += a*g;
+				sums[i+5] += a*b;
+			}
+		}
+	}
+	
+	private static void flush(float[] sums, int[] outPixels, int offset, int w, boolean linear) {
+		for(int x = 0; x < w; ++x) {
+			int r, g, b;
+			if(linear) {
+				r = CIELab.fromLinear(sums[3*x]);
+				g = CIELab.fromLinear(sums[3*x+1]);
+				b = CIELab.fromLinear(sums[3*x+2]);
+			}
+			else {
+				r = Math.min(255, Math.round(sums[3*x]));
+				g = Math.min(255, Math.round(sums[3*x+1]));
+				b = Math.min(255, Math.round(sums[3*x+2]));
+			}
+			outPixels[offset + x] = (r << 16) | (g << 8) | b;
+		}
 	}
 	
 	private static class Scale {
@@ -150,7 +292,9 @@ public class ScaleTransform extends BufferedTransform {
 		BiCubic("Bicubic (slow)", RenderingHints.VALUE_INTERPOLATION_BICUBIC), 
 		BiLinear("Bilinear (medium speed)", RenderingHints.VALUE_INTERPOLATION_BILINEAR), 
 		NearestNeighbor("Nearest neighbor (fast)", RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR),
-		RetainColors("Nearest neighbor, don't change colors (fast)", null);
+		RetainColors("Nearest neighbor, don't change colors (fast)", null),
+		AreaAveraging("Area averaging (best when scaling down)", RenderingHints.VALUE_INTERPOLATION_BILINEAR), // Bilinear when scaling up.
+		AreaAveragingLinear("Area averaging in linear light (best when scaling down)", RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 		
 		public Object renderingHint;
 		public String title;
@@ -6,6 +6,7 @@ import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.*;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public class SharpnessTransform extends StateTransform<Float> {
@@ -14,7 +15,7 @@ public class SharpnessTransform extends StateTransform<Float> {
 	}
 
 	@Override
-	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback) {
+	public BufferedImage transformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
 		if(get().equals(1f))
 			return in;
 		
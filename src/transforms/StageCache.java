@@ -0,0 +1,196 @@
+package transforms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import colors.LEGOColorGrid;
+
+/**
+ * Results of transforms shared by all transforms, so switching back to earlier settings doesn't
+ * require computing the results again.
+ *
+ * A result is stored under a key made from the keys of its inputs, the transform (stage) and the
+ * parameters of the transform. The key of a result is remembered for as long as the result is in use,
+ * so results computed from it can be found again. Images which are not results of a transform,
+ * such as the image loaded, are keyed by their identity.
+ *
+ * The least recently used results are dropped when the results take up more than the budget.
+ * The most recent result is always kept.
+ */
+public class StageCache {
+	public static final long DEFAULT_MAX_BYTES = Math.min(256L*1024*1024, Runtime.getRuntime().maxMemory()/4);
+	private static final StageCache shared = new StageCache(DEFAULT_MAX_BYTES);
+
+	private final Map<Object, Object> keysOfResults = new WeakHashMap<Object, Object>(); // Results don't override equals().
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true); // Least recently used first.
+	private long maxBytes, bytes, hits, misses, evictions;
+
+	public StageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static StageCache getShared() {
+		return shared;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param stage The transform computing the result.
+	 * @param parameters Everything besides the inputs the result depends on. Must implement equals() and hashCode().
+	 * @param inputs Images or results of other stages.
+	 */
+	public synchronized Key key(Object stage, Object parameters, Object... inputs) {
+		Object[] inputKeys = new Object[inputs.length];
+		for(int i = 0; i < inputs.length; i++)
+			inputKeys[i] = keyOf(inputs[i]);
+		return new Key(stage, parameters, inputKeys);
+	}
+
+	private Object keyOf(Object result) {
+		Object key = keysOfResults.get(result);
+		if(key == null) {
+			key = new Object(); // Unique for the identity of the result.
+			keysOfResults.put(result, key);
+		}
+		return key;
+	}
+
+	/**
+	 * @return The result stored under key, or null.
+	 */
+	public synchronized Object get(Key key) {
+		Entry e = entries.get(key);
+		if(e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.result;
+	}
+
+	/**
+	 * Stores a complete result.
+	 * @param bytes Memory used by the result, not counting memory shared with its inputs.
+	 */
+	public synchronized void put(Key key, Object result, long bytes) {
+		if(!keysOfResults.containsKey(result))
+			keysOfResults.put(result, key); // A result which is one of its inputs keeps the key of the input.
+		Entry old = entries.put(key, new Entry(result, bytes));
+		if(old != null)
+			this.bytes -= old.bytes;
+		this.bytes += bytes;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while(bytes > maxBytes && entries.size() > 1) {
+			bytes -= it.next().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Stage cache: " + entries.size() + " results, " + (bytes >> 20) + "/" + (maxBytes >> 20) + " MB, " +
+				hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+	/**
+	 * @return Memory used by the pixels of out. 0 if they are shared with in.
+	 */
+	public static long bytes(BufferedImage out, BufferedImage in) {
+		if(out == null)
+			return 0;
+		DataBuffer buffer = out.getRaster().getDataBuffer();
+		if(in != null && in.getRaster().getDataBuffer() == buffer)
+			return 0;
+		return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	/**
+	 * @return Memory used by the rows of a grid, assuming 4 bytes per reference.
+	 */
+	public static long bytes(LEGOColorGrid grid) {
+		return (long)grid.getHeight() * (16 + 4L*grid.getWidth());
+	}
+
+	public static final class Key {
+		private final Object stage, parameters;
+		private final Object[] inputKeys;
+		private final int hash;
+
+		private Key(Object stage, Object parameters, Object[] inputKeys) {
+			this.stage = stage;
+			this.parameters = parameters;
+			this.inputKeys = inputKeys;
+			int h = System.identityHashCode(stage);
+			h = 31*h + (parameters == null ? 0 : parameters.hashCode());
+			hash = 31*h + Arrays.hashCode(inputKeys);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return hash == k.hash && stage == k.stage &&
+					(parameters == null ? k.parameters == null : parameters.equals(k.parameters)) &&
+					Arrays.equals(inputKeys, k.inputKeys);
+		}
+	}
+
+	private static class Entry {
+		final Object result;
+		final long bytes;
+
+		Entry(Object result, long bytes) {
+			this.result = result;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -8,7 +8,7 @@ import java.util.*;
  * @param <StateType> Type of the state.
  */
 public abstract class StateTransform<StateType> extends BufferedTransform {
-	private StateType state;
+	private volatile StateType state;
 	private Comparator<StateType> cmp;
 	
 	public StateTransform(StateType initialState) {
@@ -21,7 +21,6 @@ public abstract class StateTransform<StateType> extends BufferedTransform {
 	 * @param cmp comparator for comparing the state to a new one set.
 	 */
 	public StateTransform(StateType initialState, Comparator<StateType> cmp) {
-		super(1);
 		this.state = initialState;
 		this.cmp = cmp;
 	}
@@ -37,4 +36,24 @@ public abstract class StateTransform<StateType> extends BufferedTransform {
 	public StateType get() {
 		return state;
 	}
+	
+	@Override
+	protected Object getParameterKey() {
+		return state;
+	}
+	
+	/**
+	 * @return A copy of a state which can be changed in place, so a snapshot keeps the state it was taken with.
+	 */
+	protected StateType copy(StateType state) {
+		return state;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	protected BufferedTransform snapshot() {
+		StateTransform<StateType> snapshot = (StateTransform<StateType>)super.snapshot();
+		snapshot.state = copy(state);
+		return snapshot;
+	}
 }
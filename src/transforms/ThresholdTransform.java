@@ -7,34 +7,44 @@ import java.awt.Graphics2D;
 import java.awt.image.*;
 
 import mosaic.controllers.ColorController;
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 import colors.*;
 
 public class ThresholdTransform extends BufferedLEGOColorTransform {
-	private ProgressCallback progressCallback = ProgressCallback.NOP;
+	private ColorMatcher colorMatcher;
 
-	public ThresholdTransform(ColorController cc) {
-		super(1, cc);
+	public ThresholdTransform(ColorMatcher colorMatcher, ColorController cc) {
+		super(cc);
+		this.colorMatcher = colorMatcher;
 	}
 	
-	public ThresholdTransform(int bufferSize, ColorController cc) {
-		super(bufferSize, cc);
+	@Override
+	protected Object getParameterKey() {
+		return colorMatcher.getFingerprint();
+	}
+
+	@Override
+	protected BufferedLEGOColorTransform snapshot() {
+		ThresholdTransform snapshot = (ThresholdTransform)super.snapshot();
+		snapshot.colorMatcher = colorMatcher.snapshot();
+		return snapshot;
 	}
 	
 	@Override
-	public LEGOColorGrid lcTransformUnbuffered(BufferedImage in) {
+	public LEGOColorGrid lcTransformUnbuffered(BufferedImage in, ProgressCallback progressCallback, CancellationToken cancel) {
 		int w = in.getWidth();
 		int h = in.getHeight();
 		
 		LEGOColor[][] pixels = new LEGOColor[h][w];
-		int[] iPixels = new int[w*h];
-		in.getRGB(0, 0, w, h, iPixels, 0, w);
+		int[] iPixels = IntRaster.of(in).getPixels();
 
 		for(int y = 0, i = 0; y < h; y++) {
 			progressCallback.reportProgress(1000*y/h);
+			cancel.check();
 			for(int x = 0; x < w; x++, i++) {
-				pixels[y][x] = LEGOColorLookUp.lookUp(iPixels[i]);
+				pixels[y][x] = colorMatcher.lookUp(iPixels[i]);
 			}
 		}
 	    return new LEGOColorGrid(pixels);
@@ -49,9 +59,4 @@ public class ThresholdTransform extends BufferedLEGOColorTransform {
 	public void paintIcon(Graphics2D g, int size) {
 		Icons.treshold(size).paintIcon(null, g, 0, 0);
 	}
-
-	@Override
-	public void setProgressCallback(ProgressCallback p) {
-		progressCallback = p;
-	}
 }
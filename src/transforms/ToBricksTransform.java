@@ -2,18 +2,25 @@ package transforms;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 import transforms.ScaleTransform.ScaleQuality;
 import mosaic.controllers.ColorController;
 import mosaic.io.InstructionsBuilderI;
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 import colors.*;
 import bricks.*;
 
 /**
  * Transforms an image to bricks in the given size of basic LEGO units.
+ * The settings are changed by the event dispatch thread, so they are guarded by the lock of this transform, 
+ * and each run renders with a copy of the settings as they were when the run started.
  * @author LD
  */
 public class ToBricksTransform implements InstructionsTransform {	
+	public static final int PREVIEW_MAX_SAMPLES = 1 << 16; // Colors matched for a preview.
+
 	private int width, height;
 	private ToBricksType toBricksType;
 	private ScaleTransform brickFromTopTransform, 
@@ -23,12 +30,24 @@ public class ToBricksTransform implements InstructionsTransform {
 						   snotOutputTransform,
 						   rTransform;
 	private FloydSteinbergTransform ditheringTransform;
+	private OrderedDitheringTransform bayerTransform, blueNoiseTransform; // blueNoiseTransform is built when first used. Synchronized.
+	private ErrorDiffusionTransform diffusionTransform;
 	private ThresholdTransform thresholdTransform;
-	private LEGOColorGrid normalColors, sidewaysColors;
+	private DitheringEngine ditheringEngine;
+	private ColorMatcher colorMatcher;
+	private LEGOColorGrid normalColors, sidewaysColors; // Of the last SNOT match. Only used by the thread rendering.
 	private boolean[][] normalColorsChoosen;
+	private final AtomicReference<MosaicSnapshot> snapshot = new AtomicReference<MosaicSnapshot>();
 	private ColorController cc;
+	private ProgressCallback progressCallback = ProgressCallback.NOP;
+	private Object stage = this; // Key of the SNOT matches in the StageCache.
+	private ToBricksTransform original; // Which this is a copy of, so transforms built later share its stages.
+	
+	public ToBricksTransform(LEGOColor[] colors, ToBricksType toBricksType, int propagationPercentage, DitheringEngine ditheringEngine, int width, int height, ColorController cc) {
+		this(new ColorMatcher(colors), toBricksType, propagationPercentage, ditheringEngine, width, height, cc);
+	}
 	
-	public ToBricksTransform(LEGOColor[] colors, ToBricksType toBricksType, int propagationPercentage, int width, int height, ColorController cc) {
+	private ToBricksTransform(ColorMatcher colorMatcher, ToBricksType toBricksType, int propagationPercentage, DitheringEngine ditheringEngine, int width, int height, ColorController cc) {
 		this.cc = cc;
 		brickFromTopTransform = new ScaleTransform("Construct from top",  false, ScaleQuality.RetainColors);
 		brickFromSideTransform = new ScaleTransform("Construct bricks from side", false, ScaleQuality.RetainColors);
@@ -38,15 +57,60 @@ public class ToBricksTransform implements InstructionsTransform {
 		snotOutputTransform = new ScaleTransform("SNOT output", false, ScaleQuality.RetainColors);
 		rTransform = new ScaleTransform("To correct construction scale", false, ScaleQuality.RetainColors);
 		
-		LEGOColorLookUp.setColors(colors);
+		this.colorMatcher = colorMatcher;
 
-		ditheringTransform = new FloydSteinbergTransform(2, propagationPercentage, cc);
-		thresholdTransform = new ThresholdTransform(2, cc);
+		ditheringTransform = new FloydSteinbergTransform(propagationPercentage, colorMatcher, cc);
+		bayerTransform = new OrderedDitheringTransform(OrderedDitheringTransform.bayerMap(), propagationPercentage, colorMatcher, cc);
+		diffusionTransform = new ErrorDiffusionTransform(ErrorDiffusionTransform.Kernel.JARVIS_JUDICE_NINKE, propagationPercentage, colorMatcher, cc);
+		thresholdTransform = new ThresholdTransform(colorMatcher, cc);
+		setDitheringEngine(ditheringEngine);
 		
 		this.toBricksType = toBricksType;
 		setBasicUnitSize(width, height);
+		snapshot.set(MosaicSnapshot.empty(toBricksType, cc));
+	}
+	
+	/**
+	 * The copy shares the color matcher, and the results in the StageCache, with this transform. 
+	 * Changing the settings of the copy leaves this transform unchanged, so the copy can compute results 
+	 * for other settings before they are chosen.
+	 * @return A transform with the same settings as this.
+	 */
+	public synchronized ToBricksTransform copy() {
+		return copy(colorMatcher);
 	}
 	
+	private ToBricksTransform copy(ColorMatcher colorMatcher) {
+		ToBricksTransform copy = new ToBricksTransform(colorMatcher, toBricksType, getPropagationPercentage(), ditheringEngine, width, height, cc);
+		copy.setDitheringScanOrder(ditheringTransform.getScanOrder());
+		copy.setDitheringErrorClamp(ditheringTransform.getErrorClamp());
+		copy.stage = stage;
+		copy.original = this;
+		copy.brickFromTopTransform.shareStage(brickFromTopTransform);
+		copy.brickFromSideTransform.shareStage(brickFromSideTransform);
+		copy.plateFromSideTransform.shareStage(plateFromSideTransform);
+		copy.verticalPlateFromSideTransform.shareStage(verticalPlateFromSideTransform);
+		copy.snotOutputTransform.shareStage(snotOutputTransform);
+		copy.rTransform.shareStage(rTransform);
+		copy.ditheringTransform.shareStage(ditheringTransform);
+		copy.bayerTransform.shareStage(bayerTransform);
+		copy.diffusionTransform.shareStage(diffusionTransform);
+		copy.thresholdTransform.shareStage(thresholdTransform);
+		return copy;
+	}
+	
+	/**
+	 * @return All settings the result depends on besides the input.
+	 */
+	public synchronized Object getParameterKey() {
+		return Arrays.asList(toBricksType, getPropagationPercentage(), ditheringEngine, width, height, 
+				ditheringTransform.getScanOrder(), ditheringTransform.getErrorClamp(), colorMatcher.getFingerprint());
+	}
+	
+	public ColorMatcher getColorMatcher() {
+		return colorMatcher;
+	}
+
 	public Transform getSnotOutputTransform() {
 		return snotOutputTransform;
 	}
@@ -59,7 +123,66 @@ public class ToBricksTransform implements InstructionsTransform {
 	}
 
 	public BufferedLEGOColorTransform getMainTransform() {
-		return ditheringTransform.getPropagationPercentage() == 0 ? thresholdTransform : ditheringTransform;
+		if(ditheringTransform.getPropagationPercentage() == 0)
+			return thresholdTransform;
+		switch(ditheringEngine) {
+		case FLOYD_STEINBERG:
+			return ditheringTransform;
+		case ORDERED_BAYER:
+			return bayerTransform;
+		case BLUE_NOISE:
+			return getBlueNoiseTransform();
+		default:
+			return diffusionTransform;
+		}
+	}
+	
+	/**
+	 * Built when first used, so the blue noise map is only computed when blue noise dithering is chosen.
+	 * A copy shares the stage of the transform it was copied from.
+	 */
+	private synchronized OrderedDitheringTransform getBlueNoiseTransform() {
+		if(blueNoiseTransform == null) {
+			blueNoiseTransform = new OrderedDitheringTransform(OrderedDitheringTransform.blueNoiseMap(), getPropagationPercentage(), colorMatcher, cc);
+			blueNoiseTransform.setProgressCallback(progressCallback);
+			if(original != null)
+				blueNoiseTransform.shareStage(original.getBlueNoiseTransform());
+		}
+		return blueNoiseTransform;
+	}
+	
+	/**
+	 * @return Where the stage reports progress, such as when the stage runs branches of its own.
+	 */
+	public ProgressCallback getProgressCallback() {
+		return progressCallback;
+	}
+	
+	public synchronized DitheringEngine getDitheringEngine() {
+		return ditheringEngine;
+	}
+	
+	public synchronized boolean setDitheringEngine(DitheringEngine ditheringEngine) {
+		if(this.ditheringEngine == ditheringEngine)
+			return false;
+		this.ditheringEngine = ditheringEngine;
+		switch(ditheringEngine) {
+		case JARVIS_JUDICE_NINKE:
+			diffusionTransform.setKernel(ErrorDiffusionTransform.Kernel.JARVIS_JUDICE_NINKE);
+			break;
+		case STUCKI:
+			diffusionTransform.setKernel(ErrorDiffusionTransform.Kernel.STUCKI);
+			break;
+		case SIERRA:
+			diffusionTransform.setKernel(ErrorDiffusionTransform.Kernel.SIERRA);
+			break;
+		case ATKINSON:
+			diffusionTransform.setKernel(ErrorDiffusionTransform.Kernel.ATKINSON);
+			break;
+		default:
+			break;
+		}
+		return true;
 	}
 
 	public Transform getPlateFromSideTransform(int studsLength) {
@@ -90,26 +213,58 @@ public class ToBricksTransform implements InstructionsTransform {
 		return brickFromTopTransform;
 	}
 
-	public void setToBricksType(ToBricksType toBricksType) {
+	public synchronized void setToBricksType(ToBricksType toBricksType) {
 		this.toBricksType = toBricksType;
 	}
 	
-	public void setPropagationPercentage(int pp) {
-		if(ditheringTransform.setPropagationPercentage(pp))
-			snotOutputTransform.clearBuffer(); // pipe line breakage => clear the basic transform buffer to enforce update in view.
+	public int getPropagationPercentage() {
+		return ditheringTransform.getPropagationPercentage();
+	}
+	
+	/**
+	 * @param threads Number of threads dithering rows at the same time for the RASTER scan order.
+	 */
+	public synchronized void setDitheringThreads(int threads) {
+		ditheringTransform.setThreads(threads);
+		diffusionTransform.setThreads(threads);
+	}
+	
+	public int getDitheringThreads() {
+		return ditheringTransform.getThreads();
+	}
+	
+	public synchronized boolean setPropagationPercentage(int pp) {
+		boolean changed = ditheringTransform.setPropagationPercentage(pp);
+		changed |= bayerTransform.setPropagationPercentage(pp);
+		changed |= diffusionTransform.setPropagationPercentage(pp);
+		if(blueNoiseTransform != null)
+			changed |= blueNoiseTransform.setPropagationPercentage(pp);
+		return changed;
+	}
+
+	public synchronized boolean setDitheringScanOrder(FloydSteinbergTransform.ScanOrder scanOrder) {
+		boolean changed = ditheringTransform.setScanOrder(scanOrder);
+		changed |= diffusionTransform.setScanOrder(scanOrder);
+		return changed;
+	}
+
+	public synchronized boolean setDitheringErrorClamp(FloydSteinbergTransform.ErrorClamp errorClamp) {
+		boolean changed = ditheringTransform.setErrorClamp(errorClamp);
+		changed |= diffusionTransform.setErrorClamp(errorClamp);
+		return changed;
 	}
 
-	public ToBricksType getToBricksType() {
+	public synchronized ToBricksType getToBricksType() {
 		return toBricksType;
 	}
 	
-	public void setBasicUnitSize(int width, int height) {
+	public synchronized void setBasicUnitSize(int width, int height) {
 		this.width = width;
 		this.height = height;
 		updateBasicTransform();
 	}
 	
-	public Dimension getBasicUnitSize() {
+	public synchronized Dimension getBasicUnitSize() {
 		if(getToBricksType() == ToBricksType.SNOT_IN_2_BY_2)
 			return new Dimension(width, height);
 		else
@@ -117,13 +272,7 @@ public class ToBricksTransform implements InstructionsTransform {
 	}
 	
 	public boolean setColors(LEGOColor[] colors) {
-		if(LEGOColorLookUp.setColors(colors)) {
-			snotOutputTransform.clearBuffer();
-			ditheringTransform.clearBuffer();
-			thresholdTransform.clearBuffer();
-			return true;
-		}
-		return false;		
+		return colorMatcher.setColors(colors); // The colors are keyed by the fingerprint of the colors.
 	}
 	
 	private void updateBasicTransform() {
@@ -132,14 +281,12 @@ public class ToBricksTransform implements InstructionsTransform {
 	}
 
 	/**
-	 * Writes to original.
+	 * Chooses between the normal and sideways colors for each block, by comparing them to original.
+	 * Matches are kept in the shared StageCache. When cancelled, the last match is left unchanged.
+	 * @return The chosen colors. original is not changed.
 	 */
-	public BufferedImage bestMatch(LEGOColorGrid normalColors, 
-			                       LEGOColorGrid sidewaysColors, BufferedImage original) {
-		if(this.normalColors == normalColors && this.sidewaysColors == sidewaysColors) {
-			return original; // buffered!
-		}
-		
+	public BufferedImage bestMatch(final LEGOColorGrid normalColors, 
+			                       final LEGOColorGrid sidewaysColors, BufferedImage original, final CancellationToken cancel) {
 		if(height == 0 || width == 0)
 			return original;
 		if(original.getWidth() != width) {
@@ -148,71 +295,108 @@ public class ToBricksTransform implements InstructionsTransform {
 		if(original.getHeight() != height) {
 			throw new IllegalArgumentException("Height " + original.getHeight() + "!=" + height);
 		}
-
+		StageCache cache = StageCache.getShared();
+		StageCache.Key key = cache.key(stage, "SNOT best match", normalColors, sidewaysColors, original);
+		SnotMatch match = (SnotMatch)cache.get(key);
+		if(match == null) {
+			match = computeBestMatch(normalColors, sidewaysColors, original, cancel);
+			cache.put(key, match, StageCache.bytes(match.image, null) + (width/SizeInfo.SNOT_BLOCK_WIDTH)*(16L + height/SizeInfo.SNOT_BLOCK_WIDTH));
+		}
 		this.normalColors = normalColors;
 		this.sidewaysColors = sidewaysColors;
-
-		int cw = width/SizeInfo.SNOT_BLOCK_WIDTH;
-		int ch = height/SizeInfo.SNOT_BLOCK_WIDTH;
-		normalColorsChoosen = new boolean[cw][ch];
+		normalColorsChoosen = match.normalChosen;
+		return match.image;
+	}
+	
+	private SnotMatch computeBestMatch(final LEGOColorGrid normalColors, 
+			final LEGOColorGrid sidewaysColors, BufferedImage original, final CancellationToken cancel) {
+		final int cw = width/SizeInfo.SNOT_BLOCK_WIDTH;
+		final int ch = height/SizeInfo.SNOT_BLOCK_WIDTH;
+		final boolean[][] choosen = new boolean[cw][ch];
 		
-		int[] outputPixels = new int[width*height];
-		outputPixels = original.getRGB(0,  0, width, height, outputPixels, 0, width);
+		IntRaster out = IntRaster.of(original).writable(); // The chosen colors are written over the original.
+		final int[] outputPixels = out.getPixels();
 		
-		for(int x = 0; x < cw; x++) {
-			for(int y = 0; y < ch; y++) {				
-				normalColorsChoosen[x][y] = arrayBestMatch(x, y, outputPixels);
+		// Convert the source to Lab once. Each block is compared against both its normal and sideways colors:
+		final int[] labs = new int[3*width*height];
+		RowBands.forEach(height, 10, new RowBands.Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				int[] lab = new int[3];
+				cancel.check();
+				for(int i = fromY*width; i < toY*width; ++i) {
+					int c = outputPixels[i];
+					CIELab.rgb2lab(LEGOColorLookUp.getRed(c), LEGOColorLookUp.getGreen(c), LEGOColorLookUp.getBlue(c), lab);
+					labs[3*i] = lab[0];
+					labs[3*i+1] = lab[1];
+					labs[3*i+2] = lab[2];
+				}
 			}
-		}
+		});
+		
+		// Blocks only write their own pixels, so rows of blocks can be matched in parallel:
+		RowBands.forEach(ch, 1, new RowBands.Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				for(int y = fromY; y < toY; y++) {
+					cancel.check();
+					for(int x = 0; x < cw; x++) {
+						choosen[x][y] = arrayBestMatch(normalColors, sidewaysColors, x, y, labs, outputPixels);
+					}
+				}
+			}
+		});
 		
-		original.setRGB(0, 0, width, height, outputPixels, 0, width);
-		return original;
+		return new SnotMatch(out.getImage(), choosen);
+	}
+	
+	private static class SnotMatch {
+		final BufferedImage image;
+		final boolean[][] normalChosen;
+		
+		SnotMatch(BufferedImage image, boolean[][] normalChosen) {
+			this.image = image;
+			this.normalChosen = normalChosen;
+		}
 	}
 	
 	/*
-	 * Writes in original, return whether normal the best match
+	 * Sum of the CIE94 differences between the colors of a block and the Lab values of the pixels they cover.
+	 * The sum is truncated to int after each pixel.
 	 */
-	private boolean arrayBestMatch(int blockX, int blockY, int[] original) {
+	private int blockDistance(LEGOColorGrid colors, int n2, int n5, int blockX, int blockY, int[] labs) {
 		final int w = width;
 		int originalIBlock = w*10*blockY + blockX*10;
-		int n2 = 2;
-		int n5 = 5;
-
-		int distNormal = 0;
+		int dist = 0;
 		for(int y = 0; y < n5; ++y) {
 			int originalIY = originalIBlock + n2*w*y;
-			LEGOColor[] row = normalColors.getRow(blockY*n5+y);
+			LEGOColor[] row = colors.getRow(blockY*n5+y);
 			for(int x = 0; x < n2; x++) {
 				int originalIXY = originalIY + n5*x;
-				Color normalColor = row[blockX*n2+x].getRGB();
+				int[] colorLab = row[blockX*n2+x].getLAB();
 				for(int x2 = 0; x2 < n5; x2++) {
 					for(int y2 = 0; y2 < n2; ++y2) {
-						int originalColor = original[originalIXY + x2 + w*y2];
-						distNormal += ColorDifference.diffCIE94(normalColor, originalColor);
-					}
-				}
-			}
-		}
-		
-		n2 = 5;
-		n5 = 2;
-		int distSideways = 0;
-		for(int y = 0; y < n5; ++y) {
-			int originalIY = originalIBlock + n2*w*y;
-			LEGOColor[] row = sidewaysColors.getRow(blockY*n5+y);
-			for(int x = 0; x < n2; x++) {
-				int originalIXY = originalIY + n5*x;
-				Color sidewaysColor = row[blockX*n2+x].getRGB();
-				for(int x2 = 0; x2 < n5; x2++) {
-					for(int y2 = 0; y2 < n2; ++y2) {
-						int originalColor = original[originalIXY + x2 + w*y2];
-						distSideways += ColorDifference.diffCIE94(sidewaysColor, originalColor);
+						int i = 3*(originalIXY + x2 + w*y2);
+						dist += ColorDifference.diffCIE94(colorLab, labs[i], labs[i+1], labs[i+2]);
 					}
 				}
 			}
 		}
+		return dist;
+	}
+	
+	/*
+	 * Writes in original, return whether normal the best match
+	 */
+	private boolean arrayBestMatch(LEGOColorGrid normalColors, LEGOColorGrid sidewaysColors, int blockX, int blockY, int[] labs, int[] original) {
+		final int w = width;
+		int originalIBlock = w*10*blockY + blockX*10;
+		int distNormal = blockDistance(normalColors, 2, 5, blockX, blockY, labs);
+		int distSideways = blockDistance(sidewaysColors, 5, 2, blockX, blockY, labs);
 						
 		boolean res = false;
+		int n2 = 5;
+		int n5 = 2;
 		if(distNormal <= distSideways) {
 			res = true;
 			n2 = 2;
@@ -224,7 +408,7 @@ public class ToBricksTransform implements InstructionsTransform {
 			LEGOColor[] row = (res ? normalColors : sidewaysColors).getRow(blockY*n5+y);
 			for(int x = 0; x < n2; x++) {
 				int originalIXY = originalIY + n5*x;
-				int c = row[blockX*n2+x].getRGB().getRGB();				
+				int c = row[blockX*n2+x].getRGB().getRGB() & 0xFFFFFF;				
 				for(int x2 = 0; x2 < n5; x2++) {
 					for(int y2 = 0; y2 < n2; ++y2) {
 						original[originalIXY + x2 + w*y2] = c;
@@ -237,11 +421,96 @@ public class ToBricksTransform implements InstructionsTransform {
 	
 	@Override
 	public BufferedImage transform(BufferedImage in) {
-		return toBricksType.transform(in, this);
+		return transform(in, CancellationToken.NONE);
+	}
+
+	/**
+	 * Renders with a copy of the settings, so settings changed during the run only cancel it.
+	 * Publishes the mosaic rendered as the snapshot once it is complete and the run hasn't been cancelled.
+	 */
+	@Override
+	public BufferedImage transform(BufferedImage in, CancellationToken cancel) {
+		ToBricksTransform run = runCopy();
+		ToBricksType type = run.toBricksType;
+		BufferedImage out = type.transform(in, run, cancel);
+		MosaicSnapshot mosaic;
+		if(type == ToBricksType.SNOT_IN_2_BY_2)
+			mosaic = MosaicSnapshot.snot(out.getWidth(), out.getHeight(), run.normalColors, run.sidewaysColors, run.normalColorsChoosen, cc);
+		else
+			mosaic = MosaicSnapshot.of(type, run.getMainTransform().lastInstructions(), cc);
+		cancel.check(); // Settings may have changed during the run.
+		snapshot.set(mosaic);
+		return out;
+	}
+	
+	/**
+	 * @return Copy for one run: The colors are pinned, and progress and threads are those of this transform.
+	 */
+	private synchronized ToBricksTransform runCopy() {
+		ToBricksTransform run = copy(colorMatcher.snapshot());
+		run.setProgressCallback(progressCallback);
+		run.setDitheringThreads(getDitheringThreads());
+		return run;
+	}
+	
+	/**
+	 * @return The mosaic of the last complete run. Never null.
+	 */
+	public MosaicSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * A quick approximation of the mosaic to show while it is rendered: The colors matching the pixels 
+	 * of in sampled on a coarse grid, without dithering, and for SNOT with all blocks showing studs up.
+	 * At most PREVIEW_MAX_SAMPLES colors are matched, so the time doesn't grow with the size of the mosaic.
+	 * Nothing is put in the StageCache and the snapshot of this transform is not changed.
+	 * @return A snapshot flagged as a preview.
+	 */
+	public MosaicSnapshot preview(BufferedImage in, CancellationToken cancel) {
+		ToBricksType type;
+		int w, h;
+		synchronized(this) {
+			type = toBricksType;
+			w = width;
+			h = height;
+		}
+		if(type == ToBricksType.SNOT_IN_2_BY_2) {
+			LEGOColorGrid normal = sample(in, w/SizeInfo.BRICK_WIDTH, h/SizeInfo.PLATE_HEIGHT, cancel);
+			boolean[][] chosen = new boolean[w/SizeInfo.SNOT_BLOCK_WIDTH][h/SizeInfo.SNOT_BLOCK_WIDTH];
+			for(boolean[] column : chosen)
+				Arrays.fill(column, true);
+			return MosaicSnapshot.snot(w, h, normal, null, normal == null ? null : chosen, cc).asPreview();
+		}
+		return MosaicSnapshot.of(type, sample(in, w/type.getUnitWidth(), h/type.getUnitHeight(), cancel), cc).asPreview();
+	}
+
+	/**
+	 * Samples one pixel for each step x step elements. Rows of elements sampled together share the same array.
+	 * @return Colors of gridWidth x gridHeight elements, or null when empty.
+	 */
+	private LEGOColorGrid sample(BufferedImage in, int gridWidth, int gridHeight, CancellationToken cancel) {
+		if(gridWidth <= 0 || gridHeight <= 0)
+			return null;
+		int step = Math.max(1, (int)Math.ceil(Math.sqrt(gridWidth*(double)gridHeight/PREVIEW_MAX_SAMPLES)));
+		int inW = in.getWidth(), inH = in.getHeight();
+		LEGOColor[][] grid = new LEGOColor[gridHeight][];
+		for(int y = 0; y < gridHeight; y += step) {
+			cancel.check();
+			int inY = Math.min(inH-1, (int)((y + step/2.0)*inH/gridHeight));
+			LEGOColor[] row = new LEGOColor[gridWidth];
+			for(int x = 0; x < gridWidth; x += step) {
+				int inX = Math.min(inW-1, (int)((x + step/2.0)*inW/gridWidth));
+				Arrays.fill(row, x, Math.min(gridWidth, x+step), colorMatcher.lookUp(in.getRGB(inX, inY)));
+			}
+			for(int y2 = y; y2 < Math.min(gridHeight, y+step); y2++)
+				grid[y2] = row;
+		}
+		return new LEGOColorGrid(grid);
 	}
 
 	@Override
-	public Dimension getTransformedSize(Dimension in) {
+	public synchronized Dimension getTransformedSize(Dimension in) {
 		return toBricksType.getTransformedSize(in, this);
 	}
 
@@ -254,36 +523,19 @@ public class ToBricksTransform implements InstructionsTransform {
 		if(blockWidth != 10 || blockHeight != 10)
 			throw new IllegalArgumentException("Block 10x10");
 			
-		return drawSnot(g2, basicUnitRect, toSize, false, true);
+		return snapshot.get().draw(g2, basicUnitRect, toSize, false, true);
 	}
 	
 	public LEGOColor.CountingLEGOColor[] drawAll(Graphics2D g2, Dimension toSize) {
-		Rectangle basicUnitRect = new Rectangle(0, 0, width, height);
-		return draw(g2, basicUnitRect, toSize, true, false);
+		return snapshot.get().drawAll(g2, toSize);
 	}
 	
 	public void drawAllSpaced(Graphics2D g2, Dimension toSize) {
-		Rectangle basicUnitRect = new Rectangle(0, 0, width, height);
-		draw(g2, basicUnitRect, toSize, true, false);
+		snapshot.get().drawAll(g2, toSize);
 	}
 	
 	public LEGOColor.CountingLEGOColor[] draw(Graphics2D g2, Rectangle basicUnitRect, Dimension toSize, boolean showColors, boolean showOutlines) {
-		int basicUnitWidth = getToBricksType().getUnitWidth();
-		int basicUnitHeight = getToBricksType().getUnitHeight();
-		if(getToBricksType() == ToBricksType.SNOT_IN_2_BY_2) {
-			if(showColors)
-				return drawLastColors(g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize, 0, 0, showOutlines);
-			else
-				return drawLastInstructions(g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize);
-		}
-		else {
-			if(showColors) {
-				ToBricksType tbt = getToBricksType();
-				return getMainTransform().drawLastColors(g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize, tbt.getStudsShownWide(), tbt.getStudsShownTall(), showOutlines);
-			}
-			else
-				return getMainTransform().drawLastInstructions(g2, basicUnitRect, basicUnitWidth, basicUnitHeight, toSize);
-		}
+		return snapshot.get().draw(g2, basicUnitRect, toSize, showColors, showOutlines);
 	}
 
 	/*
@@ -294,197 +546,17 @@ public class ToBricksTransform implements InstructionsTransform {
 		if(blockWidth != 10 || blockHeight != 10)
 			throw new IllegalArgumentException("Block 10x10");
 			
-		return drawSnot(g2, basicUnitRect, toSize, true, showOutlines);
-	}
-	
-	private LEGOColor.CountingLEGOColor[] drawSnot(Graphics2D g2, Rectangle basicUnitRect, 
-			Dimension toSize, boolean drawColors, boolean showOutlines) {
-		if(normalColorsChoosen == null)
-			return new LEGOColor.CountingLEGOColor[]{};
-		if(!drawColors) {
-			g2.setColor(Color.WHITE);
-			g2.fillRect(0, 0, toSize.width, toSize.height);			
-		}
-		
-		int w = basicUnitRect.width/10;
-		int h = basicUnitRect.height/10;
-
-		double scaleW = (double)toSize.width / w;
-		double scaleH = (double)toSize.height / h;
-
-		int fontHeight = 0;
-		if(!drawColors) {
-			Font font = LEGOColor.makeFont(g2, (int)(scaleW/5), (int)(scaleH/5), cc, lastUsedColorCounts());
-			g2.setFont(font);
-			FontMetrics fm = g2.getFontMetrics(font);
-			fontHeight = (fm.getDescent()+fm.getAscent())/2;			
-		}
-		
-		if(showOutlines) {
-			g2.setColor(Color.BLACK);
-			g2.drawRect(0, 0, toSize.width, toSize.height);			
-		}
-		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
-		int cnt = 0;
-		for(int x = 0; x < w; x++) {
-			for(int y = 0; y < h; y++) {
-				int ix = basicUnitRect.x/10+x;
-				int iy = basicUnitRect.y/10+y;
-				
-				if(normalColorsChoosen.length > ix && normalColorsChoosen[ix].length > iy) {
-					if(normalColorsChoosen[ix][iy])
-						cnt += snot(m, g2, basicUnitRect, true, drawColors, scaleW, scaleH, fontHeight, x, y, showOutlines);
-					else
-						cnt += snot(m, g2, basicUnitRect, false, drawColors, scaleW, scaleH, fontHeight, x, y, showOutlines);
-				}
-			}
-		}
-		
-		LEGOColor.CountingLEGOColor[] ret = new LEGOColor.CountingLEGOColor[cnt];
-		for(int i = 0, idx = 0; i < m.length; ++i) {
-			if(m[i] != null)
-				ret[idx++] = m[i];			
-		}
-		return ret;
-	}
-	
-	/*
-	 * For Instructions
-	 */
-	private int snot(LEGOColor.CountingLEGOColor[] m, Graphics2D g2, Rectangle basicUnitRect, 
-								 boolean normal, boolean drawColors, 
-			          			 double scaleW, double scaleH, int fontSize, int x, int y, boolean showOutlines) {
-		int n2 = 2;
-		int n5 = 5;
-		if(!normal) {
-			n2 = 5;
-			n5 = 2;
-		}
-		
-		int ret = 0;
-		for(int j = 0; j < n5; j++) { // =
-			int iy = basicUnitRect.y/n2+y*n5+j;
-			for(int i = 0; i < n2; i++) { // |
-				int ix = basicUnitRect.x/n5+x*n2+i;
-				LEGOColor color = (normal ? normalColors : sidewaysColors).getRow(iy)[ix];
-				int idx = color.getIDRebrickable();
-				
-				if(m[idx] == null) {
-					m[idx] = new LEGOColor.CountingLEGOColor(color, 1);
-					++ret;
-				}
-				else
-					m[idx].cnt++;
-				
-				int xIndent = (int)Math.round(scaleW*x+scaleW/n2*i);
-				int yIndent = (int)Math.round(scaleH*y+scaleH/n5*j);
-				int w = (int)(1+scaleW/n2);
-				int h = (int)(1+scaleH/n5);
-				Rectangle r = new Rectangle(xIndent, yIndent, w, h);
-
-				if(drawColors) {
-					g2.setColor(color.getRGB());
-					g2.fill(r);
-					if(showOutlines) {
-						g2.setColor(color.getRGB() == Color.BLACK ? Color.WHITE : Color.BLACK);
-						g2.draw(r);						
-					}
-				}
-				else {
-					String id = cc.getShortIdentifier(color); // ix + "x" + iy;//
-					int width = g2.getFontMetrics().stringWidth(id);
-					int originX = (int)(r.getCenterX() - width/2);
-					int originY = (int)(r.getCenterY() + fontSize/2);
-					g2.drawString(id, originX, originY);											
-					g2.draw(r);					
-				}
-			}			
-		}
-		return ret;
-	}
-
-	private static boolean addOne(LEGOColor.CountingLEGOColor[] m, LEGOColor c) {
-		int idx = c.getIDRebrickable();
-		if(m[idx] != null) {
-			m[idx].cnt++;
-			return false;
-		}
-		else {
-			m[idx] = new LEGOColor.CountingLEGOColor(c, 1);					
-			return true;
-		}
-	}
-	
-	private int addAll(LEGOColor.CountingLEGOColor[] m) {
-		if(normalColorsChoosen == null)
-			return 0; // nop
-		int size = 0;
-		for(int x = 0; x < normalColorsChoosen.length; x++) {
-			for(int y = 0; y < normalColorsChoosen[0].length; y++) {
-				boolean normalColorChosen = normalColorsChoosen[x][y];
-				
-				int n2 = 2;
-				int n5 = 5;
-				if(!normalColorChosen) {
-					n2 = 5;
-					n5 = 2;
-				}				
-				
-				for(int h = 0; h < n5; ++h) {
-					LEGOColor[] row = (normalColorChosen ? normalColors : sidewaysColors).getRow(y*n5+h);
-					for(int w = 0; w < n2; ++w) {
-						if(addOne(m, row[x*n2+w]))
-							++size;
-					}
-				}				
-			}
-		}
-		return size;
+		return snapshot.get().draw(g2, basicUnitRect, toSize, true, showOutlines);
 	}
 	
 	@Override
 	public LEGOColor.CountingLEGOColor[] lastUsedColorCounts() {
-		LEGOColor.CountingLEGOColor[] m = new LEGOColor.CountingLEGOColor[LEGOColor.getMaxRebrickableId()+1];
-		int size = addAll(m);
-		LEGOColor.CountingLEGOColor[] ret = new LEGOColor.CountingLEGOColor[size];		
-		for(int i = 0, idx = 0; i < m.length; i++) {
-			if(m[i] != null)
-				ret[idx++] = m[i];
-		}
-		return ret;
+		return snapshot.get().getColorCounts();
 	}
 
 	// ONLY FOR SNOT!
 	public void buildLastInstructions(InstructionsBuilderI printer, Rectangle bounds) {
-		int id = 0;
-		int maxX = Math.min(normalColorsChoosen.length, bounds.x+bounds.width);
-		for(int x = bounds.x; x < maxX; x++) {
-			int maxY = Math.min(normalColorsChoosen[0].length, bounds.y+bounds.height);
-			for(int y = bounds.y; y < maxY;y++) {
-				boolean normal = normalColorsChoosen[x][y]; 
-				int n2 = 2;
-				int n5 = 5;
-				if(!normal) {
-					n2 = 5;
-					n5 = 2;
-				}
-				
-				for(int j = 0; j < n5; j++) { // =
-					int iy = y*n5+j;
-					LEGOColor[] row = (normal ? normalColors : sidewaysColors).getRow(iy);
-					for(int i = 0; i < n2; i++) { // |
-						int ix = x*n2+i;
-						LEGOColor color = row[ix];
-						if(normal) {
-							printer.add(id++, 2*x+i, 5*y+j, color);
-						}
-						else {
-							printer.addSideways(id++, 5*x+i, 2*y+j, color);
-						}
-					}			
-				}
-			}
-		}
+		snapshot.get().buildInstructions(printer, bounds);
 	}
 
 	@Override
@@ -493,8 +565,13 @@ public class ToBricksTransform implements InstructionsTransform {
 	}
 
 	@Override
-	public void setProgressCallback(ProgressCallback p) {
+	public synchronized void setProgressCallback(ProgressCallback p) {
+		progressCallback = p;
 		thresholdTransform.setProgressCallback(p);
 		ditheringTransform.setProgressCallback(p);
+		bayerTransform.setProgressCallback(p);
+		diffusionTransform.setProgressCallback(p);
+		if(blueNoiseTransform != null)
+			blueNoiseTransform.setProgressCallback(p);
 	}
 }
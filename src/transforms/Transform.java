@@ -4,10 +4,15 @@ import java.awt.image.BufferedImage;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 
+import mosaic.rendering.CancellationToken;
 import mosaic.rendering.ProgressCallback;
 
 public interface Transform {
 	BufferedImage transform(BufferedImage in);
+	/**
+	 * @param cancel Checked while transforming. When cancelled, a CancelledException is thrown.
+	 */
+	BufferedImage transform(BufferedImage in, CancellationToken cancel);
 	Dimension getTransformedSize(Dimension in);
 	void paintIcon(Graphics2D g, int size);
 	void setProgressCallback(ProgressCallback p);
@@ -0,0 +1,142 @@
+package transforms;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+
+/**
+ * Runs the rows of an error diffusion in parallel: Thread t processes the rows t, t+threads, t+2*threads, ...
+ * A row calls await() before each pixel to wait until the rows above have diffused all their error into it,
+ * and done() after each pixel.
+ * The first failure stops all rows. Each thread checks the cancellation token before each of its rows.
+ *
+ * The other threads are tasks of the ForkJoinPool the caller runs in, or of the common pool. A row waiting
+ * spins and yields a bounded number of times and then parks as a ManagedBlocker, so the pool can run other
+ * tasks on the core meanwhile and add a thread when all of its threads are waiting.
+ */
+class Wavefront {
+	private static final int SPINS = 256; // Checks before yielding.
+	private static final int YIELDS = 16; // Yields before parking.
+	private static final long PARK_NANOS = 20000;
+	
+	interface Rows {
+		/**
+		 * Processes row y. wavefront is null when the rows are processed one at a time.
+		 */
+		void run(int y, Wavefront wavefront);
+	}
+	
+	private final AtomicIntegerArray done; // Number of pixels completed in each row.
+	private volatile Throwable failure;
+	
+	private Wavefront(int h) {
+		done = new AtomicIntegerArray(h);
+	}
+	
+	/**
+	 * Processes rows [0;h) on the given number of threads, including the calling thread.
+	 */
+	static void run(final int h, int threads, final Rows rows, ProgressCallback progressCallback, final CancellationToken cancel) {
+		threads = Math.min(threads, h);
+		if(threads <= 1) {
+			for(int y = 0; y < h; y++) {
+				progressCallback.reportProgress(1000*y/h);
+				cancel.check();
+				rows.run(y, null);
+			}
+			return;
+		}
+		
+		final int step = threads;
+		final Wavefront wavefront = new Wavefront(h);
+		ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+		ForkJoinTask<?>[] helpers = new ForkJoinTask<?>[threads-1];
+		for(int t = 1; t < threads; t++) {
+			final int firstRow = t;
+			helpers[t-1] = ForkJoinTask.adapt(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int y = firstRow; y < h && wavefront.failure == null; y += step) {
+							cancel.check();
+							rows.run(y, wavefront);
+						}
+					}
+					catch(Throwable e) {
+						wavefront.fail(e);
+					}
+				}
+			});
+			pool.execute(helpers[t-1]);
+		}
+		try {
+			for(int y = 0; y < h; y += step) {
+				progressCallback.reportProgress(1000*y/h);
+				cancel.check();
+				rows.run(y, wavefront);
+			}
+		}
+		catch(Throwable e) {
+			wavefront.fail(e);
+		}
+		for(ForkJoinTask<?> helper : helpers)
+			helper.quietlyJoin();
+		Throwable failure = wavefront.failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if(failure instanceof Error)
+			throw (Error)failure;
+	}
+	
+	private synchronized void fail(Throwable e) {
+		if(failure == null)
+			failure = e; // Keep the first failure. Rows waiting for it fail as well.
+	}
+	
+	/**
+	 * Marks the first pixels of row y as completed. Writes made before are visible to rows waiting for them.
+	 */
+	void done(int y, int pixels) {
+		done.lazySet(y, pixels);
+	}
+	
+	/**
+	 * Waits until row y has completed at least the given number of pixels.
+	 * @return Number of pixels completed in row y.
+	 */
+	int await(final int y, final int pixels) {
+		int d;
+		for(int spins = 0; spins < SPINS + YIELDS; spins++) {
+			if((d = done.get(y)) >= pixels)
+				return d;
+			if(spins >= SPINS)
+				Thread.yield(); // Lets the row above run when the threads outnumber the cores.
+		}
+		// The row above is behind, possibly not running at all. Park until it catches up:
+		ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean isReleasable() {
+				return done.get(y) >= pixels || failure != null;
+			}
+			@Override
+			public boolean block() {
+				LockSupport.parkNanos(this, PARK_NANOS);
+				return isReleasable();
+			}
+		};
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt(); // Not thrown, as block() doesn't throw it.
+		}
+		d = done.get(y);
+		if(d < pixels)
+			throw new IllegalStateException("Dithering of another row failed");
+		return d;
+	}
+}
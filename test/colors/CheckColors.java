@@ -0,0 +1,28 @@
+package colors;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import colors.parsers.ColorSheetParser;
+
+/**
+ * Colors of colors.txt for the checks.
+ */
+class CheckColors {
+	static LEGOColor[] load() throws IOException {
+		List<LEGOColor> colors = new ArrayList<LEGOColor>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ColorSheetParser.COLORS_FILE), "UTF-8"));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(!line.trim().isEmpty())
+					colors.add(LEGOColor.parse(line));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return colors.toArray(new LEGOColor[colors.size()]);
+	}
+}
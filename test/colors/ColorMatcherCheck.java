@@ -0,0 +1,69 @@
+package colors;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Checks the lookup maps of ColorMatcher against a linear scan of the palette for the center of
+ * each 4x4x4 cube of colors: Filled lazily, filled eagerly, read from the disk cache, and for both
+ * byte and char maps. Run from the folder of colors.txt. Throws AssertionError on the first difference.
+ */
+public class ColorMatcherCheck {
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(7);
+		LEGOColor[] colors = CheckColors.load();
+		LEGOColor[] many = LabKDTreeCheck.randomPalette(ColorMatcher.MAX_COLORS_BYTE_MAP + 45, random);
+
+		for(LEGOColor[] palette : new LEGOColor[][]{colors, many}) {
+			ColorMatcher lazy = new ColorMatcher(palette);
+			check(lazy, palette, random);
+
+			ColorMatcher eager = new ColorMatcher(palette);
+			eager.setEagerPrefill(true);
+			while(eager.getPrefillProgress() < 1000)
+				Thread.sleep(10);
+			check(eager, palette, random);
+		}
+
+		// Snapshots keep their colors:
+		ColorMatcher matcher = new ColorMatcher(colors);
+		ColorMatcher snapshot = matcher.snapshot();
+		matcher.setColors(many);
+		if(snapshot.getColors() != colors || matcher.getColors() != many)
+			throw new AssertionError("Snapshot changed colors");
+		check(snapshot, colors, random);
+
+		// Stored when filled eagerly and read back:
+		File folder = new File(System.getProperty("java.io.tmpdir"), "color_tables_check_" + System.nanoTime());
+		LookUpTableCache cache = new LookUpTableCache(folder, 2, LookUpTableCache.DEFAULT_MAX_BYTES);
+		ColorMatcher storing = new ColorMatcher(colors);
+		storing.setDiskCache(cache);
+		File stored = new File(folder, storing.getFingerprint() + LookUpTableCache.FILE_SUFFIX);
+		for(int i = 0; i < 500 && !stored.isFile(); i++)
+			Thread.sleep(10);
+		if(!stored.isFile())
+			throw new AssertionError("Not stored: " + stored);
+		ColorMatcher loading = new ColorMatcher(colors);
+		loading.setDiskCache(cache);
+		if(loading.getPrefillProgress() != 1000)
+			throw new AssertionError("Not loaded: " + stored);
+		check(loading, colors, random);
+		stored.delete();
+		folder.delete();
+
+		System.out.println("ColorMatcher: Same colors as a linear scan.");
+	}
+
+	private static void check(ColorMatcher matcher, LEGOColor[] palette, Random random) {
+		int[] lab = new int[3];
+		for(int i = 0; i < ColorMatcher.MAP_SIZE; i++) {
+			int r = (i >> 12) << 2, g = ((i >> 6) & 63) << 2, b = (i & 63) << 2;
+			CIELab.rgb2lab(r+2, g+2, b+2, lab);
+			LEGOColor expected = palette[LabKDTreeCheck.linearScan(palette, lab)];
+			// Any color of the cube gives the color of its center:
+			LEGOColor actual = matcher.lookUp(r + random.nextInt(4), g + random.nextInt(4), b + random.nextInt(4));
+			if(expected != actual)
+				throw new AssertionError(String.format("%d colors, entry %d: Map has %s, linear scan %s", palette.length, i, actual, expected));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package colors;
+
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * Checks that LabKDTree finds the same color as a linear scan of the palette, including ties going
+ * to the lowest index, for random palettes with random intensities and for the colors of colors.txt.
+ * Run from the folder of colors.txt. Throws AssertionError on the first difference.
+ */
+public class LabKDTreeCheck {
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		for(int size : new int[]{1, 2, 3, 7, 40, 255, 1000}) {
+			LEGOColor[] palette = randomPalette(size, random);
+			check(palette, random, 20000);
+			// Duplicates make ties, which must go to the lowest index:
+			LEGOColor[] duplicated = new LEGOColor[2*size];
+			for(int i = 0; i < size; i++)
+				duplicated[i] = duplicated[size+i] = palette[i];
+			check(duplicated, random, 5000);
+		}
+		check(CheckColors.load(), random, 50000);
+		System.out.println("LabKDTree: Same colors as a linear scan.");
+	}
+
+	static LEGOColor[] randomPalette(int size, Random random) {
+		LEGOColor[] palette = new LEGOColor[size];
+		for(int i = 0; i < size; i++) {
+			palette[i] = new LEGOColor(new Color(random.nextInt(0x1000000)), i, "Color " + i);
+			palette[i].setIntensity(0.5 + random.nextDouble());
+		}
+		return palette;
+	}
+
+	/**
+	 * The matching of the baseline: The smallest CIE94 difference divided by intensity, first one on ties.
+	 */
+	static int linearScan(LEGOColor[] palette, int[] lab) {
+		int best = -1;
+		double bestDiff = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < palette.length; i++) {
+			double diff = ColorDifference.diffCIE94(lab, palette[i].getLAB()) / palette[i].getIntensity();
+			if(diff < bestDiff) {
+				bestDiff = diff;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private static void check(LEGOColor[] palette, Random random, int samples) {
+		LabKDTree tree = new LabKDTree(palette);
+		int[] lab = new int[3];
+		for(int i = 0; i < samples; i++) {
+			int rgb = random.nextInt(0x1000000);
+			CIELab.rgb2lab(rgb >> 16, (rgb >> 8) & 0xFF, rgb & 0xFF, lab);
+			int expected = linearScan(palette, lab);
+			int actual = tree.nearest(lab);
+			if(expected != actual)
+				throw new AssertionError(String.format("Palette of %d colors, RGB %06x: Tree found %d, linear scan %d", palette.length, rgb, actual, expected));
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package transforms;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+import colors.*;
+
+/**
+ * Checks that the RASTER scan order of error diffusion dithers the same on several threads as on one:
+ * With one thread, Wavefront runs the rows one after the other like the sequential algorithm, and with more
+ * threads each pixel must still see the error of all pixels above and left of it.
+ * Checked for Floyd-Steinberg with each error clamp and for each kernel of ErrorDiffusionTransform.
+ * Throws AssertionError on the first difference.
+ */
+public class DitheringCheck {
+	public static void main(String[] args) {
+		ColorMatcher matcher = new ColorMatcher(palette());
+		for(int[] size : new int[][]{{1, 1}, {1, 37}, {37, 1}, {123, 77}, {640, 480}}) {
+			BufferedImage image = image(size[0], size[1], new Random(size[0]*31 + size[1]));
+			for(FloydSteinbergTransform.ErrorClamp clamp : FloydSteinbergTransform.ErrorClamp.values()) {
+				FloydSteinbergTransform fs = new FloydSteinbergTransform(80, matcher, null);
+				fs.setScanOrder(FloydSteinbergTransform.ScanOrder.RASTER);
+				fs.setErrorClamp(clamp);
+				check("Floyd-Steinberg " + clamp, fs, image);
+			}
+			for(ErrorDiffusionTransform.Kernel kernel : new ErrorDiffusionTransform.Kernel[]{
+					ErrorDiffusionTransform.Kernel.FLOYD_STEINBERG, ErrorDiffusionTransform.Kernel.JARVIS_JUDICE_NINKE,
+					ErrorDiffusionTransform.Kernel.STUCKI, ErrorDiffusionTransform.Kernel.SIERRA, ErrorDiffusionTransform.Kernel.ATKINSON}) {
+				ErrorDiffusionTransform ed = new ErrorDiffusionTransform(kernel, 80, matcher, null);
+				ed.setScanOrder(FloydSteinbergTransform.ScanOrder.RASTER);
+				check(kernel.name, ed, image);
+			}
+		}
+		System.out.println("Dithering: Same colors on 1, 2, 3 and 8 threads.");
+	}
+
+	private static void check(String name, BufferedLEGOColorTransform t, BufferedImage image) {
+		t.setThreads(1);
+		LEGOColorGrid sequential = t.lcTransformUnbuffered(image, ProgressCallback.NOP, CancellationToken.NONE);
+		for(int threads : new int[]{2, 3, 8}) {
+			t.setThreads(threads);
+			LEGOColorGrid parallel = t.lcTransformUnbuffered(image, ProgressCallback.NOP, CancellationToken.NONE);
+			for(int y = 0; y < image.getHeight(); y++) {
+				if(!Arrays.equals(sequential.getRow(y), parallel.getRow(y)))
+					throw new AssertionError(String.format("%s, %dx%d on %d threads: Row %d differs", name, image.getWidth(), image.getHeight(), threads, y));
+			}
+		}
+	}
+
+	private static LEGOColor[] palette() {
+		int[] rgbs = {0x000000, 0xFFFFFF, 0xC91A09, 0x0055BF, 0xF2CD37, 0x237841, 0xA0A5A9, 0x6C6E68, 0x583927, 0xFE8A18};
+		LEGOColor[] palette = new LEGOColor[rgbs.length];
+		for(int i = 0; i < rgbs.length; i++)
+			palette[i] = new LEGOColor(new java.awt.Color(rgbs[i]), i, "Color " + i);
+		return palette;
+	}
+
+	/*
+	 * Gradients with noise, so the error is spread in all directions.
+	 */
+	static BufferedImage image(int w, int h, Random random) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for(int y = 0; y < h; y++) {
+			for(int x = 0; x < w; x++) {
+				int r = Math.min(255, 255*x/w + random.nextInt(24));
+				int g = Math.min(255, 255*y/h + random.nextInt(24));
+				int b = Math.min(255, 255*(x+y)/(w+h) + random.nextInt(24));
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,82 @@
+package transforms;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import mosaic.rendering.CancellationToken;
+import mosaic.rendering.ProgressCallback;
+import colors.CIELab;
+
+/**
+ * Checks area averaging of ScaleTransform against averaging the area covered by each output pixel
+ * in double precision, which may differ by 1 in a component from rounding. Also checks that inputs
+ * which are not TYPE_INT_RGB, and are read one row at a time, scale to the same pixels.
+ * Throws AssertionError on the first difference.
+ */
+public class ScaleCheck {
+	public static void main(String[] args) {
+		Random random = new Random(3);
+		int[][] sizes = {{100, 100, 10, 10}, {100, 100, 33, 17}, {640, 480, 97, 61}, {555, 333, 554, 332}, {300, 7, 13, 1}, {5, 5, 1, 1}};
+		for(int[] size : sizes) {
+			BufferedImage in = DitheringCheck.image(size[0], size[1], random);
+			for(boolean linear : new boolean[]{false, true}) {
+				ScaleTransform.ScaleQuality quality = linear ? ScaleTransform.ScaleQuality.AreaAveragingLinear : ScaleTransform.ScaleQuality.AreaAveraging;
+				ScaleTransform t = new ScaleTransform("Check", false, quality);
+				t.setWidth(size[2]);
+				t.setHeight(size[3]);
+				BufferedImage out = t.transformUnbuffered(in, ProgressCallback.NOP, CancellationToken.NONE);
+				compare(reference(in, size[2], size[3], linear), out, 1, quality + " " + size[0] + "x" + size[1] + " to " + size[2] + "x" + size[3]);
+
+				BufferedImage bgr = new BufferedImage(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR);
+				bgr.getGraphics().drawImage(in, 0, 0, null);
+				compare(out, t.transformUnbuffered(bgr, ProgressCallback.NOP, CancellationToken.NONE), 0, quality + " of TYPE_3BYTE_BGR");
+			}
+		}
+		System.out.println("Scaling: Area averaging as the reference.");
+	}
+
+	private static BufferedImage reference(BufferedImage in, int w, int h, boolean linear) {
+		int inW = in.getWidth(), inH = in.getHeight();
+		double sx = inW / (double)w, sy = inH / (double)h; // Input pixels per output pixel.
+		BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for(int oy = 0; oy < h; oy++) {
+			for(int ox = 0; ox < w; ox++) {
+				double[] sums = new double[3];
+				double x0 = ox*sx, x1 = (ox+1)*sx, y0 = oy*sy, y1 = (oy+1)*sy;
+				for(int y = (int)y0; y < Math.min(inH, Math.ceil(y1)); y++) {
+					double coverY = Math.min(y1, y+1) - Math.max(y0, y);
+					for(int x = (int)x0; x < Math.min(inW, Math.ceil(x1)); x++) {
+						double cover = coverY * (Math.min(x1, x+1) - Math.max(x0, x));
+						int rgb = in.getRGB(x, y);
+						for(int c = 0; c < 3; c++) {
+							int v = (rgb >> (16 - 8*c)) & 0xFF;
+							sums[c] += cover * (linear ? CIELab.toLinear(v) : v);
+						}
+					}
+				}
+				int rgb = 0;
+				for(int c = 0; c < 3; c++) {
+					double average = sums[c] / (sx*sy);
+					int v = linear ? CIELab.fromLinear((float)average) : (int)Math.min(255, Math.round(average));
+					rgb |= v << (16 - 8*c);
+				}
+				out.setRGB(ox, oy, rgb);
+			}
+		}
+		return out;
+	}
+
+	private static void compare(BufferedImage expected, BufferedImage actual, int tolerance, String name) {
+		if(expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight())
+			throw new AssertionError(name + ": Size " + actual.getWidth() + "x" + actual.getHeight());
+		for(int y = 0; y < expected.getHeight(); y++) {
+			for(int x = 0; x < expected.getWidth(); x++) {
+				int e = expected.getRGB(x, y), a = actual.getRGB(x, y);
+				for(int shift = 0; shift <= 16; shift += 8) {
+					if(Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF)) > tolerance)
+						throw new AssertionError(String.format("%s: Pixel %d,%d is %06x, expected %06x", name, x, y, a & 0xFFFFFF, e & 0xFFFFFF));
+				}
+			}
+		}
+	}
+}